@@ -1,13 +1,27 @@
 package ray;
 
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ray.camera.Camera;
 import ray.io.Parser;
 import ray.math.Point2;
+import ray.misc.AccumulationBuffer;
+import ray.misc.Checkpoint;
 import ray.misc.Color;
+import ray.misc.HitBatch;
 import ray.misc.Image;
+import ray.misc.ProgressiveSettings;
 import ray.misc.Ray;
+import ray.misc.RayBatch;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 import ray.renderer.Renderer;
+import ray.renderer.WavefrontPathTracer;
 import ray.sampling.SampleGenerator;
 import ray.viewer.QuickViewer;
 
@@ -25,6 +39,9 @@ public class RayTracer {
 	protected static int SUB_WIDTH = 32;
 	protected static int SUB_HEIGHT = 32;
 
+	// Number of camera rays traced together
+	protected static int RAY_BATCH_SIZE = 64;
+
 	/**
 	 * Widget to draw the image spiral.
 	 */
@@ -42,12 +59,47 @@ public class RayTracer {
 	 * for the ray tracer. It tries to render each one and write it out to a PNG
 	 * file named <input_file>.png.
 	 * 
+	 * Two options distribute the blocks over several processes, see
+	 * RenderCoordinator and RenderWorker:
+	 * 
+	 * --coordinator port scene.xml ... renders the scenes on the workers that
+	 * connect to the port.
+	 * 
+	 * --worker host:port [threads] renders blocks for the coordinator at
+	 * host:port on the given number of threads (one per processor by default)
+	 * until it is done.
+	 * 
+	 * --resume scene.xml ... continues each render from its checkpoint, if it
+	 * has one (see ProgressiveSettings.setCheckpointInterval()).
+	 * 
 	 * @param args
 	 */
 	public static final void main(String[] args) {
 
+		if (args.length > 0 && args[0].equals("--worker")) {
+			if (args.length < 2 || args.length > 3)
+				throw new Error("usage: --worker host:port [threads]");
+			RenderWorker.serve(args[1], args.length > 2 ? Integer
+					.parseInt(args[2]) : Runtime.getRuntime()
+					.availableProcessors());
+			return;
+		}
+
+		RenderCoordinator coordinator = null;
+		boolean resume = false;
+		int first = 0;
+		if (args.length > 0 && args[0].equals("--coordinator")) {
+			if (args.length < 2)
+				throw new Error("usage: --coordinator port scene.xml ...");
+			coordinator = new RenderCoordinator(Integer.parseInt(args[1]));
+			first = 2;
+		} else if (args.length > 0 && args[0].equals("--resume")) {
+			resume = true;
+			first = 1;
+		}
+
 		Parser parser = new Parser();
-		for (int ctr = 0; ctr < args.length; ctr++) {
+		for (int ctr = first; ctr < args.length; ctr++) {
 
 			// Get the input/output filenames.
 			String inputFilename = args[ctr];
@@ -57,11 +109,16 @@ public class RayTracer {
 			Scene scene = (Scene) parser.parse(inputFilename, Scene.class);
 
 			// Render the scene
-			renderImage(scene);
+			if (coordinator != null)
+				coordinator.render(scene, inputFilename);
+			else
+				renderImage(scene, inputFilename, outputFilename, resume);
 
 			// Write the image out
 			scene.getImage().write(outputFilename);
 		}
+		if (coordinator != null)
+			coordinator.close();
 		for (int i = 0; i < 5; ++i) {
 			System.out.print("\007");
 			System.out.flush();
@@ -74,24 +131,60 @@ public class RayTracer {
 	}
 
 	/**
-	 * The renderImage method renders the entire scene.
+	 * Render the entire scene without writing snapshots.
+	 * 
+	 * @see #renderImage(Scene, String, String, boolean)
+	 */
+	public static void renderImage(Scene scene) {
+		renderImage(scene, null, null, false);
+	}
+
+	/**
+	 * Render the entire scene from scratch.
+	 * 
+	 * @see #renderImage(Scene, String, String, boolean)
+	 */
+	public static void renderImage(Scene scene, String outputFilename) {
+		renderImage(scene, null, outputFilename, false);
+	}
+
+	/**
+	 * The renderImage method renders the entire scene in one or more passes,
+	 * as set by scene.getProgressive(). Each pass adds some samples to every
+	 * pixel of an accumulation buffer: its image sub-blocks are handed out in
+	 * spiral order to scene.getNumThreads() worker threads, each of which
+	 * renders with its own RenderContext and its own copy of the sampler; the
+	 * scene and the renderer are shared. The workers write the mean of their
+	 * blocks so far straight into the shared output image and report finished
+	 * blocks back to this thread, which updates the display. Without
+	 * progressive settings there is a single pass of all the sampler's
+	 * samples. With an error threshold the passes after the first skip the
+	 * pixels that have converged, and rendering stops when all have.
+	 * 
+	 * With a checkpoint interval the progress is saved between passes to
+	 * outputFilename + ".checkpoint", which is deleted once the render is
+	 * complete (but kept if it stops at the time limit). The checkpoint
+	 * records the hash of the scene file and its meshes, and resuming refuses
+	 * a checkpoint of a different scene.
 	 * 
 	 * @param scene
 	 *            The scene to be rendered
+	 * @param sceneFilename
+	 *            the file the scene was parsed from, or null if there is none
+	 * @param outputFilename
+	 *            where to write snapshots of the image between passes, or null
+	 * @param resume
+	 *            whether to start from the checkpoint, if there is one
 	 */
-	public static void renderImage(Scene scene) {
+	public static void renderImage(Scene scene, String sceneFilename,
+			String outputFilename, boolean resume) {
 
 		// Get the output image
-		Image image = scene.getImage();
+		final Image image = scene.getImage();
 		Camera cam = scene.getCamera();
 
 		// Setup viewer
-		if (DISPLAY) {
-			if (viewer == null)
-				viewer = QuickViewer.createImageViewer(image);
-			else
-				viewer.setImage(image);
-		} // else
+		boolean display = openViewer(image);
 		System.err.print("Starting render...");
 
 		// Set the camera aspect ratio to match output image
@@ -99,41 +192,175 @@ public class RayTracer {
 		int height = image.getHeight();
 		cam.setAspectRatioKeepYFOV(((double) width) / height);
 
-		// Setup the sub-block spiral
-		spiral.initSubblockSpiral(width, height);
+		// Setup the sub-block spiral and record the order of the blocks
+		int[][] blocks = spiralBlocks(width, height);
+		final int[] blockX = blocks[0];
+		final int[] blockY = blocks[1];
+		final int numBlocks = blockX.length;
+
+		// The budget of samples and time
+		int patternSize = scene.getSampler().getNumSamples();
+		ProgressiveSettings progressive = scene.getProgressive();
+		int firstPassSamples = patternSize;
+		int samplesPerPass = patternSize;
+		int maxSamples = patternSize;
+		double errorThreshold = 0;
+		long timeLimit = 0;
+		int snapshotInterval = 0;
+		long checkpointInterval = 0;
+		if (progressive != null) {
+			firstPassSamples = progressive.getMinSamples();
+			samplesPerPass = progressive.getSamplesPerPass();
+			maxSamples = progressive.getMaxSamples(patternSize);
+			errorThreshold = progressive.getErrorThreshold();
+			timeLimit = (long) (1000 * progressive.getTimeLimit());
+			if (outputFilename != null) {
+				snapshotInterval = progressive.getSnapshotInterval();
+				checkpointInterval = (long) (1000 * progressive
+						.getCheckpointInterval());
+			}
+		}
+
+		// The acceleration structure is shared by all workers, so build it
+		// before any of them starts
+		scene.initAccelerationStructure();
+
+		// Pick up where the checkpoint left off
+		AccumulationBuffer accum = new AccumulationBuffer(width, height);
+		String fingerprint = "";
+		if (sceneFilename != null) {
+			try {
+				fingerprint = RenderProtocol.hash(new File(sceneFilename));
+			} catch (IOException e) {
+				throw new Error("Cannot read " + sceneFilename + ".", e);
+			}
+		}
+		Checkpoint checkpoint = new Checkpoint(accum, patternSize, fingerprint);
+		File checkpointFile = outputFilename == null ? null : new File(
+				outputFilename + ".checkpoint");
+		if (resume && checkpointFile != null && checkpointFile.exists()) {
+			try {
+				checkpoint.read(checkpointFile);
+			} catch (IOException e) {
+				throw new Error("Cannot resume from " + checkpointFile + ".", e);
+			}
+			accum.resolve(image, 0, 0, width, height);
+			if (display)
+				viewer.setImage(image);
+			System.err.print("\rresuming after pass " + checkpoint.pass + " ("
+					+ checkpoint.samples + " samples per pixel)\n");
+		}
 
 		// Timeing counters
-		long totalTime = 0;
-		long blockStart;
+		long startTime = System.currentTimeMillis() - checkpoint.elapsed;
+		long lastCheckpoint = System.currentTimeMillis();
+
+		// Create the workers. They keep their samplers and contexts from pass
+		// to pass. The work queue is just the index of the next block in the
+		// spiral that nobody has claimed yet. A wavefront renderer spreads
+		// each block over all the threads itself, so it gets one worker.
+		int numThreads = Math.max(1, Math.min(scene.getNumThreads(), numBlocks));
+		if (scene.getRenderer() instanceof WavefrontPathTracer)
+			numThreads = 1;
+		AtomicInteger nextBlock = new AtomicInteger(0);
+		AtomicInteger active = new AtomicInteger(0);
+		BlockingQueue<Integer> finished = new LinkedBlockingQueue<Integer>();
+		Thread[] workers = new Thread[numThreads];
+		BlockWorker[] work = new BlockWorker[numThreads];
+		for (int i = 0; i < numThreads; i++)
+			work[i] = new BlockWorker(scene, image, accum, scene.getSampler()
+					.copy(), blockX, blockY, nextBlock, active, finished);
+
+		int samples = checkpoint.samples;
+		int pass = checkpoint.pass;
+		boolean complete = true;
+		while (samples < maxSamples) {
+
+			// Start the workers on the next pass
+			int passSamples = Math.min(pass == 0 ? firstPassSamples
+					: samplesPerPass, maxSamples - samples);
+			nextBlock.set(0);
+			active.set(0);
+			for (int i = 0; i < numThreads; i++) {
+				work[i].setPass(passSamples, maxSamples, errorThreshold);
+				workers[i] = new Thread(work[i], "render-worker-" + i);
+				workers[i].setDaemon(true);
+				workers[i].start();
+			}
 
-		// Loop over all blocks and render
-		int offsetX, offsetY, sizeX, sizeY;
-		for (int i = 0; i < spiral.totalSubblocks; i++) {
+			// Wait for the blocks to come back and update the display
+			for (int i = 0; i < numBlocks; i++) {
+				int block;
+				try {
+					block = finished.take();
+				} catch (InterruptedException e) {
+					throw new Error(
+							"Interrupted while waiting for render workers.");
+				}
+				if (block < 0) {
+					for (int j = 0; j < numThreads; j++)
+						if (work[j].failure != null)
+							throw new Error("Render worker failed.",
+									work[j].failure);
+				}
 
-			// Increment the block counter
-			spiral.incrementSublockSpiral();
-			offsetX = spiral.curSubX * SUB_WIDTH;
-			offsetY = spiral.curSubY * SUB_HEIGHT;
-			sizeX = Math.min(width - offsetX, SUB_WIDTH);
-			sizeY = Math.min(height - offsetY, SUB_HEIGHT);
-
-			// Render the current sub-block
-			blockStart = System.currentTimeMillis();
-			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
-			totalTime += (System.currentTimeMillis() - blockStart);
-
-			// Update display
-			if (DISPLAY)
-				viewer.setImage(image, offsetX, offsetY, offsetX + sizeX,
-						offsetY + sizeY);
-			else
-				System.err.print("\rfinished " + (i + 1) + "/"
-						+ spiral.totalSubblocks + " blocks");
+				showBlock(image, blockX[block], blockY[block], i + 1,
+						numBlocks, display);
+			}
+
+			// Let the workers run out of blocks before the next pass resets
+			// the queue
+			for (int i = 0; i < numThreads; i++) {
+				try {
+					workers[i].join();
+				} catch (InterruptedException e) {
+					throw new Error(
+							"Interrupted while waiting for render workers.");
+				}
+			}
+
+			samples += passSamples;
+			pass++;
+			long elapsed = System.currentTimeMillis() - startTime;
+			if (progressive != null)
+				System.err.print("\rpass " + pass + ": up to " + samples
+						+ " samples per pixel, " + active.get()
+						+ " pixels unconverged, in " + (elapsed / 1000.0)
+						+ " seconds\n");
+			if (active.get() == 0)
+				break;
+			if (snapshotInterval > 0 && pass % snapshotInterval == 0
+					&& samples < maxSamples)
+				image.write(outputFilename);
+			boolean timeUp = timeLimit > 0 && elapsed >= timeLimit;
+			long sinceCheckpoint = System.currentTimeMillis() - lastCheckpoint;
+			if (checkpointInterval > 0 && samples < maxSamples
+					&& (timeUp || sinceCheckpoint >= checkpointInterval)) {
+				checkpoint.pass = pass;
+				checkpoint.samples = samples;
+				checkpoint.elapsed = elapsed;
+				try {
+					checkpoint.write(checkpointFile);
+				} catch (IOException e) {
+					System.err.println("Cannot write " + checkpointFile + ": "
+							+ e);
+				}
+				lastCheckpoint = System.currentTimeMillis();
+			}
+			if (timeUp) {
+				complete = samples >= maxSamples;
+				break;
+			}
 		}
+		if (complete && checkpointFile != null)
+			checkpointFile.delete();
+		long totalTime = System.currentTimeMillis() - startTime;
 
 		// Output time (will be longer if the viewer is on)
 		System.out.println("\nDone.  Total rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+				+ (totalTime / 1000.0) + " seconds (" + numThreads
+				+ " threads)");
+		printSampleCounts(accum, errorThreshold);
 
 		if (width == 1 && height == 1) {
 			Color pixelColor = new Color();
@@ -146,10 +373,80 @@ public class RayTracer {
 	}
 
 	/**
-	 * Render one block of the output image.
+	 * Show an image in the display window, if there is one.
+	 * 
+	 * @return whether the image is displayed
+	 */
+	static boolean openViewer(Image image) {
+
+		boolean display = DISPLAY && !GraphicsEnvironment.isHeadless();
+		if (display) {
+			if (viewer == null)
+				viewer = QuickViewer.createImageViewer(image);
+			else
+				viewer.setImage(image);
+		}
+		return display;
+	}
+
+	/**
+	 * Update the display with a finished block, or print the progress if
+	 * there is no display.
+	 */
+	static void showBlock(Image image, int offsetX, int offsetY, int done,
+			int numBlocks, boolean display) {
+
+		int sizeX = Math.min(image.getWidth() - offsetX, SUB_WIDTH);
+		int sizeY = Math.min(image.getHeight() - offsetY, SUB_HEIGHT);
+		if (display)
+			viewer.setImage(image, offsetX, offsetY, offsetX + sizeX, offsetY
+					+ sizeY);
+		else
+			System.err.print("\rfinished " + done + "/" + numBlocks
+					+ " blocks");
+	}
+
+	/**
+	 * The image sub-blocks in spiral order.
+	 * 
+	 * @return the x and the y offsets of the blocks
+	 */
+	static synchronized int[][] spiralBlocks(int width, int height) {
+
+		spiral.initSubblockSpiral(width, height);
+		int numBlocks = spiral.totalSubblocks;
+		int[][] blocks = new int[2][numBlocks];
+		for (int i = 0; i < numBlocks; i++) {
+			spiral.incrementSublockSpiral();
+			blocks[0][i] = spiral.curSubX * SUB_WIDTH;
+			blocks[1][i] = spiral.curSubY * SUB_HEIGHT;
+		}
+		return blocks;
+	}
+
+	/**
+	 * Render one block of the output image using the scene's own sampler and a
+	 * fresh work space.
+	 * 
+	 * @see #renderBlock(Scene, SampleGenerator, RenderContext, Image, int,
+	 *      int, int, int)
+	 */
+	public static void renderBlock(Scene scene, Image outImage, int offsetX,
+			int offsetY, int sizeX, int sizeY) {
+
+		renderBlock(scene, scene.getSampler(), new RenderContext(), outImage,
+				offsetX, offsetY, sizeX, sizeY);
+	}
+
+	/**
+	 * Render one block of the output image with all the sampler's samples.
 	 * 
 	 * @param scene
 	 *            The scene data
+	 * @param sampler
+	 *            The sampler to use (not shared with other threads)
+	 * @param context
+	 *            The work space to use (not shared with other threads)
 	 * @param outImage
 	 *            the output image (write the output pixels here)
 	 * @param offsetX
@@ -161,45 +458,271 @@ public class RayTracer {
 	 * @param sizeY
 	 *            the height of the block
 	 */
-	public static void renderBlock(Scene scene, Image outImage, int offsetX,
-			int offsetY, int sizeX, int sizeY) {
+	public static void renderBlock(Scene scene, SampleGenerator sampler,
+			RenderContext context, Image outImage, int offsetX, int offsetY,
+			int sizeX, int sizeY) {
+
+		int numSamples = sampler.getNumSamples();
+		renderBlock(scene, sampler, context, new AccumulationBuffer(
+				outImage.getWidth(), outImage.getHeight()), outImage,
+				numSamples, numSamples, 0, offsetX, offsetY, sizeX, sizeY);
+	}
+
+	/**
+	 * Add samples to the pixels of one block of an accumulation buffer that
+	 * still need them, and write the mean of the block to the output image.
+	 * 
+	 * @param scene
+	 *            The scene data
+	 * @param sampler
+	 *            The sampler to use (not shared with other threads)
+	 * @param context
+	 *            The work space to use (not shared with other threads)
+	 * @param accum
+	 *            the samples of the previous passes
+	 * @param outImage
+	 *            the output image (write the output pixels here)
+	 * @param numSamples
+	 *            the number of samples to add to each pixel. Each pixel
+	 *            continues the sampler's samples where its last pass stopped,
+	 *            going on into new rounds of the pattern past its end.
+	 * @param maxSamples
+	 *            the number of samples at which a pixel is complete
+	 * @param errorThreshold
+	 *            the error (see AccumulationBuffer.getError()) below which a
+	 *            pixel is complete, or 0 to only stop at maxSamples
+	 * @param offsetX
+	 *            the startingX value of the block
+	 * @param offsetY
+	 *            the startingY value of the block
+	 * @param sizeX
+	 *            the width of the block
+	 * @param sizeY
+	 *            the height of the block
+	 * @return the number of pixels of the block that are not complete after
+	 *         this pass
+	 */
+	public static int renderBlock(Scene scene, SampleGenerator sampler,
+			RenderContext context, AccumulationBuffer accum, Image outImage,
+			int numSamples, int maxSamples, double errorThreshold,
+			int offsetX, int offsetY, int sizeX, int sizeY) {
 
 		// Do some basic setup
 		Renderer renderer = scene.getRenderer();
+		if (renderer instanceof WavefrontPathTracer)
+			return renderWavefrontBlock((WavefrontPathTracer) renderer, scene,
+					sampler, context, accum, outImage, numSamples, maxSamples,
+					errorThreshold, offsetX, offsetY, sizeX, sizeY);
 		Camera cam = scene.getCamera();
-		SampleGenerator sampler = scene.getSampler();
 		Ray ray = new Ray();
-		Color pixelColor = new Color();
 		Color rayColor = new Color();
 		int width = outImage.getWidth();
 		int height = outImage.getHeight();
 		Point2 pixelSeed = new Point2();
+		RayBatch rays = new RayBatch(RAY_BATCH_SIZE);
+		HitBatch hits = new HitBatch(RAY_BATCH_SIZE);
+		int[] sampleIndex = new int[RAY_BATCH_SIZE];
+		int incomplete = 0;
 
 		for (int x = offsetX; x < (offsetX + sizeX); x++) {
 			for (int y = offsetY; y < (offsetY + sizeY); y++) {
 
+				int firstSample = accum.getSampleCount(x, y);
+				int pixelSamples = Math.min(numSamples, maxSamples
+						- firstSample);
+				if (pixelSamples <= 0 || converged(accum, x, y,
+						errorThreshold))
+					continue;
+
+				sampler.setPixel(x, y);
 				sampler.generate();
 
-				// Reset the pixel color
-				pixelColor.set(0, 0, 0);
-				for (int sampleIndex = 0; sampleIndex < sampler.getNumSamples(); sampleIndex++) {
+				for (int batchStart = 0; batchStart < pixelSamples; batchStart += RAY_BATCH_SIZE) {
+					int batchEnd = Math.min(pixelSamples, batchStart
+							+ RAY_BATCH_SIZE);
+
+					// Generate the eye rays and trace them together
+					rays.clear();
+					for (int s = batchStart; s < batchEnd; s++) {
+						int index = firstSample + s;
+						sampler.sample(0, index, pixelSeed);
+						cam.getRay(ray, (x + pixelSeed.x) / width,
+								(y + pixelSeed.y) / height);
+						sampleIndex[rays.add(ray)] = index;
+					}
+					scene.getFirstIntersection(rays, hits);
+
+					// Shade the rays
+					for (int i = 0; i < rays.size; i++) {
+						rays.get(i, ray);
+						renderer.hitRadiance(scene, ray,
+								hits.hit[i] ? hits.records[i] : null, sampler,
+								sampleIndex[i], context, rayColor);
+						accum.add(x, y, rayColor);
+					}
+				}
+				if (accum.getSampleCount(x, y) < maxSamples
+						&& !converged(accum, x, y, errorThreshold))
+					incomplete++;
+			}
+		}
 
-					sampler.sample(0, sampleIndex, pixelSeed);
+		// Show the mean of the samples so far
+		accum.resolve(outImage, offsetX, offsetY, sizeX, sizeY);
+		return incomplete;
+	}
 
-					// Generate the eye ray and shade that ray
-					cam.getRay(ray, (x + pixelSeed.x) / width,
-							(y + pixelSeed.y) / height);
-					renderer.rayRadiance(scene, ray, sampler, sampleIndex,
-							rayColor);
-					pixelColor.add(rayColor);
-				}
+	/**
+	 * renderBlock() for a wavefront renderer: list the pixels that need
+	 * samples and let the renderer trace all their paths together.
+	 */
+	private static int renderWavefrontBlock(WavefrontPathTracer renderer,
+			Scene scene, SampleGenerator sampler, RenderContext context,
+			AccumulationBuffer accum, Image outImage, int numSamples,
+			int maxSamples, double errorThreshold, int offsetX, int offsetY,
+			int sizeX, int sizeY) {
+
+		int numPixels = 0;
+		int[] pixelX = new int[sizeX * sizeY];
+		int[] pixelY = new int[sizeX * sizeY];
+		int[] firstSample = new int[sizeX * sizeY];
+		int[] pixelSamples = new int[sizeX * sizeY];
+		for (int x = offsetX; x < (offsetX + sizeX); x++) {
+			for (int y = offsetY; y < (offsetY + sizeY); y++) {
+				int first = accum.getSampleCount(x, y);
+				int count = Math.min(numSamples, maxSamples - first);
+				if (count <= 0 || converged(accum, x, y, errorThreshold))
+					continue;
+				pixelX[numPixels] = x;
+				pixelY[numPixels] = y;
+				firstSample[numPixels] = first;
+				pixelSamples[numPixels] = count;
+				numPixels++;
+			}
+		}
+		renderer.renderPixels(scene, sampler, context, accum, numPixels,
+				pixelX, pixelY, firstSample, pixelSamples);
+
+		int incomplete = 0;
+		for (int i = 0; i < numPixels; i++)
+			if (accum.getSampleCount(pixelX[i], pixelY[i]) < maxSamples
+					&& !converged(accum, pixelX[i], pixelY[i],
+							errorThreshold))
+				incomplete++;
+		accum.resolve(outImage, offsetX, offsetY, sizeX, sizeY);
+		return incomplete;
+	}
+
+	/**
+	 * @return whether adaptive sampling is on and a pixel's error is below
+	 *         the threshold
+	 */
+	private static boolean converged(AccumulationBuffer accum, int x, int y,
+			double errorThreshold) {
+		return errorThreshold > 0 && accum.getError(x, y) <= errorThreshold;
+	}
 
-				// Gamma correct and clamp pixel values
-				pixelColor.scale(1.0 / sampler.getNumSamples());
-				pixelColor.gammaCorrect(2.2);
-				pixelColor.clamp(0, 1);
-				outImage.setPixelColor(pixelColor, x, y);
+	/**
+	 * Print the smallest, mean and largest number of samples per pixel, and
+	 * with adaptive sampling the fraction of pixels that converged.
+	 */
+	private static void printSampleCounts(AccumulationBuffer accum,
+			double errorThreshold) {
+
+		int width = accum.getWidth();
+		int height = accum.getHeight();
+		int min = Integer.MAX_VALUE, max = 0, converged = 0;
+		long total = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int n = accum.getSampleCount(x, y);
+				min = Math.min(min, n);
+				max = Math.max(max, n);
+				total += n;
+				if (converged(accum, x, y, errorThreshold))
+					converged++;
+			}
+		}
+		int pixels = width * height;
+		String summary = String.format(
+				"Samples per pixel: min %d, mean %.1f, max %d", min,
+				(double) total / pixels, max);
+		if (errorThreshold > 0)
+			summary += String.format("; %.1f%% of pixels converged",
+					100.0 * converged / pixels);
+		System.out.println(summary);
+	}
 
+	/**
+	 * A rendering thread. It keeps claiming the next unrendered block of the
+	 * spiral until there are none left, and reports each finished block (or
+	 * -1 if it fails) through the finished queue. A new thread runs it for
+	 * each pass.
+	 */
+	private static final class BlockWorker implements Runnable {
+
+		private final Scene scene;
+		private final Image image;
+		private final AccumulationBuffer accum;
+		private final SampleGenerator sampler;
+		private final RenderContext context = new RenderContext();
+		private final int[] blockX, blockY;
+		private final AtomicInteger nextBlock;
+		private final AtomicInteger active;
+		private final BlockingQueue<Integer> finished;
+
+		/** The settings of the current pass, see renderBlock() */
+		private int numSamples, maxSamples;
+		private double errorThreshold;
+
+		/** The exception that stopped this worker, if any */
+		protected volatile Throwable failure = null;
+
+		protected BlockWorker(Scene scene, Image image,
+				AccumulationBuffer accum, SampleGenerator sampler,
+				int[] blockX, int[] blockY, AtomicInteger nextBlock,
+				AtomicInteger active, BlockingQueue<Integer> finished) {
+
+			this.scene = scene;
+			this.image = image;
+			this.accum = accum;
+			this.sampler = sampler;
+			this.blockX = blockX;
+			this.blockY = blockY;
+			this.nextBlock = nextBlock;
+			this.active = active;
+			this.finished = finished;
+		}
+
+		/**
+		 * Set the samples to render in the next run.
+		 */
+		protected void setPass(int numSamples, int maxSamples,
+				double errorThreshold) {
+			this.numSamples = numSamples;
+			this.maxSamples = maxSamples;
+			this.errorThreshold = errorThreshold;
+		}
+
+		public void run() {
+
+			int width = image.getWidth();
+			int height = image.getHeight();
+			try {
+				int block;
+				while ((block = nextBlock.getAndIncrement()) < blockX.length) {
+					int offsetX = blockX[block];
+					int offsetY = blockY[block];
+					active.addAndGet(renderBlock(scene, sampler, context,
+							accum, image, numSamples, maxSamples,
+							errorThreshold, offsetX, offsetY,
+							Math.min(width - offsetX, SUB_WIDTH),
+							Math.min(height - offsetY, SUB_HEIGHT)));
+					finished.add(block);
+				}
+			} catch (Throwable t) {
+				failure = t;
+				finished.add(-1);
 			}
 		}
 	}
@@ -0,0 +1,472 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ray.misc.AccumulationBuffer;
+import ray.misc.Color;
+import ray.misc.Image;
+import ray.misc.ProgressiveSettings;
+import ray.misc.Scene;
+
+/**
+ * Renders scenes on worker processes (see RenderWorker) that connect to it
+ * over TCP. The coordinator only parses each scene to learn the size of its
+ * image; the workers load it themselves from the same path, checked against
+ * the hash of the file. The image sub-blocks are handed out in spiral order,
+ * one at a time to each connection, and the workers send back the mean
+ * radiance of the blocks, which the coordinator writes into the image.
+ *
+ * A worker may connect or go away at any time: the block it was rendering
+ * when its connection broke goes back to the front of the queue for the next
+ * free connection. The render only waits for workers while there are none.
+ * A worker that stops answering without breaking its connection is dropped
+ * the same way once a block takes it TILE_TIMEOUT_FACTOR times as long as
+ * the slowest block so far (at least MIN_TILE_TIMEOUT; FIRST_TILE_TIMEOUT
+ * before any block is done), or loading a scene takes LOAD_TIMEOUT.
+ *
+ * The workers render each block with the whole progressive schedule of the
+ * scene (see ProgressiveSettings) but ignore its time limit and snapshots, so
+ * a scene with a time limit must also set maxSamples; render() refuses one
+ * that doesn't. Since the samples of every pixel depend on nothing but the
+ * pixel, the image is the same as one rendered by a single process, unless
+ * the single process would have stopped early at the time limit.
+ *
+ * If every connected worker refuses a scene (it can't load it, or its copy
+ * differs), render() fails with the reason instead of waiting.
+ */
+public class RenderCoordinator {
+
+	/** How long a worker may take to load a scene, in milliseconds */
+	private static final int LOAD_TIMEOUT = 10 * 60 * 1000;
+
+	/** How long a block may take before any block of the job is done */
+	private static final long FIRST_TILE_TIMEOUT = 10 * 60 * 1000;
+
+	/** The least time a block is allowed once some are done */
+	private static final long MIN_TILE_TIMEOUT = 60 * 1000;
+
+	/** How many times the slowest block so far a block may take */
+	private static final long TILE_TIMEOUT_FACTOR = 10;
+
+	/** How often to check the deadline of a block, in milliseconds */
+	private static final int POLL_INTERVAL = 1000;
+
+	/** The socket the workers connect to */
+	private final ServerSocket server;
+
+	/** The connections to the workers, live or not */
+	private final ArrayList<Thread> connections = new ArrayList<Thread>();
+
+	/** The scene being rendered, or null between scenes */
+	private Job job = null;
+
+	/** Whether close() was called */
+	private boolean closed = false;
+
+	/** The number of open worker connections */
+	private final AtomicInteger liveConnections = new AtomicInteger(0);
+
+	/**
+	 * Start accepting workers.
+	 *
+	 * @param port
+	 *            the TCP port to listen on
+	 */
+	public RenderCoordinator(int port) {
+
+		try {
+			server = new ServerSocket(port);
+		} catch (IOException e) {
+			throw new Error("Cannot listen on port " + port + ".", e);
+		}
+		Thread acceptor = new Thread("render-coordinator") {
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		System.err.println("Waiting for workers on port "
+				+ server.getLocalPort());
+	}
+
+	/**
+	 * Render a scene on the workers into its image.
+	 *
+	 * @param scene
+	 *            the parsed scene
+	 * @param filename
+	 *            the file the scene was parsed from, which the workers load
+	 */
+	public void render(Scene scene, String filename) {
+
+		if (!hasSampleLimit(scene))
+			throw new Error(filename + " has a time limit but no maxSamples; "
+					+ "set maxSamples to render it on workers.");
+
+		Image image = scene.getImage();
+		boolean display = RayTracer.openViewer(image);
+		System.err.print("Starting render...");
+
+		File file = new File(filename).getAbsoluteFile();
+		String hash;
+		try {
+			hash = RenderProtocol.hash(file);
+		} catch (IOException e) {
+			throw new Error("Cannot read " + file + ".", e);
+		}
+
+		long startTime = System.currentTimeMillis();
+		Job current = new Job(file.getPath(), hash, image.getWidth(),
+				image.getHeight());
+		synchronized (this) {
+			job = current;
+			notifyAll();
+		}
+
+		// Write the blocks into the image as they come back
+		AccumulationBuffer accum = new AccumulationBuffer(image.getWidth(),
+				image.getHeight());
+		boolean[] done = new boolean[current.numBlocks];
+		Color pixelColor = new Color();
+		for (int i = 0; i < current.numBlocks;) {
+			Result result;
+			try {
+				result = current.finished.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new Error("Interrupted while waiting for render workers.");
+			}
+			if (result == null) {
+				int rejected = current.rejected.get();
+				if (current.rendering.get() == 0 && rejected > 0
+						&& rejected >= liveConnections.get()) {
+					synchronized (this) {
+						job = null;
+					}
+					throw new Error("No worker can render " + current.path
+							+ ": " + current.failure);
+				}
+				continue;
+			}
+			if (done[result.block])
+				continue;
+			done[result.block] = true;
+
+			int offsetX = current.blockX[result.block];
+			int offsetY = current.blockY[result.block];
+			int sizeX = current.sizeX(result.block);
+			int sizeY = current.sizeY(result.block);
+			int k = 0;
+			for (int y = offsetY; y < offsetY + sizeY; y++) {
+				for (int x = offsetX; x < offsetX + sizeX; x++, k += 3) {
+					pixelColor.set(result.data[k], result.data[k + 1],
+							result.data[k + 2]);
+					accum.add(x, y, pixelColor);
+				}
+			}
+			accum.resolve(image, offsetX, offsetY, sizeX, sizeY);
+			RayTracer.showBlock(image, offsetX, offsetY, ++i,
+					current.numBlocks, display);
+		}
+		synchronized (this) {
+			job = null;
+		}
+
+		long totalTime = System.currentTimeMillis() - startTime;
+		System.out.println("\nDone.  Total rendering time: "
+				+ (totalTime / 1000.0) + " seconds (distributed)");
+	}
+
+	/**
+	 * Whether the progressive schedule of a scene ends after a number of
+	 * samples, which the workers need since they don't keep time.
+	 */
+	static boolean hasSampleLimit(Scene scene) {
+		ProgressiveSettings progressive = scene.getProgressive();
+		return progressive == null
+				|| progressive.getMaxSamples(scene.getSampler()
+						.getNumSamples()) < Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Tell the workers that there is no more work and stop listening.
+	 */
+	public void close() {
+
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			server.close();
+		} catch (IOException e) {
+			// Nothing more to accept anyway
+		}
+		Thread[] threads;
+		synchronized (connections) {
+			threads = connections.toArray(new Thread[connections.size()]);
+		}
+		for (Thread t : threads) {
+			try {
+				t.join(1000);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Accept workers until the server socket closes, serving each connection
+	 * on its own thread.
+	 */
+	private void accept() {
+
+		while (true) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread t = new Thread("render-connection-"
+					+ socket.getRemoteSocketAddress()) {
+				public void run() {
+					serve(socket);
+				}
+			};
+			t.setDaemon(true);
+			synchronized (connections) {
+				connections.add(t);
+			}
+			t.start();
+		}
+	}
+
+	/**
+	 * Wait for a job other than the last one this connection worked on.
+	 *
+	 * @return the job, or null once the coordinator is closed
+	 */
+	private synchronized Job nextJob(Job last) throws InterruptedException {
+
+		while (!closed && (job == null || job == last))
+			wait();
+		return closed ? null : job;
+	}
+
+	/**
+	 * Hand out blocks to one worker connection until the coordinator closes
+	 * or the connection breaks.
+	 */
+	private void serve(Socket socket) {
+
+		Job last = null;
+		boolean rendering = false;
+		int block = -1;
+		liveConnections.incrementAndGet();
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+
+			Job current;
+			while ((current = nextJob(last)) != null) {
+				if (rendering)
+					last.rendering.decrementAndGet();
+				rendering = false;
+				last = current;
+
+				// Have the worker load the scene
+				out.writeByte(RenderProtocol.JOB);
+				out.writeUTF(current.path);
+				out.writeUTF(current.hash);
+				out.flush();
+				socket.setSoTimeout(LOAD_TIMEOUT);
+				byte reply = in.readByte();
+				if (reply == RenderProtocol.ERROR) {
+					current.failure = in.readUTF();
+					current.rejected.incrementAndGet();
+					System.err.println("\nWorker "
+							+ socket.getRemoteSocketAddress()
+							+ " cannot render " + current.path + ": "
+							+ current.failure);
+					continue;
+				} else if (reply != RenderProtocol.OK)
+					throw new IOException("Unexpected message " + reply);
+				current.rendering.incrementAndGet();
+				rendering = true;
+
+				// Render blocks until none are left
+				while (current.completed.get() < current.numBlocks) {
+					Integer next = current.pending.poll(100,
+							TimeUnit.MILLISECONDS);
+					if (next == null)
+						continue;
+					block = next;
+					out.writeByte(RenderProtocol.TILE);
+					out.writeInt(block);
+					out.writeInt(current.blockX[block]);
+					out.writeInt(current.blockY[block]);
+					out.writeInt(current.sizeX(block));
+					out.writeInt(current.sizeY(block));
+					out.flush();
+
+					long sent = System.currentTimeMillis();
+					byte type = awaitResult(socket, in, current, sent);
+					if (type != RenderProtocol.RESULT || in.readInt() != block)
+						throw new IOException("Unexpected result");
+					float[] data = new float[3 * current.sizeX(block)
+							* current.sizeY(block)];
+					for (int k = 0; k < data.length; k++)
+						data[k] = in.readFloat();
+					current.tileDone(System.currentTimeMillis() - sent);
+					current.completed.incrementAndGet();
+					current.finished.add(new Result(block, data));
+					block = -1;
+				}
+			}
+
+			out.writeByte(RenderProtocol.BYE);
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("\nLost worker "
+					+ socket.getRemoteSocketAddress() + ": " + e);
+		} catch (InterruptedException e) {
+			// Shutting down
+		} finally {
+			// Give the unfinished block to another worker
+			if (block >= 0)
+				last.pending.addFirst(block);
+			if (rendering)
+				last.rendering.decrementAndGet();
+			liveConnections.decrementAndGet();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already gone
+			}
+		}
+	}
+
+	/**
+	 * Wait for the first byte of a worker's answer to a block, giving up once
+	 * the block's deadline has passed. The deadline is checked every
+	 * POLL_INTERVAL, so it tightens as other workers finish blocks.
+	 *
+	 * @param sent
+	 *            when the block was sent
+	 * @return the type of the answer
+	 * @throws IOException
+	 *             if the connection breaks or the deadline passes; the rest
+	 *             of the answer is then read with the block's timeout
+	 */
+	private static byte awaitResult(Socket socket, DataInputStream in,
+			Job job, long sent) throws IOException {
+
+		socket.setSoTimeout(POLL_INTERVAL);
+		while (true) {
+			try {
+				byte type = in.readByte();
+				socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE,
+						job.tileTimeout()));
+				return type;
+			} catch (SocketTimeoutException e) {
+				long timeout = job.tileTimeout();
+				if (System.currentTimeMillis() - sent > timeout)
+					throw new IOException("No result within " + timeout
+							/ 1000.0 + " seconds");
+			}
+		}
+	}
+
+	/**
+	 * The blocks of one scene: those not yet handed out and those finished.
+	 */
+	private static final class Job {
+
+		final String path, hash;
+		final int width, height;
+		final int[] blockX, blockY;
+		final int numBlocks;
+		final LinkedBlockingDeque<Integer> pending = new LinkedBlockingDeque<Integer>();
+		final BlockingQueue<Result> finished = new LinkedBlockingQueue<Result>();
+		final AtomicInteger completed = new AtomicInteger(0);
+
+		/** The connections rendering the job and those that refused it */
+		final AtomicInteger rendering = new AtomicInteger(0);
+		final AtomicInteger rejected = new AtomicInteger(0);
+
+		/** Why the last worker to refuse the job did so */
+		volatile String failure;
+
+		/** The longest time a finished block took, in milliseconds */
+		private long slowestTile = 0;
+
+		Job(String path, String hash, int width, int height) {
+
+			this.path = path;
+			this.hash = hash;
+			this.width = width;
+			this.height = height;
+			int[][] blocks = RayTracer.spiralBlocks(width, height);
+			blockX = blocks[0];
+			blockY = blocks[1];
+			numBlocks = blockX.length;
+			for (int i = 0; i < numBlocks; i++)
+				pending.add(i);
+		}
+
+		synchronized void tileDone(long time) {
+			slowestTile = Math.max(slowestTile, Math.max(1, time));
+		}
+
+		/**
+		 * @return how long a block may take before its worker is dropped, in
+		 *         milliseconds
+		 */
+		synchronized long tileTimeout() {
+			if (slowestTile == 0)
+				return FIRST_TILE_TIMEOUT;
+			return Math.max(MIN_TILE_TIMEOUT, TILE_TIMEOUT_FACTOR
+					* slowestTile);
+		}
+
+		int sizeX(int block) {
+			return Math.min(width - blockX[block], RayTracer.SUB_WIDTH);
+		}
+
+		int sizeY(int block) {
+			return Math.min(height - blockY[block], RayTracer.SUB_HEIGHT);
+		}
+	}
+
+	/**
+	 * A finished block.
+	 */
+	private static final class Result {
+
+		final int block;
+		final float[] data;
+
+		Result(int block, float[] data) {
+			this.block = block;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package ray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * The messages between a RenderCoordinator and its RenderWorkers. Each message
+ * is a type byte followed by its fields, written with DataOutputStream:
+ *
+ * JOB path hash: render the scene in the file at path (UTF strings), whose
+ * contents and meshes have the given hash (see hash()). The worker answers
+ * OK, or ERROR message if it can't load the scene.
+ *
+ * TILE index x y width height: render a block of the image of the current job
+ * (ints). The worker answers RESULT index followed by the linear mean radiance
+ * of the block's pixels, row by row, as three floats per pixel.
+ *
+ * BYE: there is no more work; close the connection.
+ *
+ * The coordinator sends the first three, the worker the others.
+ */
+final class RenderProtocol {
+
+	static final byte JOB = 1;
+	static final byte TILE = 2;
+	static final byte BYE = 3;
+	static final byte OK = 4;
+	static final byte ERROR = 5;
+	static final byte RESULT = 6;
+
+	private RenderProtocol() {
+	}
+
+	/**
+	 * Hash a scene file together with the mesh files it refers to (the data
+	 * of its surfaces, found relative to the scene as Parser does), so that a
+	 * worker whose copy of any of them differs refuses the job. A missing mesh
+	 * is hashed as such.
+	 *
+	 * @return the SHA-256 hash of the files' contents, in hex
+	 */
+	static String hash(File file) throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-256 is not available.", e);
+		}
+		update(digest, file);
+
+		NodeList data;
+		try {
+			data = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(file).getElementsByTagName("data");
+		} catch (ParserConfigurationException e) {
+			throw new Error("No XML parser is available.", e);
+		} catch (SAXException e) {
+			throw new IOException("Cannot parse " + file + ".", e);
+		}
+		for (int i = 0; i < data.getLength(); i++) {
+			String name = data.item(i).getTextContent().trim();
+			File mesh = new File(name);
+			if (!mesh.isAbsolute())
+				mesh = new File(file.getParentFile(), name);
+			digest.update(name.getBytes(StandardCharsets.UTF_8));
+			if (mesh.isFile())
+				update(digest, mesh);
+			else
+				digest.update((byte) 0);
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+
+	/**
+	 * Add the contents of a file to a digest, a buffer at a time, since
+	 * meshes can be large.
+	 */
+	private static void update(MessageDigest digest, File file)
+			throws IOException {
+
+		byte[] buffer = new byte[1 << 16];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+
+import ray.io.Parser;
+import ray.misc.AccumulationBuffer;
+import ray.misc.Color;
+import ray.misc.Image;
+import ray.misc.ProgressiveSettings;
+import ray.misc.RenderContext;
+import ray.misc.Scene;
+import ray.sampling.SampleGenerator;
+
+/**
+ * Renders image blocks for a RenderCoordinator. A worker process opens one
+ * connection to the coordinator per thread; each connection renders one block
+ * at a time with its own sampler and work space, like a thread of
+ * RayTracer.renderImage(). The connections share the scenes, which are loaded
+ * once per process.
+ */
+public class RenderWorker implements Runnable {
+
+	/** How long to keep trying to reach the coordinator, in milliseconds */
+	private static final long CONNECT_TIMEOUT = 30000;
+
+	/** The scenes loaded so far, by path and hash */
+	private static final HashMap<String, Scene> scenes = new HashMap<String, Scene>();
+
+	private final String host;
+	private final int port;
+
+	/** The scene of the current job and its samples */
+	private Scene scene;
+	private SampleGenerator sampler;
+	private AccumulationBuffer accum;
+	private Image image;
+	private final RenderContext context = new RenderContext();
+
+	protected RenderWorker(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Render blocks for a coordinator until it has no more work.
+	 *
+	 * @param address
+	 *            the coordinator's host:port
+	 * @param numThreads
+	 *            the number of connections to open
+	 */
+	public static void serve(String address, int numThreads) {
+
+		int colon = address.lastIndexOf(':');
+		if (colon < 0)
+			throw new Error("Expected host:port, got " + address);
+		String host = address.substring(0, colon);
+		int port = Integer.parseInt(address.substring(colon + 1));
+
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new RenderWorker(host, port),
+					"render-worker-" + i);
+			threads[i].start();
+		}
+		for (int i = 0; i < numThreads; i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				throw new Error("Interrupted while waiting for render workers.");
+			}
+		}
+	}
+
+	public void run() {
+
+		Socket socket = connect();
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+
+			while (true) {
+				byte type = in.readByte();
+				if (type == RenderProtocol.BYE)
+					break;
+				else if (type == RenderProtocol.JOB) {
+					String path = in.readUTF();
+					String hash = in.readUTF();
+					try {
+						load(path, hash);
+						out.writeByte(RenderProtocol.OK);
+					} catch (Throwable e) {
+						// Parser and scene errors are thrown as Errors
+						scene = null;
+						out.writeByte(RenderProtocol.ERROR);
+						out.writeUTF(String.valueOf(e.getMessage()));
+					}
+				} else if (type == RenderProtocol.TILE) {
+					int block = in.readInt();
+					int offsetX = in.readInt();
+					int offsetY = in.readInt();
+					int sizeX = in.readInt();
+					int sizeY = in.readInt();
+					if (scene == null)
+						throw new IOException("Block without a scene");
+					renderTile(offsetX, offsetY, sizeX, sizeY);
+
+					out.writeByte(RenderProtocol.RESULT);
+					out.writeInt(block);
+					Color pixelColor = new Color();
+					for (int y = offsetY; y < offsetY + sizeY; y++) {
+						for (int x = offsetX; x < offsetX + sizeX; x++) {
+							accum.getMean(pixelColor, x, y);
+							out.writeFloat((float) pixelColor.r);
+							out.writeFloat((float) pixelColor.g);
+							out.writeFloat((float) pixelColor.b);
+						}
+					}
+				} else
+					throw new IOException("Unexpected message " + type);
+				out.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("Lost coordinator: " + e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already gone
+			}
+		}
+	}
+
+	/**
+	 * Connect to the coordinator, waiting for it to come up if need be.
+	 */
+	private Socket connect() {
+
+		long start = System.currentTimeMillis();
+		while (true) {
+			try {
+				return new Socket(host, port);
+			} catch (IOException e) {
+				if (System.currentTimeMillis() - start > CONNECT_TIMEOUT)
+					throw new Error("Cannot reach the coordinator at " + host
+							+ ":" + port + ".", e);
+			}
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				throw new Error("Interrupted while connecting.");
+			}
+		}
+	}
+
+	/**
+	 * Make the scene in a file the current one, loading it unless another
+	 * connection already has.
+	 */
+	private void load(String path, String hash) throws IOException {
+
+		Scene loaded;
+		synchronized (scenes) {
+			String key = path + "#" + hash;
+			loaded = scenes.get(key);
+			if (loaded == null) {
+				if (!RenderProtocol.hash(new File(path)).equals(hash))
+					throw new IOException(path
+							+ " differs from the coordinator's copy");
+				loaded = (Scene) new Parser().parse(path, Scene.class);
+				if (loaded == null)
+					throw new IOException("Cannot parse " + path);
+				if (!RenderCoordinator.hasSampleLimit(loaded))
+					throw new IOException(path + " has no sample limit");
+				Image sceneImage = loaded.getImage();
+				loaded.getCamera().setAspectRatioKeepYFOV(
+						((double) sceneImage.getWidth())
+								/ sceneImage.getHeight());
+				loaded.initAccelerationStructure();
+				scenes.put(key, loaded);
+			}
+		}
+		if (loaded != scene) {
+			scene = loaded;
+			sampler = loaded.getSampler().copy();
+			image = new Image(loaded.getImage().getWidth(), loaded.getImage()
+					.getHeight());
+			accum = new AccumulationBuffer(image.getWidth(), image.getHeight());
+		}
+	}
+
+	/**
+	 * Render a block from scratch with the scene's progressive schedule,
+	 * passes and all, as RayTracer.renderImage() would.
+	 */
+	private void renderTile(int offsetX, int offsetY, int sizeX, int sizeY) {
+
+		accum.clear(offsetX, offsetY, sizeX, sizeY);
+
+		int patternSize = sampler.getNumSamples();
+		ProgressiveSettings progressive = scene.getProgressive();
+		int firstPassSamples = patternSize;
+		int samplesPerPass = patternSize;
+		int maxSamples = patternSize;
+		double errorThreshold = 0;
+		if (progressive != null) {
+			firstPassSamples = progressive.getMinSamples();
+			samplesPerPass = progressive.getSamplesPerPass();
+			maxSamples = progressive.getMaxSamples(patternSize);
+			errorThreshold = progressive.getErrorThreshold();
+		}
+
+		int samples = 0;
+		for (int pass = 0; samples < maxSamples; pass++) {
+			int passSamples = Math.min(pass == 0 ? firstPassSamples
+					: samplesPerPass, maxSamples - samples);
+			int incomplete = RayTracer.renderBlock(scene, sampler, context,
+					accum, image, passSamples, maxSamples, errorThreshold,
+					offsetX, offsetY, sizeX, sizeY);
+			samples += passSamples;
+			if (incomplete == 0)
+				break;
+		}
+	}
+}
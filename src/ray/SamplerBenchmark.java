@@ -0,0 +1,154 @@
+package ray;
+
+import ray.camera.Camera;
+import ray.io.Parser;
+import ray.misc.AccumulationBuffer;
+import ray.misc.Color;
+import ray.misc.Image;
+import ray.misc.RenderContext;
+import ray.misc.Scene;
+import ray.sampling.HaltonSampler;
+import ray.sampling.IndependentSampler;
+import ray.sampling.JitteredSampler;
+import ray.sampling.SampleGenerator;
+import ray.sampling.SobolSampler;
+import ray.sampling.ZeroTwoSequenceSampler;
+
+/**
+ * Measures how fast each sampler converges on a scene. A small rendering with
+ * many Sobol samples serves as the reference; then the scene is rendered with
+ * every sampler at 1, 4, 16, ... samples per pixel and the root mean square
+ * difference of the pixel means (before gamma correction) from the reference
+ * is printed, one row per sample count. The rate is the slope of the error
+ * against the number of samples on a log-log scale, -0.5 for plain Monte
+ * Carlo.
+ * 
+ * Usage: java ray.SamplerBenchmark scene.xml [size [maxSamples
+ * [referenceSamples]]]
+ * 
+ * The defaults are a 64x64 image, 256 samples and a reference of 4096
+ * samples, e.g. for scene/cbox-direct-5.xml.
+ */
+public class SamplerBenchmark {
+
+	private static final String[] NAMES = { "Independent", "Jittered",
+			"Halton", "ZeroTwo", "Sobol" };
+
+	public static void main(String[] args) {
+
+		if (args.length < 1 || args.length > 4) {
+			System.err.println("usage: java ray.SamplerBenchmark scene.xml [size [maxSamples [referenceSamples]]]");
+			System.exit(2);
+		}
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int maxSamples = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+		int referenceSamples = args.length > 3 ? Integer.parseInt(args[3])
+				: 4096;
+
+		Scene scene = (Scene) new Parser().parse(args[0], Scene.class);
+		scene.setImage(new Image(size, size));
+		Camera cam = scene.getCamera();
+		cam.setAspectRatioKeepYFOV(1);
+		scene.initAccelerationStructure();
+
+		SobolSampler reference = new SobolSampler();
+		reference.setNumSamples(referenceSamples);
+		reference.setSeed(0x5eed);
+		AccumulationBuffer truth = render(scene, reference);
+
+		System.out.print("\nsamples");
+		for (String name : NAMES)
+			System.out.printf(" %12s", name);
+		System.out.println();
+		double[] first = new double[NAMES.length];
+		double[] last = new double[NAMES.length];
+		int firstSamples = 1, lastSamples = 1;
+		for (int n = 1; n <= maxSamples; n *= 4) {
+			System.out.printf("%7d", n);
+			for (int s = 0; s < NAMES.length; s++) {
+				double error = rmsError(render(scene, create(s, n)), truth);
+				System.out.printf(" %12.6f", error);
+				if (n == 1)
+					first[s] = error;
+				last[s] = error;
+			}
+			System.out.println();
+			lastSamples = n;
+		}
+		if (lastSamples > firstSamples) {
+			System.out.print("   rate");
+			double samplesRatio = Math.log((double) lastSamples / firstSamples);
+			for (int s = 0; s < NAMES.length; s++)
+				System.out.printf(" %12.3f", Math.log(last[s] / first[s])
+						/ samplesRatio);
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Create sampler number s of NAMES with n samples per pixel (a power of
+	 * four).
+	 */
+	private static SampleGenerator create(int s, int n) {
+
+		switch (s) {
+		case 0:
+			IndependentSampler independent = new IndependentSampler();
+			independent.setNumSamples(n);
+			return independent;
+		case 1:
+			JitteredSampler jittered = new JitteredSampler();
+			int side = (int) Math.round(Math.sqrt(n));
+			jittered.setNumSamplesU(side);
+			jittered.setNumSamplesV(side);
+			return jittered;
+		case 2:
+			HaltonSampler halton = new HaltonSampler();
+			halton.setNumSamples(n);
+			return halton;
+		case 3:
+			ZeroTwoSequenceSampler zeroTwo = new ZeroTwoSequenceSampler();
+			zeroTwo.setNumSamples(n);
+			return zeroTwo;
+		default:
+			SobolSampler sobol = new SobolSampler();
+			sobol.setNumSamples(n);
+			return sobol;
+		}
+	}
+
+	/**
+	 * Render the whole image with all the samples of a sampler.
+	 */
+	private static AccumulationBuffer render(Scene scene,
+			SampleGenerator sampler) {
+
+		Image image = scene.getImage();
+		int n = sampler.getNumSamples();
+		AccumulationBuffer accum = new AccumulationBuffer(image.getWidth(),
+				image.getHeight());
+		RayTracer.renderBlock(scene, sampler, new RenderContext(), accum,
+				image, n, n, 0, 0, 0, image.getWidth(), image.getHeight());
+		return accum;
+	}
+
+	/**
+	 * The root mean square difference of the channels of the pixel means of
+	 * two renderings.
+	 */
+	private static double rmsError(AccumulationBuffer a, AccumulationBuffer b) {
+
+		Color ca = new Color();
+		Color cb = new Color();
+		double sumSquares = 0;
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				a.getMean(ca, x, y);
+				b.getMean(cb, x, y);
+				sumSquares += (ca.r - cb.r) * (ca.r - cb.r) + (ca.g - cb.g)
+						* (ca.g - cb.g) + (ca.b - cb.b) * (ca.b - cb.b);
+			}
+		}
+		return Math.sqrt(sumSquares / (3 * a.getWidth() * a.getHeight()));
+	}
+}
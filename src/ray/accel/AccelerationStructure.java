@@ -1,10 +1,34 @@
 package ray.accel;
 
+import java.util.ArrayList;
+
+import ray.misc.HitBatch;
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RayBatch;
+import ray.surface.Surface;
 
+/**
+ * A structure that speeds up ray casting against a set of surfaces. The
+ * structure is created empty (so that the parser can create it and set its
+ * options) and filled once by build().
+ */
 public interface AccelerationStructure {
 
+	/**
+	 * Build the structure for the given surfaces, replacing any previous
+	 * contents.
+	 * 
+	 * @param inSurfaces
+	 *            the surfaces to hold
+	 */
+	public void build(ArrayList<Surface> inSurfaces);
+
+	/**
+	 * @return the bounding box of all the surfaces in this structure
+	 */
+	public AxisAlignedBoundingBox getBoundingBox();
+
 	/**
 	 * Find the first intersection of ray with a surface in this structure.
 	 * 
@@ -17,7 +41,8 @@ public interface AccelerationStructure {
 	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray);
 
 	/**
-	 * Find an intersection of ray with a surface in this structure.
+	 * Find an intersection of ray with a surface in this structure. The search
+	 * stops at the first intersection found, which need not be the closest.
 	 * 
 	 * @param outRecord
 	 *            the output IntersectionRecord. Unchanged if no intersection.
@@ -27,4 +52,37 @@ public interface AccelerationStructure {
 	 */
 	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray);
 
+	/**
+	 * Test whether any surface in this structure blocks ray between ray.start
+	 * and ray.end. This is the query for shadow rays: it stops at the first
+	 * blocker and computes nothing about the hit point.
+	 * 
+	 * @param ray
+	 *            the ray to test
+	 * @return true if the ray is blocked
+	 */
+	public boolean occluded(Ray ray);
+
+	/**
+	 * Find the first intersection of every ray in a batch. Structures may
+	 * trace coherent rays (such as the camera rays of one pixel) together, so
+	 * that each node is fetched once for many rays.
+	 * 
+	 * @param rays
+	 *            the rays to intersect; they are not changed
+	 * @param hits
+	 *            the output: hits.hit[i] and hits.records[i] for rays[i]
+	 */
+	public void intersect(RayBatch rays, HitBatch hits);
+
+	/**
+	 * Test every ray in a batch for occlusion, as occluded(Ray) does for one.
+	 * 
+	 * @param rays
+	 *            the rays to test; they are not changed
+	 * @param hits
+	 *            the output: hits.hit[i] is true if rays[i] is blocked
+	 */
+	public void occluded(RayBatch rays, HitBatch hits);
+
 }
\ No newline at end of file
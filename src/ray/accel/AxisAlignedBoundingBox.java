@@ -50,8 +50,14 @@ public class AxisAlignedBoundingBox {
 	 */
 	public void add(AxisAlignedBoundingBox inBox) {
 
-		add(inBox.xMin, inBox.yMin, inBox.zMin);
-		add(inBox.xMax, inBox.yMax, inBox.zMax);
+		// Bound by bound rather than corner by corner, so that adding an empty
+		// box leaves this one unchanged
+		xMin = (inBox.xMin < xMin ? inBox.xMin : xMin);
+		yMin = (inBox.yMin < yMin ? inBox.yMin : yMin);
+		zMin = (inBox.zMin < zMin ? inBox.zMin : zMin);
+		xMax = (inBox.xMax > xMax ? inBox.xMax : xMax);
+		yMax = (inBox.yMax > yMax ? inBox.yMax : yMax);
+		zMax = (inBox.zMax > zMax ? inBox.zMax : zMax);
 
 	}
 
@@ -125,6 +131,45 @@ public class AxisAlignedBoundingBox {
 
 	}
 
+	/**
+	 * Return the surface area of this box, or zero if it contains nothing
+	 * 
+	 * @return
+	 */
+	public double surfaceArea() {
+
+		double sx = xMax - xMin;
+		double sy = yMax - yMin;
+		double sz = zMax - zMin;
+		if (sx < 0 || sy < 0 || sz < 0)
+			return 0;
+		return 2 * (sx * sy + sy * sz + sz * sx);
+	}
+
+	/**
+	 * Return the lower bound of the box along one axis
+	 * 
+	 * @param axis
+	 *            X, Y or Z
+	 * @return
+	 */
+	public double getMin(int axis) {
+
+		return (axis == X ? xMin : (axis == Y ? yMin : zMin));
+	}
+
+	/**
+	 * Return the upper bound of the box along one axis
+	 * 
+	 * @param axis
+	 *            X, Y or Z
+	 * @return
+	 */
+	public double getMax(int axis) {
+
+		return (axis == X ? xMax : (axis == Y ? yMax : zMax));
+	}
+
 	public Vector3 getExtents() {
 
 		return new Vector3(xMax - xMin, yMax - yMin, zMax - zMin);
@@ -139,62 +184,56 @@ public class AxisAlignedBoundingBox {
 	 */
 	public boolean intersect(Ray ray) {
 
-		Point3 o = ray.origin;
-		Vector3 d = ray.direction;
+		return intersectDistance(ray) != Double.POSITIVE_INFINITY;
+	}
 
-		double ox = o.x;
-		double oy = o.y;
-		double oz = o.z;
-		double dx = d.x;
-		double dy = d.y;
-		double dz = d.z;
+	/**
+	 * Find where ray enters this box. Only the part of the ray between
+	 * ray.start and ray.end counts, so traversal code can skip boxes that lie
+	 * beyond the closest hit found so far by shortening the ray.
+	 * 
+	 * @param ray
+	 *            the ray, with its inverse direction up to date
+	 * @return the t value at which the ray enters the box (which is less than
+	 *         ray.start if the ray starts inside), or positive infinity if the
+	 *         ray misses the box
+	 */
+	public double intersectDistance(Ray ray) {
+
+		Point3 o = ray.origin;
+		Vector3 inv = ray.invDirection;
 
 		// a three-slab intersection test. We'll get in and out t values for
 		// all three axes. For instance on the x axis:
 		// o.x + t d.x = 1 => t = (1 - o.x) / d.x
 		// o.x + t d.x = -1 => t = (-1 - o.x) / d.x
-		// This code is straight from Shirley's section 10.9.1
-
-		double tMin, tMax;
-		if (dx >= 0) {
-			tMin = (xMin - ox) / dx;
-			tMax = (xMax - ox) / dx;
-		} else {
-			tMin = (xMax - ox) / dx;
-			tMax = (xMin - ox) / dx;
-		}
-
-		double tyMin, tyMax;
-		if (dy >= 0) {
-			tyMin = (yMin - oy) / dy;
-			tyMax = (yMax - oy) / dy;
-		} else {
-			tyMin = (yMax - oy) / dy;
-			tyMax = (yMin - oy) / dy;
-		}
+		// This code is straight from Shirley's section 10.9.1, except that the
+		// ray supplies 1 / d and the sign of d, so the near and far planes are
+		// known without a test or a divide.
+
+		double tMin = ((ray.signX == 0 ? xMin : xMax) - o.x) * inv.x;
+		double tMax = ((ray.signX == 0 ? xMax : xMin) - o.x) * inv.x;
+
+		double tyMin = ((ray.signY == 0 ? yMin : yMax) - o.y) * inv.y;
+		double tyMax = ((ray.signY == 0 ? yMax : yMin) - o.y) * inv.y;
 		if (tMin > tyMax || tyMin > tMax)
-			return false;
+			return Double.POSITIVE_INFINITY;
 		if (tyMin > tMin)
 			tMin = tyMin;
 		if (tyMax < tMax)
 			tMax = tyMax;
 
-		double tzMin, tzMax;
-		if (dz >= 0) {
-			tzMin = (zMin - oz) / dz;
-			tzMax = (zMax - oz) / dz;
-		} else {
-			tzMin = (zMax - oz) / dz;
-			tzMax = (zMin - oz) / dz;
-		}
+		double tzMin = ((ray.signZ == 0 ? zMin : zMax) - o.z) * inv.z;
+		double tzMax = ((ray.signZ == 0 ? zMax : zMin) - o.z) * inv.z;
 		if (tMin > tzMax || tzMin > tMax)
-			return false;
+			return Double.POSITIVE_INFINITY;
 		if (tzMin > tMin)
 			tMin = tzMin;
 		if (tzMax < tMax)
 			tMax = tzMax;
 
-		return tMin < ray.end && tMax > ray.start;
+		return (tMin < ray.end && tMax > ray.start) ? tMin
+				: Double.POSITIVE_INFINITY;
 	}
 
 	/**
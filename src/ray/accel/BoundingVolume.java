@@ -10,8 +10,11 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
+import ray.misc.HitBatch;
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RayBatch;
+import ray.surface.Mesh;
 import ray.surface.Surface;
 
 /**
@@ -37,12 +40,20 @@ public class BoundingVolume implements AccelerationStructure {
 	protected final int depth;
 
 	/**
-	 * Private constructor used by split()
+	 * Constructor used by split()
 	 */
-	private BoundingVolume(int inDepth) {
+	protected BoundingVolume(int inDepth) {
 		depth = inDepth;
 	}
 
+	/**
+	 * Construct an empty bounding volume to be filled by build(). This is the
+	 * constructor used by the parser.
+	 */
+	public BoundingVolume() {
+		depth = 0;
+	}
+
 	public AxisAlignedBoundingBox getBoundingBox() {
 		return box;
 	}
@@ -56,13 +67,21 @@ public class BoundingVolume implements AccelerationStructure {
 	public BoundingVolume(ArrayList<Surface> inSurfaces) {
 
 		depth = 0;
+		build(inSurfaces);
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#build(java.util.ArrayList)
+	 */
+	public void build(ArrayList<Surface> inSurfaces) {
 
 		// Add all the input surfaces to ourselves
-		surfaces.addAll(inSurfaces);
+		surfaces = expandMeshes(inSurfaces);
+		left = right = null;
+		box.clear();
 		growToHold();
 
-		System.out
-				.println("Volume contains " + inSurfaces.size() + " objects.");
+		System.out.println("Volume contains " + surfaces.size() + " objects.");
 
 		// Divide if necessary
 		split();
@@ -71,10 +90,32 @@ public class BoundingVolume implements AccelerationStructure {
 
 	}
 
+	/**
+	 * Copy a list of surfaces, replacing each mesh by its triangles.
+	 * 
+	 * @param inSurfaces
+	 *            the surfaces of a scene
+	 * @return a new list of surfaces without meshes
+	 */
+	public static ArrayList<Surface> expandMeshes(ArrayList<Surface> inSurfaces) {
+
+		ArrayList<Surface> result = new ArrayList<Surface>(inSurfaces.size());
+		for (Surface s : inSurfaces) {
+			if (s instanceof Mesh) {
+				Mesh mesh = (Mesh) s;
+				result.ensureCapacity(result.size() + mesh.getNumTriangles());
+				for (int i = 0; i < mesh.getNumTriangles(); i++)
+					result.add(mesh.getTriangle(i));
+			} else
+				result.add(s);
+		}
+		return result;
+	}
+
 	/**
 	 * Grow the bounding volume to hold all the objects it encloses.
 	 */
-	private void growToHold() {
+	protected void growToHold() {
 
 		// Grow our bounding box
 		for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
@@ -84,9 +125,10 @@ public class BoundingVolume implements AccelerationStructure {
 	}
 
 	/**
-	 * Split this bounding volume into two children
+	 * Split this bounding volume into two children at the median of the
+	 * surface centers along the longest axis of the box.
 	 */
-	private void split() {
+	protected void split() {
 
 		// If we are small enough, stop
 		if (surfaces.size() < MAX_SURFACES_PER_LEAF) {
@@ -100,18 +142,7 @@ public class BoundingVolume implements AccelerationStructure {
 
 		// Break box along longest axis
 		int axis = box.longestAxis();// depth % 3;
-		Comparator<Surface> compare = null;
-		switch (axis) {
-		case AxisAlignedBoundingBox.X:
-			compare = Surface.X_COMPARE;
-			break;
-		case AxisAlignedBoundingBox.Y:
-			compare = Surface.Y_COMPARE;
-			break;
-		case AxisAlignedBoundingBox.Z:
-			compare = Surface.Z_COMPARE;
-			break;
-		}
+		Comparator<Surface> compare = Surface.newComparator(axis);
 
 		// Sort the surfaces
 		Collections.sort(surfaces, compare);
@@ -195,8 +226,71 @@ public class BoundingVolume implements AccelerationStructure {
 	}
 
 	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
-		// could do this more efficiently.
-		return getFirstIntersection(outRecord, ray);
+
+		// Check that the ray intersects the box
+		if (!box.intersect(ray))
+			return false;
+
+		// If we are a leaf, stop at the first surface hit
+		if (left == null && right == null) {
+			for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
+				if (iter.next().intersect(outRecord, ray))
+					return true;
+			}
+			return false;
+		}
+
+		return (left != null && left.getAnyIntersection(outRecord, ray))
+				|| (right != null && right.getAnyIntersection(outRecord, ray));
+	}
+
+	public boolean occluded(Ray ray) {
+
+		// Check that the ray intersects the box
+		if (!box.intersect(ray))
+			return false;
+
+		// If we are a leaf, stop at the first surface in the way
+		if (left == null && right == null) {
+			for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
+				if (iter.next().occluded(ray))
+					return true;
+			}
+			return false;
+		}
+
+		return (left != null && left.occluded(ray))
+				|| (right != null && right.occluded(ray));
+	}
+
+	/**
+	 * Trace the rays of the batch one at a time.
+	 * 
+	 * @see ray.accel.AccelerationStructure#intersect(ray.misc.RayBatch,
+	 *      ray.misc.HitBatch)
+	 */
+	public void intersect(RayBatch rays, HitBatch hits) {
+
+		Ray ray = new Ray();
+		for (int i = 0; i < rays.size; i++) {
+			rays.get(i, ray);
+			hits.hit[i] = getFirstIntersection(hits.records[i], ray);
+		}
+	}
+
+	/**
+	 * Test the rays of the batch one at a time.
+	 * 
+	 * @see ray.accel.AccelerationStructure#occluded(ray.misc.RayBatch,
+	 *      ray.misc.HitBatch)
+	 */
+	public void occluded(RayBatch rays, HitBatch hits) {
+
+		Ray ray = new Ray();
+		for (int i = 0; i < rays.size; i++) {
+			rays.get(i, ray);
+			hits.hit[i] = occluded(ray);
+		}
 	}
 
 }
@@ -0,0 +1,813 @@
+package ray.accel;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import ray.math.Vector3;
+import ray.misc.HitBatch;
+import ray.misc.IntersectionRecord;
+import ray.misc.Ray;
+import ray.misc.RayBatch;
+import ray.surface.Mesh;
+import ray.surface.MeshTriangle;
+import ray.surface.Surface;
+
+/**
+ * A bounding volume hierarchy packed into flat arrays. The hierarchy is first
+ * built by an ordinary BoundingVolume (median split by default, or any subclass
+ * such as SAHBoundingVolume), then laid out depth first so that the first
+ * child of a node always directly follows it. Rays are traced with an explicit
+ * stack of node indices, visiting the child the ray enters first and skipping
+ * any node the ray enters beyond the closest hit found so far, so no objects
+ * are created while tracing.
+ *
+ * Leaves refer to their primitives by index: a mesh triangle is stored as the
+ * pair (mesh, triangle index) and intersected directly against the mesh's
+ * arrays, so once built the structure keeps no object per triangle.
+ *
+ * Alternatively, with triangleData set to "precomputed", the first vertex and
+ * the two edge vectors of every triangle are stored in leaf order in one float
+ * array and triangles are tested by the Moller-Trumbore method. That costs 36
+ * bytes per triangle but reads one contiguous block per leaf instead of
+ * going through the mesh's index and vertex arrays.
+ *
+ * With precision set to "single" the node bounds are stored as floats and
+ * boxes are tested with float copies of the ray's origin and inverse
+ * direction, which halves the size of the node bounds. The bounds are rounded
+ * outward and padded to cover the rounding of ray origins, and the t interval
+ * of each test is widened by its worst rounding error, so that a float test
+ * never misses a box the ray enters. Triangles then use the precomputed float
+ * triangle data, tested in double precision, and shading stays in double.
+ *
+ * Batches of rays are traced in packets of up to PACKET_SIZE rays that walk
+ * the hierarchy together: each node is tested against the rays of the packet
+ * that are still active, and the packet descends as long as any of them hits
+ * it. This pays off for coherent rays such as the camera rays of one pixel.
+ *
+ * Select it in the scene file with
+ *
+ * <accelerationStructure type="FlatBoundingVolume"> <hierarchy
+ * type="SAHBoundingVolume"/> </accelerationStructure>
+ */
+public class FlatBoundingVolume implements AccelerationStructure {
+
+	/** The largest number of rays traced together by the batch methods */
+	public static final int PACKET_SIZE = 16;
+
+	/** The builder of the hierarchy that gets flattened */
+	protected BoundingVolume hierarchy = new BoundingVolume();
+
+	/**
+	 * Node bounds, six per node: xMin, xMax, yMin, yMax, zMin, zMax. Keeping
+	 * the bounds of each axis together lets the lower or upper bound be picked
+	 * by the sign of the ray direction.
+	 */
+	protected double[] bounds;
+
+	/** Whether to test boxes in single precision, see setPrecision() */
+	protected boolean singlePrecision = false;
+
+	/**
+	 * In single precision the node bounds in the layout of bounds, rounded
+	 * outward; bounds is then null.
+	 */
+	protected float[] singleBounds;
+
+	/**
+	 * The relative error bound of a float box test: 2 * gamma(3) in the
+	 * notation of Pharr and Humphreys, for the subtraction and multiplication
+	 * of a slab test and the rounding of the inverse direction.
+	 */
+	protected static final float SINGLE_ERROR = 2 * 3 * 0x1p-24f / (1 - 3 * 0x1p-24f);
+
+	/**
+	 * How far to pad single precision bounds, relative to the largest
+	 * coordinate of the scene, to cover rounding ray origins near the scene
+	 * to float.
+	 */
+	protected static final double SINGLE_PAD = 0x1p-21;
+
+	/**
+	 * Node contents, two per node. For an interior node the index of its second
+	 * child and INTERIOR; for a leaf the index of its first primitive and the
+	 * number of primitives. Traversal orders the children by where the ray
+	 * enters them, so no split axis is stored.
+	 */
+	protected int[] nodes;
+
+	/** The second entry of an interior node, less than any primitive count */
+	protected static final int INTERIOR = -1;
+
+	/**
+	 * The primitives of all the leaves, in leaf order, two ints each. For a
+	 * mesh triangle the index of the mesh in meshes and the index of the
+	 * triangle in the mesh; for any other surface its index in surfaces and -1.
+	 */
+	protected int[] primitives;
+
+	/** The meshes whose triangles are in the leaves */
+	protected Mesh[] meshes;
+
+	/** The surfaces in the leaves that are not mesh triangles */
+	protected Surface[] surfaces;
+
+	/** Whether to precompute triangle data, see setTriangleData() */
+	protected boolean precomputeTriangles = false;
+
+	/**
+	 * If precomputeTriangles is set, nine floats per primitive: the first
+	 * vertex, the edge to the second vertex and the edge to the third vertex
+	 * of a mesh triangle (unused for other surfaces).
+	 */
+	protected float[] triangleData;
+
+	/** The depth of the deepest leaf, which bounds the traversal stack */
+	protected int maxDepth;
+
+	/**
+	 * A traversal stack: the nodes still to visit, and the t value at which
+	 * the ray enters each of them.
+	 */
+	private static class Stack {
+		final int[] nodes;
+		final double[] t;
+
+		/**
+		 * For packets: the first ray of the packet that may hit each node,
+		 * the current end of each ray, and a ray to test surfaces with.
+		 */
+		final int[] first;
+		final double[] end = new double[PACKET_SIZE];
+		final Ray ray = new Ray();
+
+		/**
+		 * For single precision: the origin and inverse direction of the rays
+		 * being traced as floats, six per ray, indexed like the rays.
+		 */
+		float[] single = new float[6 * PACKET_SIZE];
+
+		Stack(int size) {
+			nodes = new int[size];
+			t = new double[size];
+			first = new int[size];
+		}
+	}
+
+	/** Traversal stacks, one per thread */
+	private final ThreadLocal<Stack> stacks = new ThreadLocal<Stack>() {
+		protected Stack initialValue() {
+			return new Stack(maxDepth + 1);
+		}
+	};
+
+	public FlatBoundingVolume() {
+	}
+
+	/**
+	 * Set the bounding volume that builds the hierarchy.
+	 *
+	 * @param hierarchy
+	 *            an empty bounding volume with the wanted settings
+	 */
+	public void setHierarchy(BoundingVolume hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Choose how mesh triangles are stored in the leaves: "compact" (the
+	 * default) keeps only a mesh and triangle index per triangle,
+	 * "precomputed" also stores the data needed for a faster intersection
+	 * test.
+	 *
+	 * @param mode
+	 *            "compact" or "precomputed"
+	 */
+	public void setTriangleData(String mode) {
+		if (mode.equalsIgnoreCase("compact"))
+			precomputeTriangles = false;
+		else if (mode.equalsIgnoreCase("precomputed"))
+			precomputeTriangles = true;
+		else
+			throw new Error("Unknown triangle data mode \"" + mode
+					+ "\", expected compact or precomputed");
+	}
+
+	/**
+	 * Choose the precision of box tests: "double" (the default) or "single".
+	 * Single precision also precomputes the triangle data, see
+	 * setTriangleData().
+	 *
+	 * @param precision
+	 *            "double" or "single"
+	 */
+	public void setPrecision(String precision) {
+		if (precision.equalsIgnoreCase("double"))
+			singlePrecision = false;
+		else if (precision.equalsIgnoreCase("single"))
+			singlePrecision = true;
+		else
+			throw new Error("Unknown precision \"" + precision
+					+ "\", expected double or single");
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#build(java.util.ArrayList)
+	 */
+	public void build(ArrayList<Surface> inSurfaces) {
+
+		hierarchy.build(inSurfaces);
+
+		// Size the arrays
+		int[] counts = new int[3];
+		count(hierarchy, counts);
+		bounds = new double[6 * counts[0]];
+		nodes = new int[2 * counts[0]];
+		primitives = new int[2 * counts[1]];
+		maxDepth = counts[2];
+
+		// Lay out the nodes
+		counts[0] = counts[1] = 0;
+		IdentityHashMap<Surface, Integer> meshIndices = new IdentityHashMap<Surface, Integer>();
+		ArrayList<Surface> otherSurfaces = new ArrayList<Surface>();
+		flatten(hierarchy, counts, meshIndices, otherSurfaces);
+		meshes = new Mesh[meshIndices.size()];
+		for (Map.Entry<Surface, Integer> entry : meshIndices.entrySet())
+			meshes[entry.getValue()] = (Mesh) entry.getKey();
+		surfaces = otherSurfaces.toArray(new Surface[otherSurfaces.size()]);
+		triangleData = precomputeTriangles || singlePrecision ? precompute()
+				: null;
+		if (singlePrecision) {
+			singleBounds = roundOutward(bounds);
+			bounds = null;
+		} else
+			singleBounds = null;
+
+		// The flat copy is all we need, let the tree go
+		hierarchy.left = hierarchy.right = null;
+		hierarchy.surfaces = new ArrayList<Surface>();
+
+		System.out.println("Flattened " + (nodes.length / 2) + " nodes, depth "
+				+ maxDepth + ".");
+	}
+
+	/**
+	 * Convert node bounds to floats, rounding every minimum down and every
+	 * maximum up after padding them by SINGLE_PAD of the scene's size.
+	 */
+	protected static float[] roundOutward(double[] bounds) {
+
+		double size = 0;
+		for (int i = 0; i < 6; i++)
+			size = Math.max(size, Math.abs(bounds[i]));
+		double pad = SINGLE_PAD * size;
+
+		float[] result = new float[bounds.length];
+		for (int i = 0; i < bounds.length; i += 2) {
+			result[i] = Math.nextDown((float) (bounds[i] - pad));
+			result[i + 1] = Math.nextUp((float) (bounds[i + 1] + pad));
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the first vertex and the edge vectors of every mesh triangle
+	 * primitive.
+	 */
+	private float[] precompute() {
+
+		int n = primitives.length / 2;
+		float[] data = new float[9 * n];
+		for (int i = 0; i < n; i++) {
+			int triangle = primitives[2 * i + 1];
+			if (triangle < 0)
+				continue;
+			Mesh mesh = meshes[primitives[2 * i]];
+			for (int k = 0; k < 3; k++) {
+				float v0 = mesh.getTriangleVertex(triangle, 0, k);
+				data[9 * i + k] = v0;
+				data[9 * i + 3 + k] = mesh.getTriangleVertex(triangle, 1, k) - v0;
+				data[9 * i + 6 + k] = mesh.getTriangleVertex(triangle, 2, k) - v0;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Count the nodes, the surfaces and the depth of a hierarchy into
+	 * counts[0], counts[1] and counts[2].
+	 */
+	private void count(BoundingVolume node, int[] counts) {
+
+		counts[0]++;
+		counts[2] = Math.max(counts[2], node.depth);
+		if (node.left == null && node.right == null) {
+			counts[1] += node.surfaces.size();
+			return;
+		}
+		count(node.left, counts);
+		count(node.right, counts);
+	}
+
+	/**
+	 * Write a node and its children, depth first, starting at node index
+	 * next[0] and primitive index next[1]. Meshes are numbered in meshIndices
+	 * and other surfaces collected in otherSurfaces as they are met.
+	 *
+	 * @return the index of the node
+	 */
+	private int flatten(BoundingVolume node, int[] next,
+			IdentityHashMap<Surface, Integer> meshIndices,
+			ArrayList<Surface> otherSurfaces) {
+
+		int index = next[0]++;
+		AxisAlignedBoundingBox box = node.box;
+		bounds[6 * index] = box.xMin;
+		bounds[6 * index + 1] = box.xMax;
+		bounds[6 * index + 2] = box.yMin;
+		bounds[6 * index + 3] = box.yMax;
+		bounds[6 * index + 4] = box.zMin;
+		bounds[6 * index + 5] = box.zMax;
+
+		if (node.left == null && node.right == null) {
+			nodes[2 * index] = next[1];
+			nodes[2 * index + 1] = node.surfaces.size();
+			for (Surface s : node.surfaces) {
+				int p = 2 * next[1]++;
+				if (s instanceof MeshTriangle) {
+					MeshTriangle triangle = (MeshTriangle) s;
+					Integer mesh = meshIndices.get(triangle.getMesh());
+					if (mesh == null) {
+						mesh = meshIndices.size();
+						meshIndices.put(triangle.getMesh(), mesh);
+					}
+					primitives[p] = mesh;
+					primitives[p + 1] = triangle.index;
+				} else {
+					primitives[p] = otherSurfaces.size();
+					primitives[p + 1] = -1;
+					otherSurfaces.add(s);
+				}
+			}
+			return index;
+		}
+
+		flatten(node.left, next, meshIndices, otherSurfaces);
+		nodes[2 * index] = flatten(node.right, next, meshIndices,
+				otherSurfaces);
+		nodes[2 * index + 1] = INTERIOR;
+		return index;
+	}
+
+	/**
+	 * The traversal stack of the calling thread, deep enough for the current
+	 * hierarchy.
+	 */
+	private Stack stack() {
+
+		Stack stack = stacks.get();
+		if (stack.nodes.length <= maxDepth) {
+			stack = new Stack(maxDepth + 1);
+			stacks.set(stack);
+		}
+		return stack;
+	}
+
+	public AxisAlignedBoundingBox getBoundingBox() {
+		return hierarchy.getBoundingBox();
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getFirstIntersection(ray.misc.IntersectionRecord,
+	 *      ray.misc.Ray)
+	 */
+	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
+		return trace(outRecord, ray, false);
+	}
+
+	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
+		return trace(outRecord, ray, true);
+	}
+
+	public boolean occluded(Ray ray) {
+		return trace(null, ray, true);
+	}
+
+	/**
+	 * Trace a ray through the hierarchy.
+	 * 
+	 * @param outRecord
+	 *            the record for the hit, or null to only test occlusion
+	 * @param ray
+	 *            the ray to trace
+	 * @param any
+	 *            whether to stop at the first hit found instead of the closest
+	 * @return true if anything was hit
+	 */
+	private boolean trace(IntersectionRecord outRecord, Ray ray, boolean any) {
+
+		final Stack stack = stack();
+		final int[] nodes = this.nodes;
+		final int[] stackNodes = stack.nodes;
+		final double[] stackT = stack.t;
+		final float[] single = singleBounds == null ? null : stack.single;
+		if (single != null)
+			toSingle(ray.origin.x, ray.origin.y, ray.origin.z,
+					ray.invDirection.x, ray.invDirection.y, ray.invDirection.z,
+					single, 0);
+
+		// Each hit shortens the ray, so later surfaces only hit if closer and
+		// boxes entered beyond the hit are skipped
+		final double end = ray.end;
+		boolean hit = false;
+
+		int top = 0;
+		int node = 0;
+		if (enter(node, ray, single) == Double.POSITIVE_INFINITY)
+			return false;
+		while (true) {
+
+			int info = nodes[2 * node + 1];
+			if (info >= 0) {
+				// Leaf: test the surfaces
+				for (int i = nodes[2 * node], n = i + info; i < n; i++) {
+					if (outRecord == null ? occluded(i, ray) : intersect(i,
+							outRecord, ray)) {
+						if (any) {
+							ray.end = end;
+							return true;
+						}
+						ray.end = outRecord.t;
+						hit = true;
+					}
+				}
+			} else {
+				// Interior: visit the child entered first, remember the other
+				int left = node + 1;
+				int right = nodes[2 * node];
+				double tLeft = enter(left, ray, single);
+				double tRight = enter(right, ray, single);
+				if (tLeft <= tRight) {
+					if (tRight != Double.POSITIVE_INFINITY) {
+						stackNodes[top] = right;
+						stackT[top++] = tRight;
+					}
+					if (tLeft != Double.POSITIVE_INFINITY) {
+						node = left;
+						continue;
+					}
+				} else {
+					stackNodes[top] = left;
+					stackT[top++] = tLeft;
+					node = right;
+					continue;
+				}
+			}
+
+			// Pop the next node the ray enters before the closest hit
+			do {
+				if (top == 0) {
+					ray.end = end;
+					return hit;
+				}
+				node = stackNodes[--top];
+			} while (stackT[top] >= ray.end);
+		}
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#intersect(ray.misc.RayBatch,
+	 *      ray.misc.HitBatch)
+	 */
+	public void intersect(RayBatch rays, HitBatch hits) {
+		for (int lo = 0; lo < rays.size; lo += PACKET_SIZE)
+			tracePacket(rays, hits, lo, Math.min(rays.size, lo + PACKET_SIZE),
+					false);
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#occluded(ray.misc.RayBatch,
+	 *      ray.misc.HitBatch)
+	 */
+	public void occluded(RayBatch rays, HitBatch hits) {
+		for (int lo = 0; lo < rays.size; lo += PACKET_SIZE)
+			tracePacket(rays, hits, lo, Math.min(rays.size, lo + PACKET_SIZE),
+					true);
+	}
+
+	/**
+	 * Trace rays lo to hi - 1 of a batch through the hierarchy together. The
+	 * packet keeps track of the first of its rays that hits the current node;
+	 * rays before it are skipped, and once no ray hits a node the packet moves
+	 * on to the next node on the stack. Children are visited in the order
+	 * preferred by the first active ray.
+	 * 
+	 * @param occlusion
+	 *            if true, only find whether each ray is blocked
+	 */
+	private void tracePacket(RayBatch rays, HitBatch hits, int lo, int hi,
+			boolean occlusion) {
+
+		final Stack stack = stack();
+		final int[] nodes = this.nodes;
+		final int[] stackNodes = stack.nodes;
+		final int[] stackFirst = stack.first;
+		final double[] stackT = stack.t;
+		final Ray ray = stack.ray;
+
+		// The rays are shortened as hits are found; a blocked shadow ray gets
+		// a negative end so that it hits no more boxes
+		final double[] end = stack.end;
+		for (int i = lo; i < hi; i++) {
+			end[i - lo] = rays.end[i];
+			hits.hit[i] = false;
+		}
+		float[] single = null;
+		if (singleBounds != null) {
+			if (stack.single.length < 6 * hi)
+				stack.single = new float[6 * rays.capacity()];
+			single = stack.single;
+			for (int i = lo; i < hi; i++)
+				toSingle(rays.ox[i], rays.oy[i], rays.oz[i], rays.invX[i],
+						rays.invY[i], rays.invZ[i], single, 6 * i);
+		}
+
+		int top = 0;
+		int node = 0;
+		int first = lo;
+		// Where the first active ray enters the node, known from the parent
+		double t = enter(node, rays, first, end[0], single);
+		while (true) {
+
+			// If the first ray misses this node (or has since hit something
+			// closer), skip to the next ray that hits it
+			if (!(t < end[first - lo])) {
+				do {
+					first++;
+				} while (first < hi
+						&& (t = enter(node, rays, first, end[first - lo], single)) == Double.POSITIVE_INFINITY);
+			}
+
+			if (first < hi) {
+				int info = nodes[2 * node + 1];
+				if (info >= 0) {
+					// Leaf: test the surfaces against every ray that hits it
+					for (int r = first; r < hi; r++) {
+						if (r > first
+								&& enter(node, rays, r, end[r - lo], single) == Double.POSITIVE_INFINITY)
+							continue;
+						rays.get(r, ray);
+						ray.end = end[r - lo];
+						IntersectionRecord record = hits.records[r];
+						for (int i = nodes[2 * node], n = i + info; i < n; i++) {
+							if (occlusion) {
+								if (occluded(i, ray)) {
+									hits.hit[r] = true;
+									end[r - lo] = Double.NEGATIVE_INFINITY;
+									break;
+								}
+							} else if (intersect(i, record, ray)) {
+								hits.hit[r] = true;
+								ray.end = end[r - lo] = record.t;
+							}
+						}
+					}
+				} else {
+					// Interior: descend first into the child that the first
+					// ray enters first, remember the other
+					int left = node + 1;
+					int right = nodes[2 * node];
+					double e = end[first - lo];
+					double tLeft = enter(left, rays, first, e, single);
+					double tRight = enter(right, rays, first, e, single);
+					stackFirst[top] = first;
+					if (tLeft <= tRight) {
+						stackNodes[top] = right;
+						stackT[top++] = tRight;
+						node = left;
+						t = tLeft;
+					} else {
+						stackNodes[top] = left;
+						stackT[top++] = tLeft;
+						node = right;
+						t = tRight;
+					}
+					continue;
+				}
+			}
+
+			if (top == 0)
+				return;
+			node = stackNodes[--top];
+			first = stackFirst[top];
+			t = stackT[top];
+		}
+	}
+
+	/**
+	 * Intersect a ray with primitive i.
+	 */
+	protected boolean intersect(int i, IntersectionRecord outRecord, Ray ray) {
+
+		int triangle = primitives[2 * i + 1];
+		if (triangle < 0)
+			return surfaces[primitives[2 * i]].intersect(outRecord, ray);
+		if (triangleData == null)
+			return meshes[primitives[2 * i]].intersectTriangle(triangle,
+					outRecord, ray);
+
+		return intersectPrecomputed(i, outRecord, ray);
+	}
+
+	/**
+	 * Test whether primitive i blocks a ray.
+	 */
+	protected boolean occluded(int i, Ray ray) {
+
+		int triangle = primitives[2 * i + 1];
+		if (triangle < 0)
+			return surfaces[primitives[2 * i]].occluded(ray);
+		if (triangleData == null)
+			return meshes[primitives[2 * i]].occludedTriangle(triangle, ray);
+		return intersectPrecomputed(i, null, ray);
+	}
+
+	/**
+	 * The Moller-Trumbore ray triangle test against the precomputed data of
+	 * primitive i.
+	 *
+	 * @param outRecord
+	 *            if not null, filled out by the triangle's mesh on a hit
+	 * @return true if the ray hits the triangle between ray.start and ray.end
+	 */
+	private boolean intersectPrecomputed(int i, IntersectionRecord outRecord,
+			Ray ray) {
+
+		final float[] data = triangleData;
+		final int b = 9 * i;
+		final double e1x = data[b + 3], e1y = data[b + 4], e1z = data[b + 5];
+		final double e2x = data[b + 6], e2y = data[b + 7], e2z = data[b + 8];
+		final double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+
+		// p = d x e2, det = e1 . p
+		double px = dy * e2z - dz * e2y;
+		double py = dz * e2x - dx * e2z;
+		double pz = dx * e2y - dy * e2x;
+		double invDet = 1.0 / (e1x * px + e1y * py + e1z * pz);
+
+		// s = o - v0, beta = s . p / det
+		double sx = ray.origin.x - data[b];
+		double sy = ray.origin.y - data[b + 1];
+		double sz = ray.origin.z - data[b + 2];
+		double beta = (sx * px + sy * py + sz * pz) * invDet;
+		if (!(beta >= 0 && beta <= 1))
+			return false;
+
+		// q = s x e1, gamma = d . q / det
+		double qx = sy * e1z - sz * e1y;
+		double qy = sz * e1x - sx * e1z;
+		double qz = sx * e1y - sy * e1x;
+		double gamma = (dx * qx + dy * qy + dz * qz) * invDet;
+		if (!(gamma >= 0 && beta + gamma <= 1))
+			return false;
+
+		// t = e2 . q / det
+		double t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+		if (!(t >= ray.start && t <= ray.end))
+			return false;
+
+		if (outRecord != null)
+			meshes[primitives[2 * i]].setHit(primitives[2 * i + 1], beta,
+					gamma, t, outRecord);
+		return true;
+	}
+
+	/**
+	 * Find where ray i of a batch, ending at end, enters the box of a node.
+	 * 
+	 * @param single
+	 *            in single precision the rays as stored by toSingle(), else
+	 *            null
+	 * @return the entry t value, or positive infinity if the ray misses
+	 */
+	private double enter(int node, RayBatch rays, int i, double end,
+			float[] single) {
+
+		if (single != null)
+			return enterSingle(node, single, 6 * i, rays.signX[i],
+					rays.signY[i], rays.signZ[i], rays.start[i], end);
+
+		final double[] bounds = this.bounds;
+		int b = 6 * node;
+		int sx = rays.signX[i], sy = rays.signY[i], sz = rays.signZ[i];
+		double ox = rays.ox[i], oy = rays.oy[i], oz = rays.oz[i];
+		double ix = rays.invX[i], iy = rays.invY[i], iz = rays.invZ[i];
+		double tMin = (bounds[b + sx] - ox) * ix;
+		double tMax = (bounds[b + 1 - sx] - ox) * ix;
+		double t0 = (bounds[b + 2 + sy] - oy) * iy;
+		double t1 = (bounds[b + 3 - sy] - oy) * iy;
+		if (t0 > tMin)
+			tMin = t0;
+		if (t1 < tMax)
+			tMax = t1;
+		t0 = (bounds[b + 4 + sz] - oz) * iz;
+		t1 = (bounds[b + 5 - sz] - oz) * iz;
+		if (t0 > tMin)
+			tMin = t0;
+		if (t1 < tMax)
+			tMax = t1;
+
+		return (tMin <= tMax && tMin < end && tMax > rays.start[i]) ? tMin
+				: Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Find where ray enters the box of a node, as in
+	 * AxisAlignedBoundingBox.intersectDistance().
+	 * 
+	 * @param single
+	 *            in single precision the ray as stored by toSingle(), else
+	 *            null
+	 * @return the entry t value, or positive infinity if the ray misses
+	 */
+	private double enter(int node, Ray ray, float[] single) {
+
+		if (single != null)
+			return enterSingle(node, single, 0, ray.signX, ray.signY,
+					ray.signZ, ray.start, ray.end);
+
+		// The bounds of each axis are stored min then max, so the sign of the
+		// direction indexes the near plane
+		final double[] bounds = this.bounds;
+		final Vector3 inv = ray.invDirection;
+		int b = 6 * node;
+		double tMin = (bounds[b + ray.signX] - ray.origin.x) * inv.x;
+		double tMax = (bounds[b + 1 - ray.signX] - ray.origin.x) * inv.x;
+		double t0 = (bounds[b + 2 + ray.signY] - ray.origin.y) * inv.y;
+		double t1 = (bounds[b + 3 - ray.signY] - ray.origin.y) * inv.y;
+		if (t0 > tMin)
+			tMin = t0;
+		if (t1 < tMax)
+			tMax = t1;
+		t0 = (bounds[b + 4 + ray.signZ] - ray.origin.z) * inv.z;
+		t1 = (bounds[b + 5 - ray.signZ] - ray.origin.z) * inv.z;
+		if (t0 > tMin)
+			tMin = t0;
+		if (t1 < tMax)
+			tMax = t1;
+
+		return (tMin <= tMax && tMin < ray.end && tMax > ray.start) ? tMin
+				: Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Store the origin and inverse direction of a ray as floats at
+	 * single[k..k+5].
+	 */
+	private static void toSingle(double ox, double oy, double oz, double ix,
+			double iy, double iz, float[] single, int k) {
+
+		single[k] = (float) ox;
+		single[k + 1] = (float) oy;
+		single[k + 2] = (float) oz;
+		single[k + 3] = (float) ix;
+		single[k + 4] = (float) iy;
+		single[k + 5] = (float) iz;
+	}
+
+	/**
+	 * Find where a ray stored as floats at single[k..k+5] enters the box of a
+	 * node, in single precision. The interval of t values is widened by the
+	 * rounding error of the test, so the ray never misses a box it enters.
+	 * 
+	 * @return the entry t value, or positive infinity if the ray misses
+	 */
+	private double enterSingle(int node, float[] single, int k, int sx,
+			int sy, int sz, double start, double end) {
+
+		final float[] bounds = singleBounds;
+		int b = 6 * node;
+		float ox = single[k], oy = single[k + 1], oz = single[k + 2];
+		float ix = single[k + 3], iy = single[k + 4], iz = single[k + 5];
+		float tMin = (bounds[b + sx] - ox) * ix;
+		float tMax = (bounds[b + 1 - sx] - ox) * ix;
+		float t0 = (bounds[b + 2 + sy] - oy) * iy;
+		float t1 = (bounds[b + 3 - sy] - oy) * iy;
+		if (t0 > tMin)
+			tMin = t0;
+		if (t1 < tMax)
+			tMax = t1;
+		t0 = (bounds[b + 4 + sz] - oz) * iz;
+		t1 = (bounds[b + 5 - sz] - oz) * iz;
+		if (t0 > tMin)
+			tMin = t0;
+		if (t1 < tMax)
+			tMax = t1;
+
+		tMin -= SINGLE_ERROR * Math.abs(tMin);
+		tMax += SINGLE_ERROR * Math.abs(tMax);
+		return (tMin <= tMax && tMin < end && tMax > start) ? tMin
+				: Double.POSITIVE_INFINITY;
+	}
+
+}
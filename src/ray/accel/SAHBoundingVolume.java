@@ -0,0 +1,202 @@
+package ray.accel;
+
+import java.util.ArrayList;
+
+import ray.surface.Surface;
+
+/**
+ * A bounding volume hierarchy built with the surface area heuristic. Instead of
+ * always cutting at the median, each node bins the centers of its surfaces'
+ * bounding boxes along every axis and picks the plane between bins that
+ * minimizes the expected cost of a ray traversing the node:
+ *
+ * traversalCost + intersectionCost * (A_l * N_l + A_r * N_r) / A
+ *
+ * where A is the surface area of a box and N the number of surfaces in it. A
+ * node stays a leaf when it holds at most maxLeafSize surfaces and splitting it
+ * is not expected to be cheaper than intersecting all of them.
+ *
+ * Select it in the scene file with
+ *
+ * <accelerationStructure type="SAHBoundingVolume"> <maxLeafSize>4</maxLeafSize>
+ * </accelerationStructure>
+ */
+public class SAHBoundingVolume extends BoundingVolume {
+
+	/** The largest number of surfaces a leaf may hold unless it can't be split */
+	protected int maxLeafSize = 4;
+
+	/** The number of bins per axis in which split planes are considered */
+	protected int numBins = 16;
+
+	/** The cost of visiting one node, relative to intersectionCost */
+	protected double traversalCost = 0.125;
+
+	/** The cost of intersecting one surface */
+	protected double intersectionCost = 1.0;
+
+	/**
+	 * Construct an empty volume to be filled by build().
+	 */
+	public SAHBoundingVolume() {
+	}
+
+	/**
+	 * Constructor used by split(), the child has the settings of its parent.
+	 */
+	protected SAHBoundingVolume(SAHBoundingVolume parent) {
+		super(parent.depth + 1);
+		maxLeafSize = parent.maxLeafSize;
+		numBins = parent.numBins;
+		traversalCost = parent.traversalCost;
+		intersectionCost = parent.intersectionCost;
+	}
+
+	public void setMaxLeafSize(int maxLeafSize) {
+		this.maxLeafSize = Math.max(1, maxLeafSize);
+	}
+
+	public void setNumBins(int numBins) {
+		this.numBins = Math.max(2, numBins);
+	}
+
+	public void setTraversalCost(double traversalCost) {
+		this.traversalCost = traversalCost;
+	}
+
+	public void setIntersectionCost(double intersectionCost) {
+		this.intersectionCost = intersectionCost;
+	}
+
+	/**
+	 * Split this bounding volume at the cheapest binned split plane.
+	 */
+	protected void split() {
+
+		int n = surfaces.size();
+		if (n <= 1) {
+			surfaces.trimToSize();
+			return;
+		}
+
+		// Get the bounds of each surface, and the bounds of their centers
+		AxisAlignedBoundingBox[] bounds = new AxisAlignedBoundingBox[n];
+		double[] centers = new double[3 * n];
+		AxisAlignedBoundingBox centerBox = new AxisAlignedBoundingBox();
+		for (int i = 0; i < n; i++) {
+			AxisAlignedBoundingBox b = new AxisAlignedBoundingBox();
+			surfaces.get(i).addToBoundingBox(b);
+			bounds[i] = b;
+			centers[3 * i] = 0.5 * (b.xMin + b.xMax);
+			centers[3 * i + 1] = 0.5 * (b.yMin + b.yMax);
+			centers[3 * i + 2] = 0.5 * (b.zMin + b.zMax);
+			centerBox.add(centers[3 * i], centers[3 * i + 1],
+					centers[3 * i + 2]);
+		}
+
+		// Work space for the bins
+		AxisAlignedBoundingBox[] binBoxes = new AxisAlignedBoundingBox[numBins];
+		for (int b = 0; b < numBins; b++)
+			binBoxes[b] = new AxisAlignedBoundingBox();
+		int[] binCounts = new int[numBins];
+		double[] rightArea = new double[numBins];
+		int[] rightCount = new int[numBins];
+		AxisAlignedBoundingBox sweep = new AxisAlignedBoundingBox();
+
+		// Find the cheapest plane on any axis. Planes lie between bins, plane b
+		// puts bins 0..b on the left.
+		double invArea = 1.0 / box.surfaceArea();
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1;
+		int bestPlane = -1;
+		for (int axis = 0; axis < 3; axis++) {
+			double min = centerBox.getMin(axis);
+			double extent = centerBox.getMax(axis) - min;
+			if (!(extent > 0))
+				continue;
+
+			// Drop every surface into a bin
+			for (int b = 0; b < numBins; b++) {
+				binBoxes[b].clear();
+				binCounts[b] = 0;
+			}
+			for (int i = 0; i < n; i++) {
+				int b = binIndex(centers[3 * i + axis], min, extent);
+				binCounts[b]++;
+				binBoxes[b].add(bounds[i]);
+			}
+
+			// Sweep from the right to find what lies right of each plane
+			sweep.clear();
+			int count = 0;
+			for (int b = numBins - 1; b > 0; b--) {
+				sweep.add(binBoxes[b]);
+				count += binCounts[b];
+				rightArea[b] = sweep.surfaceArea();
+				rightCount[b] = count;
+			}
+
+			// Sweep from the left and evaluate the cost of each plane
+			sweep.clear();
+			count = 0;
+			for (int b = 0; b < numBins - 1; b++) {
+				sweep.add(binBoxes[b]);
+				count += binCounts[b];
+				if (count == 0 || rightCount[b + 1] == 0)
+					continue;
+				double cost = traversalCost
+						+ intersectionCost
+						* (sweep.surfaceArea() * count + rightArea[b + 1]
+								* rightCount[b + 1]) * invArea;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestPlane = b;
+				}
+			}
+		}
+
+		// Stay a leaf if we can't split, or if we are small enough and
+		// splitting does not pay off
+		if (bestAxis < 0
+				|| (n <= maxLeafSize && bestCost >= intersectionCost * n)) {
+			surfaces.trimToSize();
+			return;
+		}
+
+		// Distribute the surfaces to the children
+		double min = centerBox.getMin(bestAxis);
+		double extent = centerBox.getMax(bestAxis) - min;
+		ArrayList<Surface> leftList = new ArrayList<Surface>();
+		ArrayList<Surface> rightList = new ArrayList<Surface>();
+		for (int i = 0; i < n; i++) {
+			if (binIndex(centers[3 * i + bestAxis], min, extent) <= bestPlane)
+				leftList.add(surfaces.get(i));
+			else
+				rightList.add(surfaces.get(i));
+		}
+
+		// Create the children and clear our list
+		left = new SAHBoundingVolume(this);
+		right = new SAHBoundingVolume(this);
+		left.surfaces = leftList;
+		right.surfaces = rightList;
+		this.surfaces = null;
+
+		// Grow children to fit
+		left.growToHold();
+		right.growToHold();
+
+		left.split();
+		right.split();
+	}
+
+	/**
+	 * The bin holding a center coordinate c, given the range of centers.
+	 */
+	private int binIndex(double c, double min, double extent) {
+
+		int b = (int) (numBins * ((c - min) / extent));
+		return (b < 0 ? 0 : (b >= numBins ? numBins - 1 : b));
+	}
+}
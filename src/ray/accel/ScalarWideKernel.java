@@ -0,0 +1,96 @@
+package ray.accel;
+
+/**
+ * The plain Java fallback of WideKernel, one box or triangle at a time. It
+ * computes exactly what VectorWideKernel does.
+ */
+class ScalarWideKernel extends WideKernel {
+
+	ScalarWideKernel(int width) {
+		super(width);
+	}
+
+	int intersectBoxes(float[] bounds, int base, float[] ray, float start,
+			float end, float[] tOut) {
+
+		final int w = width;
+		float ox = ray[0], oy = ray[1], oz = ray[2];
+		float ix = ray[3], iy = ray[4], iz = ray[5];
+		int mask = 0;
+		for (int l = 0; l < w; l++) {
+			int b = base + l;
+			float t0 = (bounds[b] - ox) * ix;
+			float t1 = (bounds[b + w] - ox) * ix;
+			float near = Math.min(t0, t1);
+			float far = Math.max(t0, t1);
+			t0 = (bounds[b + 2 * w] - oy) * iy;
+			t1 = (bounds[b + 3 * w] - oy) * iy;
+			near = Math.max(near, Math.min(t0, t1));
+			far = Math.min(far, Math.max(t0, t1));
+			t0 = (bounds[b + 4 * w] - oz) * iz;
+			t1 = (bounds[b + 5 * w] - oz) * iz;
+			near = Math.max(near, Math.min(t0, t1));
+			far = Math.min(far, Math.max(t0, t1));
+
+			near -= FlatBoundingVolume.SINGLE_ERROR * Math.abs(near);
+			far += FlatBoundingVolume.SINGLE_ERROR * Math.abs(far);
+			tOut[l] = near;
+			if (near <= far && near < end && far > start)
+				mask |= 1 << l;
+		}
+		return mask;
+	}
+
+	int intersectTriangles(float[] tris, int base, float[] ray, float start,
+			float end) {
+
+		final int w = width;
+		float ox = ray[0], oy = ray[1], oz = ray[2];
+		float dx = ray[6], dy = ray[7], dz = ray[8];
+		int mask = 0;
+		for (int l = 0; l < w; l++) {
+			int b = base + l;
+			float e1x = tris[b + 3 * w], e1y = tris[b + 4 * w], e1z = tris[b + 5 * w];
+			float e2x = tris[b + 6 * w], e2y = tris[b + 7 * w], e2z = tris[b + 8 * w];
+
+			float px = dy * e2z - dz * e2y;
+			float py = dz * e2x - dx * e2z;
+			float pz = dx * e2y - dy * e2x;
+			float inv = 1 / (e1x * px + e1y * py + e1z * pz);
+
+			float sx = ox - tris[b];
+			float sy = oy - tris[b + w];
+			float sz = oz - tris[b + 2 * w];
+			float u = (sx * px + sy * py + sz * pz) * inv;
+
+			float qx = sy * e1z - sz * e1y;
+			float qy = sz * e1x - sx * e1z;
+			float qz = sx * e1y - sy * e1x;
+			float v = (dx * qx + dy * qy + dz * qz) * inv;
+			float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+
+			// The rounding errors, from the sizes of s (and of the origin,
+			// which was rounded), d and the edges
+			float sSize = Math.abs(sx) + Math.abs(sy) + Math.abs(sz)
+					+ Math.abs(ox) + Math.abs(oy) + Math.abs(oz);
+			float dSize = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+			float e1Size = Math.abs(e1x) + Math.abs(e1y) + Math.abs(e1z);
+			float e2Size = Math.abs(e2x) + Math.abs(e2y) + Math.abs(e2z);
+			float detError = TRIANGLE_ERROR * e1Size * dSize * e2Size;
+			float absInv = Math.abs(inv);
+			float uError = (TRIANGLE_ERROR * sSize * dSize * e2Size + Math
+					.abs(u) * detError) * absInv + TRIANGLE_ERROR * Math.abs(u);
+			float vError = (TRIANGLE_ERROR * sSize * dSize * e1Size + Math
+					.abs(v) * detError) * absInv + TRIANGLE_ERROR * Math.abs(v);
+			float tError = (TRIANGLE_ERROR * sSize * e1Size * e2Size + Math
+					.abs(t) * detError) * absInv + TRIANGLE_ERROR * Math.abs(t);
+
+			if (absInv * detError >= 1
+					|| (u >= -uError && v >= -vError
+							&& u + v <= 1 + uError + vError
+							&& t + tError >= start && t - tError <= end))
+				mask |= 1 << l;
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,164 @@
+package ray.accel;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * WideKernel on the JDK Vector API: every step of a box or triangle test is
+ * one vector operation over all width children. Needs the
+ * jdk.incubator.vector module (java --add-modules jdk.incubator.vector) and
+ * registers of at least width floats; forWidth() throws otherwise, and
+ * WideKernel.create() then falls back to ScalarWideKernel.
+ *
+ * The JIT only compiles vector operations to SIMD instructions when their
+ * species is a constant, so each width is a subclass returning a constant
+ * from species(). Only one of them is loaded in a render, and the JIT then
+ * inlines species() into the tests.
+ */
+abstract class VectorWideKernel extends WideKernel {
+
+	private VectorWideKernel(int width) {
+		super(width);
+	}
+
+	/**
+	 * Create the kernel for a width.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the hardware has no vectors of width floats
+	 */
+	static WideKernel forWidth(int width) {
+
+		if (FloatVector.SPECIES_PREFERRED.length() < width)
+			throw new UnsupportedOperationException("No vectors of " + width
+					+ " floats");
+		if (width == 4)
+			return new Width4();
+		if (width == 8)
+			return new Width8();
+		throw new IllegalArgumentException("Unsupported width " + width);
+	}
+
+	/** The species of width floats */
+	abstract VectorSpecies<Float> species();
+
+	private static final class Width4 extends VectorWideKernel {
+		Width4() {
+			super(4);
+		}
+
+		VectorSpecies<Float> species() {
+			return FloatVector.SPECIES_128;
+		}
+	}
+
+	private static final class Width8 extends VectorWideKernel {
+		Width8() {
+			super(8);
+		}
+
+		VectorSpecies<Float> species() {
+			return FloatVector.SPECIES_256;
+		}
+	}
+
+	final int intersectBoxes(float[] bounds, int base, float[] ray,
+			float start, float end, float[] tOut) {
+
+		final VectorSpecies<Float> s = species();
+		final int w = width;
+		FloatVector t0 = FloatVector.fromArray(s, bounds, base).sub(ray[0])
+				.mul(ray[3]);
+		FloatVector t1 = FloatVector.fromArray(s, bounds, base + w).sub(ray[0])
+				.mul(ray[3]);
+		FloatVector near = t0.min(t1);
+		FloatVector far = t0.max(t1);
+		t0 = FloatVector.fromArray(s, bounds, base + 2 * w).sub(ray[1])
+				.mul(ray[4]);
+		t1 = FloatVector.fromArray(s, bounds, base + 3 * w).sub(ray[1])
+				.mul(ray[4]);
+		near = near.max(t0.min(t1));
+		far = far.min(t0.max(t1));
+		t0 = FloatVector.fromArray(s, bounds, base + 4 * w).sub(ray[2])
+				.mul(ray[5]);
+		t1 = FloatVector.fromArray(s, bounds, base + 5 * w).sub(ray[2])
+				.mul(ray[5]);
+		near = near.max(t0.min(t1));
+		far = far.min(t0.max(t1));
+
+		near = near.sub(near.abs().mul(FlatBoundingVolume.SINGLE_ERROR));
+		far = far.add(far.abs().mul(FlatBoundingVolume.SINGLE_ERROR));
+		near.intoArray(tOut, 0);
+		VectorMask<Float> hit = near.compare(VectorOperators.LE, far)
+				.and(near.compare(VectorOperators.LT, end))
+				.and(far.compare(VectorOperators.GT, start));
+		return (int) hit.toLong();
+	}
+
+	final int intersectTriangles(float[] tris, int base, float[] ray,
+			float start, float end) {
+
+		final VectorSpecies<Float> s = species();
+		final int w = width;
+		final float dx = ray[6], dy = ray[7], dz = ray[8];
+		FloatVector e1x = FloatVector.fromArray(s, tris, base + 3 * w);
+		FloatVector e1y = FloatVector.fromArray(s, tris, base + 4 * w);
+		FloatVector e1z = FloatVector.fromArray(s, tris, base + 5 * w);
+		FloatVector e2x = FloatVector.fromArray(s, tris, base + 6 * w);
+		FloatVector e2y = FloatVector.fromArray(s, tris, base + 7 * w);
+		FloatVector e2z = FloatVector.fromArray(s, tris, base + 8 * w);
+
+		// p = d x e2, 1 / det = 1 / (e1 . p)
+		FloatVector px = e2z.mul(dy).sub(e2y.mul(dz));
+		FloatVector py = e2x.mul(dz).sub(e2z.mul(dx));
+		FloatVector pz = e2y.mul(dx).sub(e2x.mul(dy));
+		FloatVector inv = FloatVector.broadcast(s, 1).div(
+				e1x.mul(px).add(e1y.mul(py)).add(e1z.mul(pz)));
+
+		// s = o - v0, u = s . p / det
+		FloatVector sx = FloatVector.fromArray(s, tris, base).neg()
+				.add(ray[0]);
+		FloatVector sy = FloatVector.fromArray(s, tris, base + w).neg()
+				.add(ray[1]);
+		FloatVector sz = FloatVector.fromArray(s, tris, base + 2 * w).neg()
+				.add(ray[2]);
+		FloatVector u = sx.mul(px).add(sy.mul(py)).add(sz.mul(pz)).mul(inv);
+
+		// q = s x e1, v = d . q / det, t = e2 . q / det
+		FloatVector qx = sy.mul(e1z).sub(sz.mul(e1y));
+		FloatVector qy = sz.mul(e1x).sub(sx.mul(e1z));
+		FloatVector qz = sx.mul(e1y).sub(sy.mul(e1x));
+		FloatVector v = qx.mul(dx).add(qy.mul(dy)).add(qz.mul(dz)).mul(inv);
+		FloatVector t = e2x.mul(qx).add(e2y.mul(qy)).add(e2z.mul(qz)).mul(inv);
+
+		// The rounding errors, as in ScalarWideKernel
+		FloatVector sSize = sx.abs().add(sy.abs()).add(sz.abs())
+				.add(Math.abs(ray[0]) + Math.abs(ray[1]) + Math.abs(ray[2]));
+		float dSize = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+		FloatVector e1Size = e1x.abs().add(e1y.abs()).add(e1z.abs());
+		FloatVector e2Size = e2x.abs().add(e2y.abs()).add(e2z.abs());
+		FloatVector detError = e1Size.mul(e2Size).mul(
+				TRIANGLE_ERROR * dSize);
+		FloatVector absInv = inv.abs();
+		FloatVector uError = sSize.mul(e2Size).mul(TRIANGLE_ERROR * dSize)
+				.add(u.abs().mul(detError)).mul(absInv)
+				.add(u.abs().mul(TRIANGLE_ERROR));
+		FloatVector vError = sSize.mul(e1Size).mul(TRIANGLE_ERROR * dSize)
+				.add(v.abs().mul(detError)).mul(absInv)
+				.add(v.abs().mul(TRIANGLE_ERROR));
+		FloatVector tError = sSize.mul(e1Size).mul(e2Size)
+				.mul(TRIANGLE_ERROR).add(t.abs().mul(detError)).mul(absInv)
+				.add(t.abs().mul(TRIANGLE_ERROR));
+
+		VectorMask<Float> hit = u.compare(VectorOperators.GE, uError.neg())
+				.and(v.compare(VectorOperators.GE, vError.neg()))
+				.and(u.add(v).compare(VectorOperators.LE,
+						uError.add(vError).add(1)))
+				.and(t.add(tError).compare(VectorOperators.GE, start))
+				.and(t.sub(tError).compare(VectorOperators.LE, end))
+				.or(absInv.mul(detError).compare(VectorOperators.GE, 1));
+		return (int) hit.toLong();
+	}
+}
@@ -0,0 +1,505 @@
+package ray.accel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ray.misc.HitBatch;
+import ray.misc.IntersectionRecord;
+import ray.misc.Ray;
+import ray.misc.RayBatch;
+import ray.surface.Surface;
+
+/**
+ * A bounding volume hierarchy with 4 or 8 children per node (a BVH4 or BVH8),
+ * collapsed from the binary hierarchy of a FlatBoundingVolume. Each wide node
+ * takes the place of a binary node and of as many of its descendants as fit:
+ * the child with the largest surface area is opened until the node has width
+ * children or only leaves are left.
+ *
+ * The bounds of the children of a node, and the precomputed data of the
+ * triangles of a leaf, are stored as floats in blocks of width entries per
+ * coordinate, so that a WideKernel tests one ray against all of them at once.
+ * The kernel is the Vector API one when the JVM runs with the
+ * jdk.incubator.vector module and has registers of width floats, and a plain
+ * Java loop otherwise. Box tests are conservative as in the single precision
+ * mode of FlatBoundingVolume, and every triangle the kernel reports is
+ * confirmed in double precision.
+ *
+ * Surfaces that are not mesh triangles are tested one by one after the
+ * triangles of their leaf. Batches of rays are traced ray by ray, since the
+ * SIMD lanes go to the children of a node rather than to the rays of a packet.
+ *
+ * Select it in the scene file with
+ *
+ * <accelerationStructure type="WideBoundingVolume"> <width>8</width>
+ * <kernel>vector</kernel> <hierarchy type="SAHBoundingVolume"/>
+ * </accelerationStructure>
+ */
+public class WideBoundingVolume extends FlatBoundingVolume {
+
+	/** The number of children per node and triangles per block */
+	protected int width = 8;
+
+	/** Whether to use the Vector API kernel when available */
+	protected boolean vector = true;
+
+	/** The box and triangle tests */
+	protected WideKernel kernel;
+
+	/**
+	 * Child bounds, 6 * width per node: the xMin of every child, then their
+	 * xMax, yMin, yMax, zMin and zMax, rounded outward. Unused children have
+	 * NaN bounds.
+	 */
+	protected float[] wideBounds;
+
+	/**
+	 * Children, width per node: the index of an interior child, or -(1 + leaf
+	 * index) for a leaf.
+	 */
+	protected int[] wideNodes;
+
+	/**
+	 * Leaves, four ints each: the first triangle block, the number of blocks,
+	 * the first primitive and, if any primitive of the leaf is not a mesh
+	 * triangle, the number of primitives (else 0).
+	 */
+	protected int[] leaves;
+
+	/**
+	 * Triangle blocks, 9 * width floats each, in the layout of
+	 * WideKernel.intersectTriangles(). Unused triangles are all zero.
+	 */
+	protected float[] triangleBlocks;
+
+	/** The primitive of every triangle of every block, or -1 if unused */
+	protected int[] blockPrimitives;
+
+	/** The depth of the deepest wide node */
+	protected int wideDepth;
+
+	/**
+	 * A traversal stack of nodes (in the encoding of wideNodes) and the t
+	 * values at which the ray enters them, with the float copy of the ray.
+	 */
+	private static class WideStack {
+		final int[] nodes;
+		final double[] t;
+
+		/** The ray as passed to the kernel */
+		final float[] ray = new float[9];
+
+		/** The entry t of each child of a node */
+		final float[] tOut;
+
+		/** A ray to trace batches with */
+		final Ray batchRay = new Ray();
+
+		WideStack(int size, int width) {
+			nodes = new int[size];
+			t = new double[size];
+			tOut = new float[width];
+		}
+	}
+
+	/** Traversal stacks, one per thread */
+	private final ThreadLocal<WideStack> wideStacks = new ThreadLocal<WideStack>() {
+		protected WideStack initialValue() {
+			return new WideStack(stackSize(), width);
+		}
+	};
+
+	public WideBoundingVolume() {
+	}
+
+	/**
+	 * Set the number of children per node.
+	 *
+	 * @param width
+	 *            4 or 8
+	 */
+	public void setWidth(int width) {
+		if (width != 4 && width != 8)
+			throw new Error("Unsupported width " + width + ", expected 4 or 8");
+		this.width = width;
+	}
+
+	/**
+	 * Choose the kernel: "vector" (the default) uses the Vector API if it is
+	 * available and falls back to the plain Java kernel otherwise, "scalar"
+	 * always uses the plain Java kernel.
+	 *
+	 * @param mode
+	 *            "vector" or "scalar"
+	 */
+	public void setKernel(String mode) {
+		if (mode.equalsIgnoreCase("vector"))
+			vector = true;
+		else if (mode.equalsIgnoreCase("scalar"))
+			vector = false;
+		else
+			throw new Error("Unknown kernel \"" + mode
+					+ "\", expected vector or scalar");
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#build(java.util.ArrayList)
+	 */
+	public void build(ArrayList<Surface> inSurfaces) {
+
+		// Flatten the binary hierarchy in double precision, with the
+		// triangle data the blocks are copied from
+		singlePrecision = false;
+		precomputeTriangles = true;
+		super.build(inSurfaces);
+		kernel = WideKernel.create(width, vector);
+
+		float[] binaryBounds = roundOutward(bounds);
+		int binaryNodes = nodes.length / 2;
+		int blocks = 0;
+		for (int node = 0; node < binaryNodes; node++) {
+			int info = nodes[2 * node + 1];
+			if (info >= 0)
+				blocks += (triangles(nodes[2 * node], info) + width - 1)
+						/ width;
+		}
+
+		// A wide node replaces at least one interior binary node, and a
+		// binary tree has one leaf more than it has interior nodes
+		int maxNodes = Math.max(1, binaryNodes / 2);
+		wideBounds = new float[6 * width * maxNodes];
+		wideNodes = new int[width * maxNodes];
+		leaves = new int[4 * (binaryNodes / 2 + 1)];
+		triangleBlocks = new float[9 * width * blocks];
+		blockPrimitives = new int[width * blocks];
+		Arrays.fill(wideBounds, Float.NaN);
+		Arrays.fill(blockPrimitives, -1);
+
+		// counts: wide nodes, leaves, blocks, depth
+		int[] counts = new int[4];
+		collapse(0, 1, counts, binaryBounds);
+		wideBounds = Arrays.copyOf(wideBounds, 6 * width * counts[0]);
+		wideNodes = Arrays.copyOf(wideNodes, width * counts[0]);
+		leaves = Arrays.copyOf(leaves, 4 * counts[1]);
+		wideDepth = counts[3];
+
+		// The wide copy is all we need, let the binary one go
+		bounds = null;
+		nodes = null;
+
+		System.out.println("Collapsed into " + counts[0] + " nodes of width "
+				+ width + ", depth " + wideDepth + ", "
+				+ (kernel instanceof ScalarWideKernel ? "scalar" : "vector")
+				+ " kernel.");
+	}
+
+	/**
+	 * Count the mesh triangles among count primitives starting at first.
+	 */
+	private int triangles(int first, int count) {
+
+		int result = 0;
+		for (int i = first; i < first + count; i++)
+			if (primitives[2 * i + 1] >= 0)
+				result++;
+		return result;
+	}
+
+	/**
+	 * Write the wide node that replaces a binary node, and its descendants.
+	 * A root that is a leaf becomes the only child of the wide root.
+	 *
+	 * @param counts
+	 *            the wide nodes, leaves and blocks written so far and the
+	 *            largest depth
+	 * @return the index of the wide node
+	 */
+	private int collapse(int binaryNode, int depth, int[] counts,
+			float[] binaryBounds) {
+
+		int index = counts[0]++;
+		counts[3] = Math.max(counts[3], depth);
+
+		// Open the largest interior child until the node is full
+		int[] children = new int[width];
+		int n = 1;
+		children[0] = binaryNode;
+		while (n < width) {
+			int open = -1;
+			double largest = Double.NEGATIVE_INFINITY;
+			for (int l = 0; l < n; l++) {
+				int c = children[l];
+				if (nodes[2 * c + 1] < 0 && area(c) > largest) {
+					largest = area(c);
+					open = l;
+				}
+			}
+			if (open < 0)
+				break;
+			int c = children[open];
+			children[open] = c + 1;
+			children[n++] = nodes[2 * c];
+		}
+
+		int base = 6 * width * index;
+		for (int l = 0; l < n; l++) {
+			int c = children[l];
+			for (int k = 0; k < 6; k++)
+				wideBounds[base + k * width + l] = binaryBounds[6 * c + k];
+			wideNodes[width * index + l] = nodes[2 * c + 1] < 0 ? collapse(c,
+					depth + 1, counts, binaryBounds) : -1 - leaf(c, counts);
+		}
+		return index;
+	}
+
+	/**
+	 * Write a binary leaf and pack its mesh triangles into blocks.
+	 *
+	 * @return the index of the leaf
+	 */
+	private int leaf(int binaryNode, int[] counts) {
+
+		int index = counts[1]++;
+		int first = nodes[2 * binaryNode];
+		int count = nodes[2 * binaryNode + 1];
+		int triangles = triangles(first, count);
+		leaves[4 * index] = counts[2];
+		leaves[4 * index + 1] = (triangles + width - 1) / width;
+		leaves[4 * index + 2] = first;
+		leaves[4 * index + 3] = triangles < count ? count : 0;
+
+		int lane = 0;
+		for (int i = first; i < first + count; i++) {
+			if (primitives[2 * i + 1] < 0)
+				continue;
+			int block = counts[2] + lane / width;
+			int l = lane++ % width;
+			blockPrimitives[width * block + l] = i;
+			for (int k = 0; k < 9; k++)
+				triangleBlocks[9 * width * block + k * width + l] = triangleData[9 * i + k];
+		}
+		counts[2] += leaves[4 * index + 1];
+		return index;
+	}
+
+	/**
+	 * Half the surface area of the box of a binary node.
+	 */
+	private double area(int binaryNode) {
+
+		int b = 6 * binaryNode;
+		double dx = bounds[b + 1] - bounds[b];
+		double dy = bounds[b + 3] - bounds[b + 2];
+		double dz = bounds[b + 5] - bounds[b + 4];
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * The largest number of nodes on the stack: each node visited replaces
+	 * itself by at most width children.
+	 */
+	private int stackSize() {
+		return wideDepth * (width - 1) + 2;
+	}
+
+	/**
+	 * The traversal stack of the calling thread, deep enough for the current
+	 * hierarchy.
+	 */
+	private WideStack wideStack() {
+
+		WideStack stack = wideStacks.get();
+		if (stack.nodes.length < stackSize() || stack.tOut.length != width) {
+			stack = new WideStack(stackSize(), width);
+			wideStacks.set(stack);
+		}
+		return stack;
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getFirstIntersection(ray.misc.IntersectionRecord,
+	 *      ray.misc.Ray)
+	 */
+	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
+		return trace(outRecord, ray, false);
+	}
+
+	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
+		return trace(outRecord, ray, true);
+	}
+
+	public boolean occluded(Ray ray) {
+		return trace(null, ray, true);
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#intersect(ray.misc.RayBatch,
+	 *      ray.misc.HitBatch)
+	 */
+	public void intersect(RayBatch rays, HitBatch hits) {
+
+		Ray ray = wideStack().batchRay;
+		for (int i = 0; i < rays.size; i++) {
+			rays.get(i, ray);
+			hits.hit[i] = trace(hits.records[i], ray, false);
+		}
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#occluded(ray.misc.RayBatch,
+	 *      ray.misc.HitBatch)
+	 */
+	public void occluded(RayBatch rays, HitBatch hits) {
+
+		Ray ray = wideStack().batchRay;
+		for (int i = 0; i < rays.size; i++) {
+			rays.get(i, ray);
+			hits.hit[i] = trace(null, ray, true);
+		}
+	}
+
+	/**
+	 * Trace a ray through the wide hierarchy, visiting the children of each
+	 * node nearest first and skipping those entered beyond the closest hit.
+	 *
+	 * @param outRecord
+	 *            the record for the hit, or null to only test occlusion
+	 * @param any
+	 *            whether to stop at the first hit found instead of the closest
+	 * @return true if anything was hit
+	 */
+	private boolean trace(IntersectionRecord outRecord, Ray ray, boolean any) {
+
+		final WideStack stack = wideStack();
+		final int[] stackNodes = stack.nodes;
+		final double[] stackT = stack.t;
+		final float[] tOut = stack.tOut;
+		final float[] single = stack.ray;
+		final int w = width;
+		toSingle(ray, single);
+		final float start = lower(ray.start);
+
+		final double end = ray.end;
+		boolean hit = false;
+
+		int top = 0;
+		stackNodes[top] = 0;
+		stackT[top++] = ray.start;
+		while (top > 0) {
+			int node = stackNodes[--top];
+			if (stackT[top] >= ray.end)
+				continue;
+
+			if (node < 0) {
+				if (leaf(-1 - node, outRecord, ray, any, single, start)) {
+					if (any) {
+						ray.end = end;
+						return true;
+					}
+					hit = true;
+				}
+				continue;
+			}
+
+			// Push the children that the ray enters, the nearest on top
+			int mask = kernel.intersectBoxes(wideBounds, 6 * w * node, single,
+					start, upper(ray.end), tOut);
+			int first = top;
+			for (; mask != 0; mask &= mask - 1) {
+				int l = Integer.numberOfTrailingZeros(mask);
+				int child = wideNodes[w * node + l];
+				double t = tOut[l];
+				int j = top++;
+				while (j > first && stackT[j - 1] < t) {
+					stackNodes[j] = stackNodes[j - 1];
+					stackT[j] = stackT[j - 1];
+					j--;
+				}
+				stackNodes[j] = child;
+				stackT[j] = t;
+			}
+		}
+		ray.end = end;
+		return hit;
+	}
+
+	/**
+	 * Test a ray against the primitives of a leaf, shortening it to each hit
+	 * found unless any is set.
+	 *
+	 * @return true if anything was hit
+	 */
+	private boolean leaf(int leaf, IntersectionRecord outRecord, Ray ray,
+			boolean any, float[] single, float start) {
+
+		final int w = width;
+		boolean hit = false;
+		for (int b = leaves[4 * leaf], n = b + leaves[4 * leaf + 1]; b < n; b++) {
+			int mask = kernel.intersectTriangles(triangleBlocks, 9 * w * b,
+					single, start, upper(ray.end));
+			for (; mask != 0; mask &= mask - 1) {
+				int i = blockPrimitives[w * b
+						+ Integer.numberOfTrailingZeros(mask)];
+				if (outRecord == null ? occluded(i, ray) : intersect(i,
+						outRecord, ray)) {
+					if (any)
+						return true;
+					ray.end = outRecord.t;
+					hit = true;
+				}
+			}
+		}
+
+		// The surfaces that are not mesh triangles
+		for (int i = leaves[4 * leaf + 2], n = i + leaves[4 * leaf + 3]; i < n; i++) {
+			if (primitives[2 * i + 1] >= 0)
+				continue;
+			if (outRecord == null ? occluded(i, ray) : intersect(i, outRecord,
+					ray)) {
+				if (any)
+					return true;
+				ray.end = outRecord.t;
+				hit = true;
+			}
+		}
+		return hit;
+	}
+
+	/**
+	 * Store a ray as floats in the layout WideKernel expects. The inverse
+	 * direction is clamped to finite values, so that a ray lying in the plane
+	 * of a box face computes 0 rather than NaN for it.
+	 */
+	private static void toSingle(Ray ray, float[] single) {
+
+		single[0] = (float) ray.origin.x;
+		single[1] = (float) ray.origin.y;
+		single[2] = (float) ray.origin.z;
+		single[3] = clamp((float) ray.invDirection.x);
+		single[4] = clamp((float) ray.invDirection.y);
+		single[5] = clamp((float) ray.invDirection.z);
+		single[6] = (float) ray.direction.x;
+		single[7] = (float) ray.direction.y;
+		single[8] = (float) ray.direction.z;
+	}
+
+	private static float clamp(float x) {
+		return Math.max(-Float.MAX_VALUE, Math.min(Float.MAX_VALUE, x));
+	}
+
+	/**
+	 * A t value rounded down to float, for the start of a ray.
+	 */
+	private static float lower(double t) {
+		float f = (float) t;
+		return f > t ? Math.nextDown(f) : f;
+	}
+
+	/**
+	 * A t value rounded up to float, for the end of a ray.
+	 */
+	private static float upper(double t) {
+		float f = (float) t;
+		return f < t ? Math.nextUp(f) : f;
+	}
+}
@@ -0,0 +1,107 @@
+package ray.accel;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The inner loops of WideBoundingVolume: one ray against all the child boxes
+ * of a node, or against a block of triangles, at once. Boxes and triangles
+ * are stored as structures of arrays, each coordinate of the width children
+ * or triangles next to each other, so that an implementation can load them
+ * straight into SIMD registers.
+ *
+ * Rays are passed as floats: origin, inverse direction and direction at
+ * ray[0..8]. Both tests are conservative, they may report boxes and
+ * triangles that the ray misses but never miss one that it hits; the caller
+ * confirms triangle hits in double precision. The box test widens each t
+ * interval by FlatBoundingVolume.SINGLE_ERROR; the triangle test widens u, v
+ * and t by bounds on their rounding errors, which grow with the distance of
+ * the ray origin from the triangle relative to the triangle's size, and keeps
+ * any triangle whose determinant is within its error of 0.
+ */
+abstract class WideKernel {
+
+	/**
+	 * A bound on the relative rounding error of each product in the float
+	 * triangle test: the ray and the edges are rounded to float, and each of
+	 * s . (d x e2), s . (d x e1), e2 . (s x e1) and the determinant e1 . (d x
+	 * e2) takes about 8 more roundings, so 16 float epsilons leave a factor of
+	 * two to spare. It multiplies sums of absolute values, which bound the
+	 * absolute values of the triple products.
+	 */
+	protected static final float TRIANGLE_ERROR = 0x1p-20f;
+
+	/** Why the Vector API kernel fails to load without its module */
+	private static final String MISSING_MODULE = "run java with --add-modules jdk.incubator.vector";
+
+	/** The number of boxes or triangles tested at once */
+	protected final int width;
+
+	protected WideKernel(int width) {
+		this.width = width;
+	}
+
+	/**
+	 * Test a ray against the width boxes at bounds[base..base + 6 * width - 1]
+	 * (all xMin, all xMax, all yMin, ..., all zMax). Unused boxes have NaN
+	 * bounds and are never hit.
+	 *
+	 * @param tOut
+	 *            receives the entry t of each box
+	 * @return a bit mask of the boxes that the ray enters between start and
+	 *         end
+	 */
+	abstract int intersectBoxes(float[] bounds, int base, float[] ray,
+			float start, float end, float[] tOut);
+
+	/**
+	 * Test a ray against the width triangles at
+	 * triangles[base..base + 9 * width - 1] (all v0.x, all v0.y, all v0.z,
+	 * then e1 and e2 likewise). Unused triangles are all zero and are never
+	 * hit.
+	 *
+	 * @return a bit mask of the triangles that the ray may hit between start
+	 *         and end
+	 */
+	abstract int intersectTriangles(float[] triangles, int base, float[] ray,
+			float start, float end);
+
+	/**
+	 * Create the fastest kernel available for a width.
+	 *
+	 * @param vector
+	 *            whether to try the Vector API kernel
+	 * @return a VectorWideKernel if vector is set and the Vector API is
+	 *         available with registers of at least width floats, a
+	 *         ScalarWideKernel otherwise, in which case the reason is printed
+	 *         if vector was set
+	 */
+	static WideKernel create(int width, boolean vector) {
+
+		if (vector) {
+			// Only touch the Vector API by reflection, so that this class
+			// loads on JVMs without the jdk.incubator.vector module
+			String reason;
+			try {
+				return (WideKernel) Class.forName("ray.accel.VectorWideKernel")
+						.getDeclaredMethod("forWidth", int.class)
+						.invoke(null, width);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof NoClassDefFoundError)
+					reason = MISSING_MODULE;
+				else if (cause instanceof UnsupportedOperationException)
+					reason = cause.getMessage();
+				else
+					throw new Error("The Vector API kernel failed.", cause);
+			} catch (NoClassDefFoundError e) {
+				reason = MISSING_MODULE;
+			} catch (ReflectiveOperationException e) {
+				reason = e.toString();
+			}
+			System.err.println("The Vector API kernel is not available ("
+					+ reason + "), using the scalar kernel.");
+		}
+		return new ScalarWideKernel(width);
+	}
+
+}
@@ -51,7 +51,7 @@ public class Lambertian implements BRDF {
 	 *      ray.math.Vector3)
 	 */
 	public double pdf(Frame3 frame, Vector3 fixedDir, Vector3 dir) {
-		return fixedDir.dot(frame.w) / Math.PI;
+		return Math.max(0, dir.dot(frame.w)) / Math.PI;
 	}
 
 }
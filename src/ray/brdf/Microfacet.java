@@ -1,13 +1,12 @@
 package ray.brdf;
 
-import java.util.Random;
-
 import ray.math.Frame3;
 import ray.math.Geometry;
 import ray.math.Point2;
 import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.Image;
+import ray.sampling.CounterRandom;
 import carbine.MathExt;
 
 public class Microfacet implements BRDF {
@@ -53,8 +52,6 @@ public class Microfacet implements BRDF {
 		this.specularSamplingWeight = specularSamplingWeight;
 	}
 
-	private Random random = new Random();
-
 	/**
 	 * Given the incident direction, reflection direction, compute the BRDF
 	 * value. The w component fo Frame3 aligns with the surface normal
@@ -93,7 +90,10 @@ public class Microfacet implements BRDF {
 	 * f * |o.n| / Po = 4 * f * |o.n| * |i.m| / (D(m)*|m.n|)
 	 * 
 	 * @param seed
-	 *            is uniformly distributed in square [0...1]
+	 *            is uniformly distributed in square [0...1]. Its x coordinate
+	 *            also picks the diffuse or the specular component and is
+	 *            rescaled to [0...1] again, so no other random number is
+	 *            needed.
 	 * @param fixedDir
 	 *            outgoing direction is specified
 	 * @param dir
@@ -105,7 +105,9 @@ public class Microfacet implements BRDF {
 		Vector3 vecM;
 		double dim;
 		// // uniform samples for diffuse component
-		if (random.nextDouble() >= specularSamplingWeight) {
+		if (seed.x >= specularSamplingWeight) {
+			seed.x = (seed.x - specularSamplingWeight)
+					/ (1. - specularSamplingWeight);
 			Geometry.squareToPSAHemisphere(seed, dir);
 			frame.frameToCanonical(dir); // transform to global coordinate
 
@@ -115,6 +117,7 @@ public class Microfacet implements BRDF {
 
 			dim = dir.dot(vecM);
 		} else { // // importance smapling for specular component
+			seed.x = seed.x / specularSamplingWeight;
 			vecM = new Vector3();
 			seed2Dir(seed, vecM);
 			frame.frameToCanonical(vecM); // transform to global coordinate
@@ -129,18 +132,19 @@ public class Microfacet implements BRDF {
 		double dmn = vecM.dot(frame.w);
 		double don = fixedDir.dot(frame.w);
 
-		if (din < 0) {
+		if (din <= 0 || don <= 0) {
 			outWeight.set(0);
 			return;
 		}
+		// brdf * cos(theta) of the generated direction over the pdf of
+		// choosing it, the same as pdf(frame, fixedDir, dir)
 		outWeight.set(diffuseBrdf);
-		outWeight.scale(don); // brdf * cos(theta)
+		outWeight.scale(din);
 		double nd = normalDistri.eval(dmn);
 		outWeight.add(specularBrdfWeight * fresnel.eval(dim)
-				* shadowing.eval(dir, fixedDir, frame.w) * nd / (4. * din));
-		outWeight
-				.scale(1. / (specularSamplingWeight * nd * dmn / (4. * dim) + (1. - specularSamplingWeight)
-						* don / Math.PI));
+				* shadowing.eval(dir, fixedDir, frame.w) * nd / (4. * don));
+		outWeight.scale(1. / (specularSamplingWeight * nd * dmn / (4. * dim)
+				+ (1. - specularSamplingWeight) * din / Math.PI));
 	}
 
 	/**
@@ -354,7 +358,8 @@ public class Microfacet implements BRDF {
 		int m = 1000;
 		for (int i = 0; i < m; i++) {
 			for (int j = 0; j < m; j++) {
-				seed.set((i + Math.random()) / m, (j + Math.random()) / m);
+				CounterRandom.sample(i, j, 0, 0, seed);
+				seed.set((i + seed.x) / m, (j + seed.y) / m);
 
 				// Generate a random direction and contribute to a pixel in the
 				// test image
@@ -221,6 +221,7 @@ public class Camera {
 															// along
 		// the up/down axis
 		outRay.direction.normalize(); // Normalize
+		outRay.updateInverse();
 		outRay.makeOffsetRay();
 
 	}
@@ -0,0 +1,94 @@
+package ray.io;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import ray.misc.Color;
+import ray.misc.Image;
+
+/**
+ * Compares two rendered images, e.g. renderings of one scene with the double
+ * and single precision modes of FlatBoundingVolume. Prints the mean absolute,
+ * root mean square and largest difference of the color channels, and the
+ * fraction of pixels differing by more than one 8 bit step. Since renderings
+ * are noisy, the mean difference is what tells whether two images agree; the
+ * program exits with status 1 if it is above the threshold.
+ *
+ * Usage: java ray.io.ImageDiff a.png b.png [threshold [diff.png]]
+ *
+ * The default threshold is 0.005. If diff.png is given the absolute
+ * differences, scaled up by 10, are written to it.
+ */
+public class ImageDiff {
+
+	public static void main(String[] args) {
+
+		if (args.length < 2 || args.length > 4) {
+			System.err.println("usage: java ray.io.ImageDiff a.png b.png [threshold [diff.png]]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2])
+				: 0.005;
+
+		Image a = read(args[0]);
+		Image b = read(args[1]);
+		int width = a.getWidth();
+		int height = a.getHeight();
+		if (b.getWidth() != width || b.getHeight() != height) {
+			System.err.println("Image sizes differ: " + width + "x" + height
+					+ " and " + b.getWidth() + "x" + b.getHeight());
+			System.exit(2);
+		}
+
+		Image diff = new Image(width, height);
+		Color ca = new Color();
+		Color cb = new Color();
+		double sum = 0, sumSquares = 0, max = 0;
+		int differing = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				a.getPixelColor(ca, x, y);
+				b.getPixelColor(cb, x, y);
+				double dr = Math.abs(ca.r - cb.r);
+				double dg = Math.abs(ca.g - cb.g);
+				double db = Math.abs(ca.b - cb.b);
+				sum += dr + dg + db;
+				sumSquares += dr * dr + dg * dg + db * db;
+				double d = Math.max(dr, Math.max(dg, db));
+				max = Math.max(max, d);
+				if (d > 1.5 / 255)
+					differing++;
+				// Image.write() flips rows, reading does not
+				diff.setPixelRGB(Math.min(1, 10 * dr), Math.min(1, 10 * dg),
+						Math.min(1, 10 * db), x, height - 1 - y);
+			}
+		}
+
+		int n = 3 * width * height;
+		double mean = sum / n;
+		System.out.println("mean " + mean + " rms " + Math.sqrt(sumSquares / n)
+				+ " max " + max + " differing pixels "
+				+ ((double) differing / (width * height)));
+		if (args.length > 3)
+			diff.write(args[3]);
+
+		if (mean > threshold) {
+			System.out.println("Images differ (mean difference above "
+					+ threshold + ")");
+			System.exit(1);
+		}
+		System.out.println("Images agree");
+	}
+
+	private static Image read(String fileName) {
+
+		try {
+			return Image.createFromBufferedImage(ImageIO.read(new File(
+					fileName)));
+		} catch (IOException e) {
+			throw new Error("Cannot read image " + fileName + ": " + e);
+		}
+	}
+}
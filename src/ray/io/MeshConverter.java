@@ -0,0 +1,38 @@
+package ray.io;
+
+import ray.surface.Mesh;
+
+/**
+ * Converts .msh text meshes to the binary mesh format read by Mesh.setData.
+ * Binary meshes load with a single memory-mapped read instead of parsing one
+ * number per line, so assets that are loaded often should be converted once.
+ * 
+ * Usage: java ray.io.MeshConverter file.msh [file2.msh ...]
+ * 
+ * Each input is written next to itself with the extension replaced by
+ * Mesh.BINARY_EXTENSION.
+ */
+public class MeshConverter {
+
+	public static void main(String[] args) {
+
+		if (args.length == 0) {
+			System.err.println("usage: java ray.io.MeshConverter file.msh [file2.msh ...]");
+			System.exit(1);
+		}
+
+		for (int i = 0; i < args.length; i++) {
+			String inName = args[i];
+			int dot = inName.lastIndexOf('.');
+			String outName = (dot > inName.lastIndexOf('/') ? inName.substring(
+					0, dot) : inName) + Mesh.BINARY_EXTENSION;
+
+			Mesh mesh = new Mesh();
+			mesh.setData(inName);
+			Mesh.writeBinaryMesh(mesh, outName);
+			System.out.println(inName + " -> " + outName + " ("
+					+ mesh.getNumVertices() + " vertices, "
+					+ mesh.getNumTriangles() + " triangles)");
+		}
+	}
+}
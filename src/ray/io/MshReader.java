@@ -0,0 +1,350 @@
+package ray.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fast reader for the .msh text mesh format. The file is mapped into memory
+ * and numbers are parsed straight from its bytes, so no Strings or other
+ * objects are created per number. The floats are the same, bit for bit, as
+ * Float.parseFloat() gives for the same text.
+ *
+ * A .msh file holds, separated by whitespace (in practice one per line): the
+ * number of vertices n, the number of triangles m, the word "vertices" and 3n
+ * floats, the word "triangles" and 3m ints, then optionally the word
+ * "texcoords" and 2n floats, and optionally the word "normals" and 3n floats.
+ *
+ * Since the sizes of the sections are known from the header, the reader can
+ * find where each section starts by skipping over tokens, which is much
+ * cheaper than parsing them, and then parse the sections on separate threads.
+ */
+public class MshReader {
+
+	/** The vertex coordinates, three per vertex. */
+	public float[] vertices;
+
+	/** The vertex indices, three per triangle. */
+	public int[] triangles;
+
+	/** The texture coordinates, two per vertex, or null if there are none. */
+	public float[] texcoords;
+
+	/** The normals, three per vertex, or null if there are none. */
+	public float[] normals;
+
+	/**
+	 * Read a .msh file.
+	 *
+	 * @param fileName
+	 *            the name of the file
+	 * @param parallel
+	 *            whether to parse the sections of the file on separate threads
+	 * @return the mesh data of the file
+	 * @throws IOException
+	 *             if the file can't be read or is broken
+	 */
+	public static MshReader read(String fileName, boolean parallel)
+			throws IOException {
+
+		ByteBuffer buffer;
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			file.close();
+		}
+
+		MshReader result = new MshReader();
+		Tokenizer in = new Tokenizer(buffer);
+
+		// Read the size of the file
+		int nPoints = in.nextInt();
+		int nPolys = in.nextInt();
+		result.vertices = new float[nPoints * 3];
+		result.triangles = new int[nPolys * 3];
+
+		// Find the sections
+		if (!in.nextWordIs("vertices"))
+			throw new IOException("Broken file - vertices expected");
+		int vertexStart = in.pos;
+		in.skipTokens(result.vertices.length);
+		if (!in.nextWordIs("triangles"))
+			throw new IOException("Broken file - triangles expected.");
+		int triangleStart = in.pos;
+		in.skipTokens(result.triangles.length);
+		int texcoordStart = -1;
+		if (in.nextWordIs("texcoords")) {
+			result.texcoords = new float[nPoints * 2];
+			texcoordStart = in.pos;
+			in.skipTokens(result.texcoords.length);
+		}
+		int normalStart = -1;
+		if (in.nextWordIs("normals")) {
+			result.normals = new float[nPoints * 3];
+			normalStart = in.pos;
+		}
+
+		// Parse them
+		Section[] sections = {
+				new Section(buffer, vertexStart, result.vertices, null),
+				new Section(buffer, triangleStart, null, result.triangles),
+				texcoordStart < 0 ? null : new Section(buffer, texcoordStart,
+						result.texcoords, null),
+				normalStart < 0 ? null : new Section(buffer, normalStart,
+						result.normals, null) };
+		if (parallel) {
+			Thread[] threads = new Thread[sections.length];
+			for (int i = 0; i < sections.length; i++) {
+				if (sections[i] != null) {
+					threads[i] = new Thread(sections[i], "msh-section-" + i);
+					threads[i].start();
+				}
+			}
+			for (int i = 0; i < sections.length; i++) {
+				if (threads[i] != null) {
+					try {
+						threads[i].join();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted reading "
+								+ fileName);
+					}
+				}
+			}
+		} else {
+			for (int i = 0; i < sections.length; i++)
+				if (sections[i] != null)
+					sections[i].run();
+		}
+		for (int i = 0; i < sections.length; i++)
+			if (sections[i] != null && sections[i].failure != null)
+				throw sections[i].failure;
+
+		return result;
+	}
+
+	/**
+	 * The task of parsing one section into its array.
+	 */
+	private static final class Section implements Runnable {
+
+		private final Tokenizer in;
+		private final float[] floats;
+		private final int[] ints;
+		protected IOException failure;
+
+		protected Section(ByteBuffer buffer, int start, float[] floats,
+				int[] ints) {
+			this.in = new Tokenizer(buffer.duplicate());
+			this.in.pos = start;
+			this.floats = floats;
+			this.ints = ints;
+		}
+
+		public void run() {
+			try {
+				if (floats != null)
+					for (int i = 0; i < floats.length; i++)
+						floats[i] = in.nextFloat();
+				else
+					for (int i = 0; i < ints.length; i++)
+						ints[i] = in.nextInt();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Reads whitespace separated tokens from a buffer of ASCII text.
+	 */
+	private static final class Tokenizer {
+
+		/** Exactly representable powers of ten */
+		private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3,
+				1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14,
+				1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+		/**
+		 * The most significant digits that can be gathered in a long and
+		 * converted to a double exactly.
+		 */
+		private static final int MAX_DIGITS = 15;
+
+		/**
+		 * The bits of a double's significand below those of a float, and
+		 * their value when the double is halfway between two floats.
+		 */
+		private static final long FLOAT_HALF_ULP_MASK = (1L << 29) - 1;
+		private static final long FLOAT_HALF_ULP = 1L << 28;
+
+		private final ByteBuffer buffer;
+		private final int limit;
+		protected int pos;
+
+		protected Tokenizer(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.limit = buffer.limit();
+		}
+
+		private void skipSpace() {
+			while (pos < limit && buffer.get(pos) <= ' ')
+				pos++;
+		}
+
+		/**
+		 * Skip over n tokens without parsing them.
+		 */
+		protected void skipTokens(int n) throws IOException {
+			for (int i = 0; i < n; i++) {
+				skipSpace();
+				if (pos >= limit)
+					throw new IOException("Broken file - unexpected end");
+				while (pos < limit && buffer.get(pos) > ' ')
+					pos++;
+			}
+		}
+
+		/**
+		 * If the next token is word, consume it and return true. Otherwise
+		 * consume nothing and return false.
+		 */
+		protected boolean nextWordIs(String word) {
+			skipSpace();
+			int n = word.length();
+			if (pos + n > limit)
+				return false;
+			for (int i = 0; i < n; i++)
+				if (buffer.get(pos + i) != word.charAt(i))
+					return false;
+			if (pos + n < limit && buffer.get(pos + n) > ' ')
+				return false;
+			pos += n;
+			return true;
+		}
+
+		protected int nextInt() throws IOException {
+			skipSpace();
+			int start = pos;
+			boolean negative = false;
+			if (pos < limit
+					&& (buffer.get(pos) == '-' || buffer.get(pos) == '+'))
+				negative = buffer.get(pos++) == '-';
+			long value = 0;
+			int digits = 0;
+			byte c;
+			while (pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9') {
+				value = 10 * value + (c - '0');
+				if (++digits > 10)
+					break;
+				pos++;
+			}
+			if (digits == 0 || digits > 10 || value > Integer.MAX_VALUE
+					|| (pos < limit && buffer.get(pos) > ' '))
+				throw new IOException("Broken file - bad integer \""
+						+ token(start) + "\"");
+			return (int) (negative ? -value : value);
+		}
+
+		protected float nextFloat() throws IOException {
+			skipSpace();
+			int start = pos;
+			boolean negative = false;
+			if (pos < limit
+					&& (buffer.get(pos) == '-' || buffer.get(pos) == '+'))
+				negative = buffer.get(pos++) == '-';
+
+			// Gather the significant digits and the decimal exponent
+			long mantissa = 0;
+			int digits = 0;
+			int exponent = 0;
+			boolean any = false;
+			boolean point = false;
+			byte c;
+			while (pos < limit) {
+				c = buffer.get(pos);
+				if (c >= '0' && c <= '9') {
+					any = true;
+					if (mantissa != 0 || c != '0')
+						digits++;
+					if (digits <= MAX_DIGITS)
+						mantissa = 10 * mantissa + (c - '0');
+					if (point) {
+						if (digits <= MAX_DIGITS)
+							exponent--;
+					} else if (digits > MAX_DIGITS)
+						exponent++;
+				} else if (c == '.' && !point)
+					point = true;
+				else
+					break;
+				pos++;
+			}
+			if (any && pos < limit
+					&& ((c = buffer.get(pos)) == 'e' || c == 'E')) {
+				pos++;
+				boolean negativeExponent = false;
+				if (pos < limit
+						&& (buffer.get(pos) == '-' || buffer.get(pos) == '+'))
+					negativeExponent = buffer.get(pos++) == '-';
+				int e = 0;
+				boolean anyExponent = false;
+				while (pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9') {
+					anyExponent = true;
+					if (e < 10000)
+						e = 10 * e + (c - '0');
+					pos++;
+				}
+				if (!anyExponent)
+					any = false;
+				exponent += negativeExponent ? -e : e;
+			}
+
+			// Anything unusual (too many digits, huge exponents, "NaN"...)
+			// goes to the slow but exact path
+			if (!any || digits > MAX_DIGITS || exponent < -22 || exponent > 22
+					|| (pos < limit && buffer.get(pos) > ' ')) {
+				while (pos < limit && buffer.get(pos) > ' ')
+					pos++;
+				try {
+					return Float.parseFloat(token(start));
+				} catch (NumberFormatException e) {
+					throw new IOException("Broken file - bad number \""
+							+ token(start) + "\"");
+				}
+			}
+
+			// The double is the correctly rounded value of the decimal, and
+			// it rounds to the same float as the decimal does unless it lands
+			// exactly halfway between two floats, where the decimal may lie
+			// to either side. Leave those, and subnormals, to the slow path.
+			double value = mantissa;
+			if (exponent < 0)
+				value /= POWERS_OF_TEN[-exponent];
+			else
+				value *= POWERS_OF_TEN[exponent];
+			long bits = Double.doubleToRawLongBits(value);
+			if ((bits & FLOAT_HALF_ULP_MASK) == FLOAT_HALF_ULP
+					|| (value != 0 && value < Float.MIN_NORMAL))
+				return Float.parseFloat(token(start));
+			return (float) (negative ? -value : value);
+		}
+
+		/**
+		 * The text from start to the end of the current token, for error
+		 * messages and the slow path.
+		 */
+		private String token(int start) {
+			int end = pos;
+			while (end < limit && buffer.get(end) > ' ')
+				end++;
+			byte[] bytes = new byte[end - start];
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = buffer.get(start + i);
+			return new String(bytes);
+		}
+	}
+}
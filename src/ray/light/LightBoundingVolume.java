@@ -0,0 +1,348 @@
+package ray.light;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import ray.accel.AxisAlignedBoundingBox;
+import ray.math.Point2;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.misc.LuminaireSamplingRecord;
+import ray.surface.Surface;
+
+/**
+ * A bounding volume hierarchy over the luminaires of a scene for choosing one
+ * to sample in proportion to an estimate of how much it lights a shading
+ * point, after Conty Estevez and Kulla, "Importance Sampling of Many Lights
+ * with Adaptive Tree Splitting" (HPG 2018). Each node stores the bounding box
+ * of its luminaires, their total power, and a cone bounding their normals.
+ * Choosing a luminaire walks down from the root, picking each child with
+ * probability proportional to its importance: its power over the squared
+ * distance, times the largest cosines at the luminaires and at the shading
+ * point that the bounds allow. The probability of a luminaire is the product
+ * of the choices on its path, which pdf() recomputes exactly by walking up
+ * from its leaf.
+ *
+ * Children whose bounds show that they cannot light the point get importance
+ * zero, so luminaires behind the shading point or facing away from it are
+ * never chosen. Each leaf holds one luminaire.
+ *
+ * The hierarchy is immutable once built, so threads can share it.
+ */
+public class LightBoundingVolume {
+
+	/** The luminaires, by index */
+	private final Surface[] luminaires;
+
+	/** The bounding box of each node, as min x, y, z and max x, y, z */
+	private final double[] box;
+
+	/** The axis of each node's normal cone, as x, y, z */
+	private final double[] axis;
+
+	/** The half angle of each node's normal cone */
+	private final double[] spread;
+
+	/** The total power of each node's luminaires */
+	private final double[] power;
+
+	/** The children of each node, -1 for leaves */
+	private final int[] left, right;
+
+	/** The parent of each node, -1 for the root */
+	private final int[] parent;
+
+	/** The luminaire of each leaf, -1 for inner nodes */
+	private final int[] luminaire;
+
+	/** The leaf of each luminaire */
+	private final int[] leaf;
+
+	/** The number of nodes so far, while building */
+	private int numNodes = 0;
+
+	/**
+	 * Build the hierarchy.
+	 *
+	 * @param luminaires
+	 *            the luminaires
+	 * @param powers
+	 *            the power of each luminaire, or anything proportional to it
+	 */
+	public LightBoundingVolume(List<Surface> luminaires, double[] powers) {
+
+		int n = luminaires.size();
+		this.luminaires = luminaires.toArray(new Surface[n]);
+		int maxNodes = Math.max(1, 2 * n - 1);
+		box = new double[6 * maxNodes];
+		axis = new double[3 * maxNodes];
+		spread = new double[maxNodes];
+		power = new double[maxNodes];
+		left = new int[maxNodes];
+		right = new int[maxNodes];
+		parent = new int[maxNodes];
+		luminaire = new int[maxNodes];
+		leaf = new int[n];
+		if (n == 0)
+			return;
+
+		// The bounds of every luminaire, and its centroid for splitting
+		final double[] centroid = new double[3 * n];
+		AxisAlignedBoundingBox bounds = new AxisAlignedBoundingBox();
+		Vector3 normal = new Vector3();
+		double[] lumBox = new double[6 * n];
+		double[] lumAxis = new double[3 * n];
+		double[] lumSpread = new double[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			Surface s = this.luminaires[i];
+			bounds.clear();
+			s.addToBoundingBox(bounds);
+			for (int k = 0; k < 3; k++) {
+				lumBox[6 * i + k] = bounds.getMin(k);
+				lumBox[6 * i + 3 + k] = bounds.getMax(k);
+				centroid[3 * i + k] = 0.5 * (bounds.getMin(k) + bounds.getMax(k));
+			}
+			lumSpread[i] = s.getNormalBounds(normal);
+			lumAxis[3 * i] = normal.x;
+			lumAxis[3 * i + 1] = normal.y;
+			lumAxis[3 * i + 2] = normal.z;
+			order[i] = i;
+		}
+
+		parent[0] = -1;
+		build(order, 0, n, centroid, lumBox, lumAxis, lumSpread, powers);
+	}
+
+	/**
+	 * Build the subtree over order[start..end) into the next free node.
+	 *
+	 * @return the index of the subtree's root
+	 */
+	private int build(Integer[] order, int start, int end,
+			final double[] centroid, double[] lumBox, double[] lumAxis,
+			double[] lumSpread, double[] powers) {
+
+		int node = numNodes++;
+		if (end - start == 1) {
+			int i = order[start];
+			System.arraycopy(lumBox, 6 * i, box, 6 * node, 6);
+			System.arraycopy(lumAxis, 3 * i, axis, 3 * node, 3);
+			spread[node] = lumSpread[i];
+			power[node] = Math.max(0, powers[i]);
+			left[node] = right[node] = -1;
+			luminaire[node] = i;
+			leaf[i] = node;
+			return node;
+		}
+
+		// Split at the median centroid along the longest axis of the
+		// centroids' bounds
+		double[] lo = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.POSITIVE_INFINITY };
+		double[] hi = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+				Double.NEGATIVE_INFINITY };
+		for (int j = start; j < end; j++) {
+			int i = order[j];
+			for (int k = 0; k < 3; k++) {
+				lo[k] = Math.min(lo[k], centroid[3 * i + k]);
+				hi[k] = Math.max(hi[k], centroid[3 * i + k]);
+			}
+		}
+		int longest = 0;
+		for (int k = 1; k < 3; k++)
+			if (hi[k] - lo[k] > hi[longest] - lo[longest])
+				longest = k;
+		final int splitAxis = longest;
+		Arrays.sort(order, start, end, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(centroid[3 * a + splitAxis],
+						centroid[3 * b + splitAxis]);
+			}
+		});
+		int mid = (start + end) / 2;
+
+		int l = build(order, start, mid, centroid, lumBox, lumAxis,
+				lumSpread, powers);
+		int r = build(order, mid, end, centroid, lumBox, lumAxis, lumSpread,
+				powers);
+		left[node] = l;
+		right[node] = r;
+		parent[l] = parent[r] = node;
+		luminaire[node] = -1;
+
+		for (int k = 0; k < 3; k++) {
+			box[6 * node + k] = Math.min(box[6 * l + k], box[6 * r + k]);
+			box[6 * node + 3 + k] = Math.max(box[6 * l + 3 + k],
+					box[6 * r + 3 + k]);
+		}
+		power[node] = power[l] + power[r];
+		mergeCones(node, l, r);
+		return node;
+	}
+
+	/**
+	 * Set the normal cone of a node to one containing the cones of two others.
+	 */
+	private void mergeCones(int node, int a, int b) {
+
+		if (spread[a] < spread[b]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		double ax = axis[3 * a], ay = axis[3 * a + 1], az = axis[3 * a + 2];
+		double bx = axis[3 * b], by = axis[3 * b + 1], bz = axis[3 * b + 2];
+		double cosD = Math.max(-1, Math.min(1, ax * bx + ay * by + az * bz));
+		double angleD = Math.acos(cosD);
+
+		// a contains b
+		if (Math.min(angleD + spread[b], Math.PI) <= spread[a]) {
+			setCone(node, ax, ay, az, spread[a]);
+			return;
+		}
+
+		// Rotate a's axis toward b's to the middle of the combined cone
+		double angle = 0.5 * (spread[a] + angleD + spread[b]);
+		double px = bx - cosD * ax, py = by - cosD * ay, pz = bz - cosD * az;
+		double pLength = Math.sqrt(px * px + py * py + pz * pz);
+		if (angle >= Math.PI || pLength < 1e-12) {
+			setCone(node, ax, ay, az, Math.PI);
+			return;
+		}
+		double rotate = angle - spread[a];
+		double c = Math.cos(rotate), s = Math.sin(rotate) / pLength;
+		double nx = c * ax + s * px, ny = c * ay + s * py, nz = c * az + s
+				* pz;
+		double nLength = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		setCone(node, nx / nLength, ny / nLength, nz / nLength, angle);
+	}
+
+	private void setCone(int node, double x, double y, double z, double angle) {
+		axis[3 * node] = x;
+		axis[3 * node + 1] = y;
+		axis[3 * node + 2] = z;
+		spread[node] = angle;
+	}
+
+	/**
+	 * The importance of a node to a shading point: its power over the squared
+	 * distance to its center (but no closer than the radius of its box),
+	 * times bounds on the cosine of the emitted direction at its luminaires
+	 * and of the incident direction at the point.
+	 *
+	 * @param n
+	 *            the normal at the point, or null to leave out the cosine
+	 *            there
+	 */
+	private double importance(int node, Point3 p, Vector3 n) {
+
+		if (power[node] <= 0)
+			return 0;
+
+		// The direction from the point to the center of the box
+		int b = 6 * node;
+		double dx = 0.5 * (box[b] + box[b + 3]) - p.x;
+		double dy = 0.5 * (box[b + 1] + box[b + 4]) - p.y;
+		double dz = 0.5 * (box[b + 2] + box[b + 5]) - p.z;
+		double d2 = dx * dx + dy * dy + dz * dz;
+		double ex = box[b + 3] - box[b], ey = box[b + 4] - box[b + 1], ez = box[b + 5]
+				- box[b + 2];
+		double r2 = 0.25 * (ex * ex + ey * ey + ez * ez);
+		if (d2 <= r2)
+			return power[node] / Math.max(r2, Double.MIN_NORMAL);
+
+		// The half angle of the box's bounding sphere as seen from the point
+		double d = Math.sqrt(d2);
+		double angleU = Math.asin(Math.sqrt(r2 / d2));
+		dx /= d;
+		dy /= d;
+		dz /= d;
+
+		// Emitted toward the point: the angle between the cone axis and the
+		// direction from the box to the point, less what the bounds allow
+		int a = 3 * node;
+		double cosE = -(axis[a] * dx + axis[a + 1] * dy + axis[a + 2] * dz);
+		double angleE = Math.acos(Math.max(-1, Math.min(1, cosE))) - spread[node]
+				- angleU;
+		if (angleE >= 0.5 * Math.PI)
+			return 0;
+		double importance = power[node] * Math.cos(Math.max(0, angleE)) / d2;
+
+		// Incident at the point
+		if (n != null) {
+			double cosI = n.x * dx + n.y * dy + n.z * dz;
+			double angleI = Math.acos(Math.max(-1, Math.min(1, cosI)))
+					- angleU;
+			if (angleI >= 0.5 * Math.PI)
+				return 0;
+			importance *= Math.cos(Math.max(0, angleI));
+		}
+		return importance;
+	}
+
+	/**
+	 * Choose a luminaire for lighting a point.
+	 *
+	 * @param p
+	 *            the point
+	 * @param n
+	 *            the normal at the point, or null for a point in a volume
+	 * @param seed
+	 *            seed.x chooses the luminaire, and is replaced by a new
+	 *            uniform number for choosing a point on it
+	 * @param lRec
+	 *            lRec.surface is set to the luminaire
+	 * @return the probability of choosing the luminaire, or 0 if none can
+	 *         light the point
+	 */
+	public double choose(Point3 p, Vector3 n, Point2 seed,
+			LuminaireSamplingRecord lRec) {
+
+		if (luminaires.length == 0)
+			return 0;
+		double u = seed.x;
+		double pdf = 1;
+		int node = 0;
+		while (left[node] >= 0) {
+			double l = importance(left[node], p, n);
+			double r = importance(right[node], p, n);
+			if (l + r <= 0)
+				return 0;
+			double pLeft = l / (l + r);
+			if (u < pLeft) {
+				u = u / pLeft;
+				pdf *= pLeft;
+				node = left[node];
+			} else {
+				u = (u - pLeft) / (1 - pLeft);
+				pdf *= 1 - pLeft;
+				node = right[node];
+			}
+		}
+		seed.x = Math.min(u, Math.nextDown(1.0));
+		lRec.surface = luminaires[luminaire[node]];
+		return power[node] > 0 ? pdf : 0;
+	}
+
+	/**
+	 * @return the probability that choose() picks a luminaire for a point
+	 */
+	public double pdf(Point3 p, Vector3 n, int index) {
+
+		int node = leaf[index];
+		if (power[node] <= 0)
+			return 0;
+		double pdf = 1;
+		for (int up = parent[node]; up >= 0; node = up, up = parent[up]) {
+			double l = importance(left[up], p, n);
+			double r = importance(right[up], p, n);
+			if (l + r <= 0)
+				return 0;
+			double pLeft = l / (l + r);
+			pdf *= node == left[up] ? pLeft : 1 - pLeft;
+		}
+		return pdf;
+	}
+}
@@ -0,0 +1,204 @@
+package ray.misc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The running sums of the radiance samples of every pixel, so that an image can
+ * be rendered in passes that each add a few samples per pixel. The image shown
+ * after a pass is the mean of the samples so far, see resolve().
+ * 
+ * For adaptive sampling the buffer also keeps the running mean and variance
+ * of the channel average of each pixel's samples (by Welford's method), from
+ * which getError() estimates how far the pixel's mean may still be off.
+ * 
+ * Passes render disjoint blocks of pixels on different threads, so the buffer
+ * needs no locking as long as no two threads render the same block at once.
+ */
+public class AccumulationBuffer {
+
+	/** Size of the image */
+	protected final int width, height;
+
+	/** The sum of the samples of each pixel, three channels per pixel */
+	protected final double[] sum;
+
+	/** The number of samples of each pixel */
+	protected final int[] count;
+
+	/**
+	 * The running mean of the channel average of the samples of each pixel,
+	 * and the sum of squared differences from it
+	 */
+	protected final double[] mean, m2;
+
+	/** The z value of a 95% confidence interval */
+	protected static final double Z = 1.96;
+
+	/**
+	 * The smallest mean that getError() is relative to, so that nearly black
+	 * pixels don't need an unreachable absolute precision
+	 */
+	protected static final double MIN_MEAN = 1e-3;
+
+	/**
+	 * Create an empty buffer.
+	 * 
+	 * @param width
+	 *            the width of the image
+	 * @param height
+	 *            the height of the image
+	 */
+	public AccumulationBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		sum = new double[3 * width * height];
+		count = new int[width * height];
+		mean = new double[width * height];
+		m2 = new double[width * height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Add a sample to a pixel.
+	 * 
+	 * @param sample
+	 *            the radiance of the sample
+	 */
+	public void add(int x, int y, Color sample) {
+
+		int i = y * width + x;
+		sum[3 * i] += sample.r;
+		sum[3 * i + 1] += sample.g;
+		sum[3 * i + 2] += sample.b;
+		int n = ++count[i];
+
+		double v = sample.channelAvg();
+		double delta = v - mean[i];
+		mean[i] += delta / n;
+		m2[i] += delta * (v - mean[i]);
+	}
+
+	/**
+	 * @return the number of samples of a pixel so far
+	 */
+	public int getSampleCount(int x, int y) {
+		return count[y * width + x];
+	}
+
+	/**
+	 * Estimate the error of a pixel's mean: the half width of the 95%
+	 * confidence interval of the mean channel average, relative to that mean
+	 * (or to MIN_MEAN if it is smaller).
+	 * 
+	 * @return the relative error, or positive infinity with fewer than two
+	 *         samples
+	 */
+	public double getError(int x, int y) {
+
+		int i = y * width + x;
+		int n = count[i];
+		if (n < 2)
+			return Double.POSITIVE_INFINITY;
+		double variance = m2[i] / (n - 1);
+		return Z * Math.sqrt(variance / n) / Math.max(mean[i], MIN_MEAN);
+	}
+
+	/**
+	 * Get the mean radiance of a pixel, or black if it has no samples yet.
+	 */
+	public void getMean(Color outColor, int x, int y) {
+
+		int i = y * width + x;
+		if (count[i] == 0) {
+			outColor.set(0, 0, 0);
+			return;
+		}
+		double scale = 1.0 / count[i];
+		outColor.set(sum[3 * i] * scale, sum[3 * i + 1] * scale,
+				sum[3 * i + 2] * scale);
+	}
+
+	/**
+	 * Drop all the samples of a block of pixels.
+	 */
+	public void clear(int offsetX, int offsetY, int sizeX, int sizeY) {
+
+		for (int y = offsetY; y < offsetY + sizeY; y++) {
+			for (int x = offsetX; x < offsetX + sizeX; x++) {
+				int i = y * width + x;
+				sum[3 * i] = sum[3 * i + 1] = sum[3 * i + 2] = 0;
+				count[i] = 0;
+				mean[i] = m2[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Write the samples of every pixel to a stream, so that read() can restore
+	 * them exactly.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+
+		for (int i = 0; i < count.length; i++) {
+			out.writeInt(count[i]);
+			if (count[i] == 0)
+				continue;
+			out.writeDouble(sum[3 * i]);
+			out.writeDouble(sum[3 * i + 1]);
+			out.writeDouble(sum[3 * i + 2]);
+			out.writeDouble(mean[i]);
+			out.writeDouble(m2[i]);
+		}
+	}
+
+	/**
+	 * Replace the samples of every pixel with those written by write() from a
+	 * buffer of the same size.
+	 */
+	public void read(DataInputStream in) throws IOException {
+
+		for (int i = 0; i < count.length; i++) {
+			count[i] = in.readInt();
+			if (count[i] == 0) {
+				sum[3 * i] = sum[3 * i + 1] = sum[3 * i + 2] = 0;
+				mean[i] = m2[i] = 0;
+				continue;
+			}
+			sum[3 * i] = in.readDouble();
+			sum[3 * i + 1] = in.readDouble();
+			sum[3 * i + 2] = in.readDouble();
+			mean[i] = in.readDouble();
+			m2[i] = in.readDouble();
+		}
+	}
+
+	/**
+	 * Write the gamma corrected and clamped mean of a block of pixels to an
+	 * image.
+	 * 
+	 * @param outImage
+	 *            an image of the size of this buffer
+	 */
+	public void resolve(Image outImage, int offsetX, int offsetY, int sizeX,
+			int sizeY) {
+
+		Color pixelColor = new Color();
+		for (int y = offsetY; y < offsetY + sizeY; y++) {
+			for (int x = offsetX; x < offsetX + sizeX; x++) {
+				getMean(pixelColor, x, y);
+				pixelColor.gammaCorrect(2.2);
+				pixelColor.clamp(0, 1);
+				outImage.setPixelColor(pixelColor, x, y);
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package ray.misc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The progress of a progressive render after some pass: the accumulation
+ * buffer and how many passes, samples and seconds it took. Since the samples
+ * of a pixel only depend on the pixel and on how many samples it has already,
+ * a render that continues from a checkpoint draws the same samples as one
+ * that was never interrupted.
+ *
+ * The samples also depend on everything else in the scene, so a checkpoint
+ * carries a fingerprint of the scene (RayTracer uses the hash of the scene
+ * file and its meshes) and read() refuses one written for another scene, or
+ * for the same file edited since: another sampler, seed, renderer or
+ * progressive schedule would otherwise mix the samples of two renders.
+ *
+ * The file is binary: a header of the magic number, the version, the image
+ * size, the sampler's number of samples, the fingerprint (a UTF string) and
+ * the progress, then the buffer
+ * (see AccumulationBuffer.write()). It is written to a temporary file first
+ * and renamed over the old checkpoint, so a crash while writing leaves the
+ * old one intact.
+ */
+public class Checkpoint {
+
+	/** "RTCK" */
+	protected static final int MAGIC = 0x5254434b;
+	protected static final int VERSION = 2;
+
+	/** The samples so far */
+	public final AccumulationBuffer accum;
+
+	/** The sampler's number of samples, which the samples depend on */
+	public final int patternSize;
+
+	/** The number of passes done */
+	public int pass;
+
+	/** The number of samples per pixel of those passes, at most */
+	public int samples;
+
+	/** The rendering time of those passes, in milliseconds */
+	public long elapsed;
+
+	/** What the samples were drawn for, see the class comment */
+	public final String fingerprint;
+
+	public Checkpoint(AccumulationBuffer accum, int patternSize,
+			String fingerprint) {
+		this.accum = accum;
+		this.patternSize = patternSize;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Save the checkpoint, replacing the file atomically.
+	 */
+	public void write(File file) throws IOException {
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(accum.getWidth());
+			out.writeInt(accum.getHeight());
+			out.writeInt(patternSize);
+			out.writeUTF(fingerprint);
+			out.writeInt(pass);
+			out.writeInt(samples);
+			out.writeLong(elapsed);
+			accum.write(out);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Load a checkpoint written by write() into this one.
+	 *
+	 * @throws IOException
+	 *             if the file can't be read or was written for a different
+	 *             image size, sampler or scene
+	 */
+	public void read(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(file + " is not a checkpoint");
+			int width = in.readInt();
+			int height = in.readInt();
+			int size = in.readInt();
+			if (width != accum.getWidth() || height != accum.getHeight()
+					|| size != patternSize)
+				throw new IOException(file + " is for a " + width + "x"
+						+ height + " image of " + size
+						+ " samples per pixel, not " + accum.getWidth() + "x"
+						+ accum.getHeight() + " of " + patternSize);
+			if (!in.readUTF().equals(fingerprint))
+				throw new IOException(file
+						+ " is for another scene, or the scene has changed");
+			pass = in.readInt();
+			samples = in.readInt();
+			elapsed = in.readLong();
+			accum.read(in);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package ray.misc;
+
+/**
+ * The results of tracing a RayBatch. Entry i belongs to ray i of the batch:
+ * hit[i] says whether the ray hit anything (or, for an occlusion query,
+ * whether it is blocked) and records[i] holds the first intersection after a
+ * closest hit query. Records of rays that missed are unchanged.
+ */
+public class HitBatch {
+
+	/** Whether each ray hit something. */
+	public final boolean[] hit;
+
+	/** The first intersection of each ray. */
+	public final IntersectionRecord[] records;
+
+	/** Work space for finishing the records after a closest hit query. */
+	final Ray ray = new Ray();
+
+	/**
+	 * Create a hit batch for ray batches of up to the given size.
+	 * 
+	 * @param capacity
+	 *            the largest number of rays whose results can be held
+	 */
+	public HitBatch(int capacity) {
+		hit = new boolean[capacity];
+		records = new IntersectionRecord[capacity];
+		for (int i = 0; i < capacity; i++)
+			records[i] = new IntersectionRecord();
+	}
+
+	/**
+	 * @return the largest number of rays whose results can be held
+	 */
+	public int capacity() {
+		return hit.length;
+	}
+}
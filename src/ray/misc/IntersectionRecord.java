@@ -8,6 +8,12 @@ import ray.surface.Surface;
  * This class is really just a struct, holding necessary information about a
  * particular intersection point.
  * 
+ * It is filled out in two steps. Surface.intersect records only what is
+ * needed to find the closest hit and to finish it later: t, the surface, the
+ * primitive and the surface coordinates u and v. Surface.completeIntersection
+ * then computes the frame and the texture coordinates, once for the hit that
+ * is kept. Scene does the second step for every record it returns.
+ * 
  * @author ags
  */
 public class IntersectionRecord {
@@ -27,6 +33,19 @@ public class IntersectionRecord {
 	/** The t value along the ray at which the intersection occurred. */
 	public double t = 0;
 
+	/**
+	 * The part of the surface that was hit, when the surface is made of parts:
+	 * for a Mesh the index of the triangle. Not set for other surfaces.
+	 */
+	public int primitive = -1;
+
+	/**
+	 * Coordinates of the intersection point on the surface, set by intersect
+	 * for completeIntersection: for triangles the barycentric coordinates of
+	 * the second and third vertex.
+	 */
+	public double u = 0, v = 0;
+
 	/**
 	 * Set this intersection record to the value of inRecord
 	 * 
@@ -39,6 +58,9 @@ public class IntersectionRecord {
 		texCoords.set(inRecord.texCoords);
 		surface = inRecord.surface;
 		t = inRecord.t;
+		primitive = inRecord.primitive;
+		u = inRecord.u;
+		v = inRecord.v;
 
 	}
 
@@ -0,0 +1,140 @@
+package ray.misc;
+
+/**
+ * The settings of progressive rendering, which, like the number of threads,
+ * aren't really part of the scene but need to be parsed. Without them the
+ * whole image is rendered in one pass of sampler.getNumSamples() samples per
+ * pixel. With them it is rendered in passes of samplesPerPass samples per
+ * pixel, and the image (and the display) shows the mean of all the passes so
+ * far. Rendering stops after maxSamples samples per pixel or after the first
+ * pass that ends past timeLimit, whichever comes first.
+ * 
+ * Setting errorThreshold makes the sampling adaptive: the first pass gives
+ * every pixel minSamples samples, and later passes only add samples to the
+ * pixels whose estimated relative error (see AccumulationBuffer.getError())
+ * is still above the threshold, so that flat and converged pixels stop early
+ * and the rest of the budget goes to the noisy ones. Rendering then also
+ * stops once every pixel has converged or reached maxSamples.
+ * 
+ * For example, a preview that refines for a minute and saves the image every
+ * 4 passes:
+ * 
+ * <progressive> <samplesPerPass>1</samplesPerPass>
+ * <maxSamples>0</maxSamples> <timeLimit>60</timeLimit>
+ * <snapshotInterval>4</snapshotInterval> </progressive>
+ * 
+ * or an adaptive final render of 16 to 1024 samples per pixel:
+ * 
+ * <progressive> <samplesPerPass>8</samplesPerPass>
+ * <minSamples>16</minSamples> <maxSamples>1024</maxSamples>
+ * <errorThreshold>0.02</errorThreshold> </progressive>
+ * 
+ * A long render can also save its progress every checkpointInterval seconds
+ * (see Checkpoint), so that RayTracer --resume can continue it after a crash.
+ */
+public class ProgressiveSettings {
+
+	/** The number of samples per pixel added by each pass */
+	protected int samplesPerPass = 1;
+
+	/**
+	 * The number of samples per pixel to stop at; 0 means the sampler's number
+	 * of samples, or no limit if there is a time limit
+	 */
+	protected int maxSamples = 0;
+
+	/**
+	 * The number of samples per pixel of the first pass; 0 means
+	 * samplesPerPass
+	 */
+	protected int minSamples = 0;
+
+	/**
+	 * The relative error below which a pixel gets no more samples; 0 to give
+	 * every pixel the same number of samples
+	 */
+	protected double errorThreshold = 0;
+
+	/** The time in seconds after which no pass is started; 0 for no limit */
+	protected double timeLimit = 0;
+
+	/**
+	 * Write the output image after every this many passes; 0 to only write
+	 * it at the end
+	 */
+	protected int snapshotInterval = 0;
+
+	/**
+	 * Write a checkpoint after the first pass that ends this many seconds
+	 * after the last one; 0 for no checkpoints
+	 */
+	protected double checkpointInterval = 0;
+
+	public ProgressiveSettings() {
+	}
+
+	public int getSamplesPerPass() {
+		return samplesPerPass;
+	}
+
+	public void setSamplesPerPass(int samplesPerPass) {
+		if (samplesPerPass < 1)
+			throw new Error("samplesPerPass must be at least 1");
+		this.samplesPerPass = samplesPerPass;
+	}
+
+	/**
+	 * @param patternSize
+	 *            the sampler's number of samples
+	 * @return the number of samples per pixel to stop at
+	 */
+	public int getMaxSamples(int patternSize) {
+		if (maxSamples > 0)
+			return maxSamples;
+		return timeLimit > 0 ? Integer.MAX_VALUE : patternSize;
+	}
+
+	public void setMaxSamples(int maxSamples) {
+		this.maxSamples = maxSamples;
+	}
+
+	public int getMinSamples() {
+		return minSamples > 0 ? minSamples : samplesPerPass;
+	}
+
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	public double getErrorThreshold() {
+		return errorThreshold;
+	}
+
+	public void setErrorThreshold(double errorThreshold) {
+		this.errorThreshold = errorThreshold;
+	}
+
+	public double getTimeLimit() {
+		return timeLimit;
+	}
+
+	public void setTimeLimit(double timeLimit) {
+		this.timeLimit = timeLimit;
+	}
+
+	public int getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	public void setSnapshotInterval(int snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	public double getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public void setCheckpointInterval(double checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+}
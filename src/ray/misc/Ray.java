@@ -23,6 +23,16 @@ public class Ray {
 	/** The normalized direction in which the ray travels. */
 	public final Vector3 direction = new Vector3();
 
+	/**
+	 * The componentwise reciprocal of the direction, and for each axis 1 if the
+	 * direction is negative along it and 0 otherwise. Box tests use these so
+	 * that they need neither divisions nor branches. They are kept up to date
+	 * by the constructors and the set methods; code that changes direction
+	 * directly must call updateInverse() afterwards.
+	 */
+	public final Vector3 invDirection = new Vector3();
+	public int signX, signY, signZ;
+
 	/**
 	 * It is convenient to have a ray have a start and end t values. The start
 	 * value lets the ray be offset slightly from surfaces avoiding self
@@ -56,11 +66,16 @@ public class Ray {
 
 		origin.set(newOrigin);
 		direction.set(newDirection);
+		updateInverse();
 	}
 
 	public Ray(Ray ray) {
 		this.origin.set(ray.origin);
 		this.direction.set(ray.direction);
+		this.invDirection.set(ray.invDirection);
+		this.signX = ray.signX;
+		this.signY = ray.signY;
+		this.signZ = ray.signZ;
 		this.start = ray.start;
 		this.end = ray.end;
 	}
@@ -77,6 +92,7 @@ public class Ray {
 
 		origin.set(newOrigin);
 		direction.set(newDirection);
+		updateInverse();
 	}
 
 	/**
@@ -91,6 +107,19 @@ public class Ray {
 
 		this.origin.set(origin);
 		direction.sub(destination, origin);
+		updateInverse();
+	}
+
+	/**
+	 * Recompute the reciprocal direction and the direction signs after the
+	 * direction has been changed.
+	 */
+	public void updateInverse() {
+
+		invDirection.set(1 / direction.x, 1 / direction.y, 1 / direction.z);
+		signX = invDirection.x < 0 ? 1 : 0;
+		signY = invDirection.y < 0 ? 1 : 0;
+		signZ = invDirection.z < 0 ? 1 : 0;
 	}
 
 	/**
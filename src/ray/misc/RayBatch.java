@@ -0,0 +1,156 @@
+package ray.misc;
+
+/**
+ * A batch of rays stored as a structure of arrays, so that one box can be
+ * tested against many rays while their data lies next to each other in memory.
+ * Batches are filled with add() and traced with Scene.getFirstIntersection or
+ * Scene.occluded; the results land in a HitBatch at the same indices.
+ * 
+ * Like Ray, the inverse directions and direction signs are computed when a ray
+ * is added.
+ */
+public class RayBatch {
+
+	/** The number of rays in the batch. */
+	public int size;
+
+	/** Origins, directions and inverse directions, one entry per ray. */
+	public final double[] ox, oy, oz;
+	public final double[] dx, dy, dz;
+	public final double[] invX, invY, invZ;
+
+	/** Direction signs (1 if negative along the axis), one entry per ray. */
+	public final int[] signX, signY, signZ;
+
+	/** Starting and ending t values, one entry per ray. */
+	public final double[] start, end;
+
+	/**
+	 * Create an empty batch.
+	 * 
+	 * @param capacity
+	 *            the largest number of rays the batch can hold
+	 */
+	public RayBatch(int capacity) {
+		ox = new double[capacity];
+		oy = new double[capacity];
+		oz = new double[capacity];
+		dx = new double[capacity];
+		dy = new double[capacity];
+		dz = new double[capacity];
+		invX = new double[capacity];
+		invY = new double[capacity];
+		invZ = new double[capacity];
+		signX = new int[capacity];
+		signY = new int[capacity];
+		signZ = new int[capacity];
+		start = new double[capacity];
+		end = new double[capacity];
+	}
+
+	/**
+	 * @return the largest number of rays the batch can hold
+	 */
+	public int capacity() {
+		return start.length;
+	}
+
+	/**
+	 * Remove all the rays from the batch.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Append a copy of a ray to the batch.
+	 * 
+	 * @param ray
+	 *            the ray to add, with its inverse direction up to date
+	 * @return the index of the ray in the batch
+	 */
+	public int add(Ray ray) {
+
+		if (size == start.length)
+			throw new Error("RayBatch is full (" + size + " rays)");
+		int i = size++;
+		set(i, ray);
+		return i;
+	}
+
+	/**
+	 * Replace one ray of the batch with a copy of a ray. The size of the batch
+	 * is not changed.
+	 * 
+	 * @param i
+	 *            the index of the ray to replace
+	 * @param ray
+	 *            the new ray, with its inverse direction up to date
+	 */
+	public void set(int i, Ray ray) {
+
+		ox[i] = ray.origin.x;
+		oy[i] = ray.origin.y;
+		oz[i] = ray.origin.z;
+		dx[i] = ray.direction.x;
+		dy[i] = ray.direction.y;
+		dz[i] = ray.direction.z;
+		invX[i] = ray.invDirection.x;
+		invY[i] = ray.invDirection.y;
+		invZ[i] = ray.invDirection.z;
+		signX[i] = ray.signX;
+		signY[i] = ray.signY;
+		signZ[i] = ray.signZ;
+		start[i] = ray.start;
+		end[i] = ray.end;
+	}
+
+	/**
+	 * Replace one ray of the batch with a ray of another batch (or of this
+	 * one). The size of the batch is not changed.
+	 * 
+	 * @param i
+	 *            the index of the ray to replace
+	 * @param from
+	 *            the batch to copy from
+	 * @param j
+	 *            the index of the ray to copy
+	 */
+	public void set(int i, RayBatch from, int j) {
+
+		ox[i] = from.ox[j];
+		oy[i] = from.oy[j];
+		oz[i] = from.oz[j];
+		dx[i] = from.dx[j];
+		dy[i] = from.dy[j];
+		dz[i] = from.dz[j];
+		invX[i] = from.invX[j];
+		invY[i] = from.invY[j];
+		invZ[i] = from.invZ[j];
+		signX[i] = from.signX[j];
+		signY[i] = from.signY[j];
+		signZ[i] = from.signZ[j];
+		start[i] = from.start[j];
+		end[i] = from.end[j];
+	}
+
+	/**
+	 * Copy one ray of the batch into outRay.
+	 * 
+	 * @param i
+	 *            the index of the ray
+	 * @param outRay
+	 *            the output ray
+	 */
+	public void get(int i, Ray outRay) {
+
+		outRay.origin.set(ox[i], oy[i], oz[i]);
+		outRay.direction.set(dx[i], dy[i], dz[i]);
+		outRay.invDirection.set(invX[i], invY[i], invZ[i]);
+		outRay.signX = signX[i];
+		outRay.signY = signY[i];
+		outRay.signZ = signZ[i];
+		outRay.start = start[i];
+		outRay.end = end[i];
+	}
+}
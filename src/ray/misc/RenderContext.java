@@ -0,0 +1,78 @@
+package ray.misc;
+
+import ray.math.Point2;
+import ray.math.Vector3;
+import ray.renderer.PathPool;
+
+/**
+ * All the work space needed to compute the radiance of a ray. Renderers,
+ * illuminators and the scene keep no mutable state of their own; instead each
+ * rendering thread owns one of these and passes it down through every call, so
+ * that one scene can be rendered by several threads at once without locking
+ * and without allocating anything per ray.
+ *
+ * There is no random number generator here: all random numbers come from the
+ * sampler, keyed by pixel, sample and dimension, so that the result doesn't
+ * depend on which thread renders which block.
+ *
+ * Like IntersectionRecord this is really just a struct. Each field has one
+ * role, noted below, so that nested calls (a renderer calling an illuminator
+ * calling the scene) never overwrite each other's values.
+ */
+public class RenderContext {
+
+	/** The surface point being shaded (used by renderers). */
+	public final IntersectionRecord iRec = new IntersectionRecord();
+
+	/**
+	 * Hits of rays cast from the shading point, e.g. toward luminaires (used
+	 * by illuminators and Scene.incidentRadiance).
+	 */
+	public final IntersectionRecord lightIRec = new IntersectionRecord();
+
+	/**
+	 * Input to Material.emittedRadiance (used by renderers, illuminators and
+	 * Scene.incidentRadiance, never across a call to one another).
+	 */
+	public final LuminaireSamplingRecord lRec = new LuminaireSamplingRecord();
+
+	/** A point chosen on a luminaire (used by illuminators). */
+	public final LuminaireSamplingRecord lumRec = new LuminaireSamplingRecord();
+
+	/** Rays cast from the shading point (used by illuminators and the scene). */
+	public final Ray ray = new Ray();
+
+	/** The ray that extends a path from vertex to vertex (path tracers). */
+	public final Ray pathRay = new Ray();
+
+	/** Random seed on the unit square (used by renderers). */
+	public final Point2 seed = new Point2();
+
+	/** Incident and exitant directions at the shading point. */
+	public final Vector3 incDir = new Vector3();
+	public final Vector3 outDir = new Vector3();
+
+	/** The normal at the shading point (used by illuminators). */
+	public final Vector3 normal = new Vector3();
+
+	/** Radiance emitted and directly reflected at the shading point. */
+	public final Color emittedRadiance = new Color();
+	public final Color directRadiance = new Color();
+
+	/**
+	 * The product of BRDF weights along a path so far, and the weight of its
+	 * latest bounce (path tracers).
+	 */
+	public final Color throughput = new Color();
+	public final Color bounceWeight = new Color();
+
+	/**
+	 * The paths in flight of a wavefront renderer, created by the renderer
+	 * when it first renders with this context.
+	 */
+	public PathPool pathPool = null;
+
+	/** Temporaries for BRDF values and incident radiance (illuminators). */
+	public final Color brdfValue = new Color();
+	public final Color radiance = new Color();
+}
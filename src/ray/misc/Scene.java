@@ -1,12 +1,14 @@
 package ray.misc;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 import ray.accel.AccelerationStructure;
-import ray.accel.BoundingVolume;
+import ray.accel.FlatBoundingVolume;
 import ray.background.Background;
 import ray.background.Uniform;
 import ray.camera.Camera;
+import ray.light.LightBoundingVolume;
 import ray.light.PointLight;
 import ray.material.Material;
 import ray.math.Point2;
@@ -14,6 +16,7 @@ import ray.math.Point3;
 import ray.math.Vector3;
 import ray.renderer.DirectOnlyRenderer;
 import ray.renderer.Renderer;
+import ray.sampling.AliasTable;
 import ray.sampling.IndependentSampler;
 import ray.sampling.SampleGenerator;
 import ray.surface.Mesh;
@@ -37,6 +40,21 @@ public class Scene {
 	/** The list of surfaces in the scene that happen to be emitters. */
 	protected ArrayList<Surface> luminaires = new ArrayList<Surface>();
 
+	/**
+	 * The distribution luminaires are chosen from, proportional to their
+	 * power, and the index of each luminaire in it. Built with the
+	 * acceleration structure.
+	 */
+	protected AliasTable luminaireTable;
+	protected IdentityHashMap<Surface, Integer> luminaireIndex;
+
+	/**
+	 * How luminaires are chosen, see setLuminaireSampling(), and the
+	 * hierarchy for choosing them by importance, if that is the strategy
+	 */
+	protected String luminaireSampling = "power";
+	protected LightBoundingVolume lightHierarchy;
+
 	protected ArrayList<PointLight> pointLights = new ArrayList<PointLight>();
 
 	/** The list of materials in the scene. */
@@ -59,6 +77,18 @@ public class Scene {
 	 */
 	protected SampleGenerator sampler = new IndependentSampler();
 
+	/**
+	 * The number of threads used to render the image, which isn't really part
+	 * of the scene either. Defaults to one per available processor.
+	 */
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The settings of progressive rendering, or null to render every pixel
+	 * completely in one pass.
+	 */
+	protected ProgressiveSettings progressive = null;
+
 	/** Image to be produced by the renderer **/
 	protected Image outputImage;
 
@@ -69,7 +99,17 @@ public class Scene {
 	 */
 	// private IntersectionRecord workRec = new IntersectionRecord();
 
-	private AccelerationStructure accel;
+	/**
+	 * The structure used to find ray intersections, which can be chosen in the
+	 * scene file. It is built from the surfaces before the first ray is cast.
+	 */
+	protected AccelerationStructure accel = new FlatBoundingVolume();
+
+	/**
+	 * Whether accel has been built. The queries read it without locking, so it
+	 * is volatile: a thread that sees it set also sees the finished structure.
+	 */
+	private volatile boolean accelBuilt = false;
 
 	public ArrayList<Surface> getSurfaces() {
 		return surfaces;
@@ -129,6 +169,31 @@ public class Scene {
 		this.sampler = sampler;
 	}
 
+	public AccelerationStructure getAccelerationStructure() {
+		return accel;
+	}
+
+	public void setAccelerationStructure(AccelerationStructure accel) {
+		this.accel = accel;
+		accelBuilt = false;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public ProgressiveSettings getProgressive() {
+		return progressive;
+	}
+
+	public void setProgressive(ProgressiveSettings progressive) {
+		this.progressive = progressive;
+	}
+
 	public int luminaireNum() {
 		return luminaires.size();
 	}
@@ -141,21 +206,26 @@ public class Scene {
 	 * @param dir
 	 *            The direction from which to look for radiance (surface
 	 *            coordinates)
+	 * @param context
+	 *            Work space of the calling thread; its ray, lightIRec and lRec
+	 *            are overwritten
 	 * @param outRadiance
 	 *            The radiance found
 	 */
-	public void incidentRadiance(Point3 o, Vector3 dir, Color outRadiance) {
+	public void incidentRadiance(Point3 o, Vector3 dir, RenderContext context,
+			Color outRadiance) {
 		// Trace a ray to find incident (direct) radiance
-		Ray ray = new Ray(o, dir);
+		Ray ray = context.ray;
+		ray.set(o, dir);
 		ray.makeOffsetRay();
 
-		IntersectionRecord lIntRec = new IntersectionRecord();
+		IntersectionRecord lIntRec = context.lightIRec;
 		Material material = null;
 		if (getFirstIntersection(lIntRec, ray)
 				&& (material = lIntRec.surface.getMaterial()).isEmitter()) {
 			// Hit something -- ask it what its emitted radiance is in our
 			// direction
-			LuminaireSamplingRecord lSampRec = new LuminaireSamplingRecord();
+			LuminaireSamplingRecord lSampRec = context.lRec;
 			lSampRec.set(lIntRec);
 			lSampRec.emitDir.set(ray.direction);
 			lSampRec.emitDir.scale(-1);
@@ -175,13 +245,17 @@ public class Scene {
 	 */
 	public void addSurface(Surface toAdd) {
 
-		// Add the individual triangles of a mesh
+		// Meshes are added whole, the acceleration structure deals with their
+		// triangles; only luminaires need an object per triangle
 		if (toAdd instanceof Mesh) {
-			MeshTriangle[] triangles = ((Mesh) toAdd).getTriangles();
-			for (int i = 0; i < triangles.length; i++) {
-				addSurface(triangles[i]);
+			Mesh mesh = (Mesh) toAdd;
+			surfaces.add(mesh);
+			if (mesh.getMaterial().isEmitter()) {
+				MeshTriangle[] triangles = mesh.getTriangles();
+				for (int i = 0; i < triangles.length; i++)
+					luminaires.add(triangles[i]);
 			}
-			System.err.println(triangles.length + " triangles added");
+			System.err.println(mesh.getNumTriangles() + " triangles added");
 		} else {
 			surfaces.add(toAdd);
 			if (toAdd.getMaterial().isEmitter())
@@ -208,6 +282,24 @@ public class Scene {
 		materials.add(toAdd);
 	}
 
+	/**
+	 * Build the acceleration structure if it has not been built yet. The
+	 * structure is otherwise built lazily by the first ray cast, which is safe
+	 * from any thread, but call this before several threads start casting rays
+	 * so that they don't all wait on the build.
+	 */
+	public synchronized void initAccelerationStructure() {
+
+		if (accelBuilt)
+			return;
+		long start = System.currentTimeMillis();
+		accel.build(surfaces);
+		buildLuminaireTable();
+		accelBuilt = true;
+		System.err.println(accel.getClass().getSimpleName() + " built in "
+				+ (System.currentTimeMillis() - start) / 1000.0 + " seconds");
+	}
+
 	/**
 	 * Set outRecord to the first intersection of ray with the scene. Return
 	 * true if there was an intersection and false otherwise. If no intersection
@@ -221,10 +313,13 @@ public class Scene {
 	 */
 	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
 
-		if (accel == null)
-			accel = new BoundingVolume(surfaces);
+		if (!accelBuilt)
+			initAccelerationStructure();
 
-		return accel.getFirstIntersection(outRecord, ray);
+		if (!accel.getFirstIntersection(outRecord, ray))
+			return false;
+		outRecord.surface.completeIntersection(outRecord, ray);
+		return true;
 	}
 
 	/**
@@ -240,27 +335,189 @@ public class Scene {
 	 */
 	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
 
-		if (accel == null)
-			accel = new BoundingVolume(surfaces);
+		if (!accelBuilt)
+			initAccelerationStructure();
+
+		if (!accel.getAnyIntersection(outRecord, ray))
+			return false;
+		outRecord.surface.completeIntersection(outRecord, ray);
+		return true;
+	}
+
+	/**
+	 * Test whether anything in the scene blocks ray between ray.start and
+	 * ray.end. This is the fastest query, use it for all shadow rays.
+	 * 
+	 * @param ray
+	 *            the ray to test
+	 * @return true if the ray is blocked
+	 */
+	public boolean occluded(Ray ray) {
+
+		if (!accelBuilt)
+			initAccelerationStructure();
+
+		return accel.occluded(ray);
+	}
 
-		return accel.getAnyIntersection(outRecord, ray);
+	/**
+	 * Find the first intersection of every ray in a batch. This traces
+	 * coherent rays faster than one call per ray.
+	 * 
+	 * @param rays
+	 *            the rays to intersect
+	 * @param hits
+	 *            the output: hits.hit[i] and hits.records[i] for rays[i]
+	 */
+	public void getFirstIntersection(RayBatch rays, HitBatch hits) {
+
+		if (!accelBuilt)
+			initAccelerationStructure();
+
+		accel.intersect(rays, hits);
+		Ray ray = hits.ray;
+		for (int i = 0; i < rays.size; i++) {
+			if (hits.hit[i]) {
+				rays.get(i, ray);
+				hits.records[i].surface.completeIntersection(hits.records[i],
+						ray);
+			}
+		}
+	}
+
+	/**
+	 * Test every ray in a batch for occlusion, e.g. the shadow rays of many
+	 * shading points.
+	 * 
+	 * @param rays
+	 *            the rays to test
+	 * @param hits
+	 *            the output: hits.hit[i] is true if rays[i] is blocked
+	 */
+	public void occluded(RayBatch rays, HitBatch hits) {
+
+		if (!accelBuilt)
+			initAccelerationStructure();
+
+		accel.occluded(rays, hits);
 	}
 
 	public Vector3 getBoundingBoxExtents() {
 
-		return ((BoundingVolume) accel).getBoundingBox().getExtents();
+		return accel.getBoundingBox().getExtents();
+	}
+
+	/**
+	 * Set up the distribution of luminaires: by default each is chosen with
+	 * probability proportional to its area times its average emitted
+	 * radiance, so that small or dim luminaires get few shadow rays. With the
+	 * "hierarchy" strategy a LightBoundingVolume also weighs in their distance
+	 * and orientation to each shading point.
+	 */
+	protected void buildLuminaireTable() {
+
+		LuminaireSamplingRecord lRec = new LuminaireSamplingRecord();
+		Color radiance = new Color();
+		double[] power = new double[luminaires.size()];
+		luminaireIndex = new IdentityHashMap<Surface, Integer>();
+		for (int i = 0; i < power.length; i++) {
+			Surface luminaire = luminaires.get(i);
+			lRec.surface = luminaire;
+			luminaire.getMaterial().emittedRadiance(lRec, radiance);
+			power[i] = luminaire.getArea() * Math.max(0, radiance.channelAvg());
+			luminaireIndex.put(luminaire, i);
+		}
+		if (luminaireSampling.equals("hierarchy"))
+			lightHierarchy = new LightBoundingVolume(luminaires, power);
+		else
+			luminaireTable = new AliasTable(power);
+	}
+
+	/**
+	 * @param luminaireSampling
+	 *            how chooseVisiblePointOnLuminaire() chooses a luminaire:
+	 *            "power" (the default) or "hierarchy"
+	 */
+	public void setLuminaireSampling(String luminaireSampling) {
+		if (!luminaireSampling.equals("power")
+				&& !luminaireSampling.equals("hierarchy"))
+			throw new Error("Unknown luminaire sampling " + luminaireSampling
+					+ ", expected power or hierarchy.");
+		this.luminaireSampling = luminaireSampling;
+	}
+
+	/**
+	 * The probability that chooseVisiblePointOnLuminaire() picks a luminaire
+	 * (before choosing a point on it) for lighting a point.
+	 * 
+	 * @param luminaire
+	 *            the luminaire
+	 * @param p
+	 *            the point
+	 * @param n
+	 *            the normal at the point, or null for a volume point
+	 */
+	public double pdfLuminaire(Surface luminaire, Point3 p, Vector3 n) {
+
+		if (!accelBuilt)
+			initAccelerationStructure();
+
+		Integer index = luminaireIndex.get(luminaire);
+		if (index == null)
+			return 0;
+		if (lightHierarchy != null)
+			return lightHierarchy.pdf(p, n, index);
+		return luminaireTable.pdf(index);
+	}
+
+	/**
+	 * Choose a luminaire for lighting a point, leaving seed.x for choosing a
+	 * point on it.
+	 * 
+	 * @param n
+	 *            the normal at the point, or null for a volume point
+	 * @param lRec
+	 *            lRec.surface is set to the luminaire
+	 * @return the probability of choosing the luminaire, or 0 if none can
+	 *         light the point
+	 */
+	private double chooseLuminaire(Point2 seed, Point3 p, Vector3 n,
+			LuminaireSamplingRecord lRec) {
+
+		if (!accelBuilt)
+			initAccelerationStructure();
+
+		if (lightHierarchy != null)
+			return lightHierarchy.choose(p, n, seed, lRec);
+		int iLum = luminaireTable.sample(seed.x);
+		seed.x = luminaireTable.remap(seed.x);
+		lRec.surface = luminaires.get(iLum);
+		return luminaireTable.pdf(iLum);
 	}
 
 	public boolean chooseVisiblePointOnLuminaire(Point2 seed,
 			IntersectionRecord iRec, LuminaireSamplingRecord lRec) {
+		return choosePointOnLuminaire(seed, iRec, lRec)
+				&& !occluded(lRec.shadowRay);
+	}
+
+	/**
+	 * Choose a point on a luminaire that faces the shading point, as
+	 * chooseVisiblePointOnLuminaire() does, but leave the visibility test to
+	 * the caller: the point is visible if lRec.shadowRay is not occluded.
+	 * This lets shadow rays be traced in batches.
+	 * 
+	 * @return false if no point could be chosen
+	 */
+	public boolean choosePointOnLuminaire(Point2 seed,
+			IntersectionRecord iRec, LuminaireSamplingRecord lRec) {
 		if (luminaires.size() == 0)
 			return false;
-		double d = seed.x * luminaires.size();
-		int iLum = (int) d;
-		seed.x = d - (double) iLum;
-		lRec.surface = (Surface) luminaires.get(iLum);
+		double lumPdf = chooseLuminaire(seed, iRec.frame.o, iRec.frame.w,
+				lRec);
+		if (lumPdf <= 0)
+			return false;
 		lRec.surface.chooseSamplePoint(iRec.frame.o, seed, lRec);
-		// // check visibility
 		// emitDir is from lRec.o to iRec.o
 		if ((lRec.iCosine = lRec.emitDir.dot(iRec.frame.w)) > 0)
 			return false;
@@ -270,33 +527,43 @@ public class Scene {
 		lRec.shadowRay.set(iRec.frame.o, lRec.frame.o); // from surface to
 														// luminaire
 		lRec.shadowRay.makeOffsetSegment(1.0 - Ray.EPSILON);
-		if (getAnyIntersection(new IntersectionRecord(), lRec.shadowRay))
-			return false;
-		lRec.pdf /= luminaires.size();
+		lRec.pdf *= lumPdf;
 		return true;
-		// }
-		// return false;
 	}
 
 	public boolean chooseVisiblePointOnLuminaire(Point2 seed, Point3 p,
 			LuminaireSamplingRecord lRec) {
 		if (luminaires.size() == 0)
 			return false;
-		double d = seed.x * luminaires.size();
-		int iLum = (int) d;
-		seed.x = d - (double) iLum;
-		lRec.surface = (Surface) luminaires.get(iLum);
+		double lumPdf = chooseLuminaire(seed, p, null, lRec);
+		if (lumPdf <= 0)
+			return false;
 		lRec.surface.chooseSamplePoint(p, seed, lRec);
 		if ((lRec.lCosine = lRec.emitDir.dot(lRec.frame.w)) < 0)
 			return false;
 		lRec.shadowRay.set(p, lRec.frame.o);
 		lRec.shadowRay.makeOffsetSegment(1.0 - Ray.EPSILON);
-		if (getAnyIntersection(new IntersectionRecord(), lRec.shadowRay))
+		if (occluded(lRec.shadowRay))
 			return false;
-		lRec.pdf /= luminaires.size();
+		lRec.pdf *= lumPdf;
 		return true;
 	}
 
+	/**
+	 * The luminaire that an intersection with an emitter lies on, i.e. the
+	 * object that chooseVisiblePointOnLuminaire() samples points of and
+	 * pdfVisiblePointOnLuminaire() expects in lRec.surface.
+	 * 
+	 * @param iRec
+	 *            a completed intersection with an emitting surface
+	 * @return the surface, or the hit triangle for a mesh
+	 */
+	public Surface getLuminaire(IntersectionRecord iRec) {
+		if (iRec.surface instanceof Mesh)
+			return ((Mesh) iRec.surface).getTriangle(iRec.primitive);
+		return iRec.surface;
+	}
+
 	/**
 	 * The probability density describing the behavior of
 	 * <chooseVisiblePointOnLuminaire>. Used for volume points.
@@ -309,6 +576,23 @@ public class Scene {
 	 */
 	public double pdfVisiblePointOnLuminaire(Point3 p,
 			LuminaireSamplingRecord lRec) {
-		return lRec.surface.pdfSamplePoint(p, lRec) / luminaires.size();
+		return lRec.surface.pdfSamplePoint(p, lRec)
+				* pdfLuminaire(lRec.surface, p, null);
+	}
+
+	/**
+	 * The probability density describing the behavior of
+	 * <chooseVisiblePointOnLuminaire> for surface points.
+	 * 
+	 * @param iRec
+	 *            the shading point
+	 * @param lRec
+	 *            describes conditions of luminaire sampling.
+	 * @return The probability density (with respect to surface area).
+	 */
+	public double pdfVisiblePointOnLuminaire(IntersectionRecord iRec,
+			LuminaireSamplingRecord lRec) {
+		return lRec.surface.pdfSamplePoint(iRec.frame.o, lRec)
+				* pdfLuminaire(lRec.surface, iRec.frame.o, iRec.frame.w);
 	}
 }
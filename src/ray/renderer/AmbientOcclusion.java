@@ -6,6 +6,7 @@ import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 import ray.sampling.SampleGenerator;
 
@@ -22,35 +23,40 @@ public class AmbientOcclusion implements Renderer {
 
 	@Override
 	public void rayRadiance(Scene scene, Ray ray, SampleGenerator sampler,
-			int sampleIndex, Color outColor) {
+			int sampleIndex, RenderContext context, Color outColor) {
 		// find if the ray intersect with any surface
-		IntersectionRecord iRec = new IntersectionRecord();
+		IntersectionRecord iRec = context.iRec;
+		hitRadiance(scene, ray, scene.getFirstIntersection(iRec, ray) ? iRec
+				: null, sampler, sampleIndex, context, outColor);
+	}
+
+	@Override
+	public void hitRadiance(Scene scene, Ray ray, IntersectionRecord iRec,
+			SampleGenerator sampler, int sampleIndex, RenderContext context,
+			Color outColor) {
 
-		if (scene.getFirstIntersection(iRec, ray)) {
+		if (iRec != null) {
 
-			Point2 directSeed = new Point2();
+			Point2 directSeed = context.seed;
 			sampler.sample(1, sampleIndex, directSeed); // this random variable
 														// is for incident
 														// direction
 
 			// Generate a random incident direction
-			Vector3 incDir = new Vector3();
+			Vector3 incDir = context.incDir;
 			Geometry.squareToHemisphere(directSeed, incDir);
 			iRec.frame.frameToCanonical(incDir);
 
-			Ray shadowRay = new Ray(iRec.frame.o, incDir);
-			shadowRay.makeOffsetRay();
+			// The shadow ray only reaches as far as the occlusion length
+			Vector3 exts = scene.getBoundingBoxExtents();
+			Ray shadowRay = context.ray;
+			shadowRay.set(iRec.frame.o, incDir);
+			shadowRay.makeOffsetSegment(length * exts.length());
 
-			if (!scene.getFirstIntersection(iRec, shadowRay)) {
+			if (!scene.occluded(shadowRay))
 				outColor.set(0.8);
-			} else {
-				// determine the length of the shadow ray
-				Vector3 exts = scene.getBoundingBoxExtents();
-				if (iRec.t > length * exts.length())
-					outColor.set(0.8);
-				else
-					outColor.set(0.);
-			}
+			else
+				outColor.set(0.);
 			return;
 		}
 
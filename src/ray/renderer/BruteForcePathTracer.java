@@ -1,32 +1,33 @@
 package ray.renderer;
 
+import ray.brdf.BRDF;
+import ray.math.Geometry;
+import ray.math.Point2;
+import ray.math.Vector3;
 import ray.misc.Color;
-import ray.misc.Ray;
-import ray.misc.Scene;
-import ray.sampling.SampleGenerator;
+import ray.misc.IntersectionRecord;
 
+/**
+ * A path tracer that continues paths uniformly wrt. the projected solid angle
+ * measure instead of importance sampling the BRDF. For Lambertian surfaces
+ * this is the same thing; for glossy ones it is much noisier, but it makes no
+ * assumptions about the BRDF, so it is a useful reference.
+ */
 public class BruteForcePathTracer extends PathTracer {
+
 	/**
-	 * @param scene
-	 * @param ray
-	 * @param sampler
-	 * @param sampleIndex
-	 * @param outColor
+	 * The pdf is cosine / pi, so the weight is brdf * pi.
 	 */
-	protected void rayRadianceRecursive(Scene scene, Ray ray,
-			SampleGenerator sampler, int sampleIndex, int level, Color outColor) {
-		// W4160 TODO (G)
-		//
-		// Find the visible surface along the ray, then add emitted and
-		// reflected radiance
-		// to get the resulting color.
-		//
-		// If the ray depth is less than the limit (depthLimit), you need
-		// 1) compute the emitted light radiance from the current surface if the
-		// surface is a light surface
-		// 2) reflected radiance from other lights and objects. You need
-		// recursively compute the radiance
-		// hint: You need to call gatherIllumination(...) method.
-	}
+	@Override
+	protected boolean gatherIllumination(BRDF brdf, Vector3 outDir,
+			IntersectionRecord iRec, Point2 seed, Vector3 outIncDir,
+			Color outWeight) {
 
+		Geometry.squareToPSAHemisphere(seed, outIncDir);
+		iRec.frame.frameToCanonical(outIncDir);
+		outIncDir.normalize();
+		brdf.evaluate(iRec.frame, outIncDir, outDir, outWeight);
+		outWeight.scale(Math.PI);
+		return outWeight.r > 0 || outWeight.g > 0 || outWeight.b > 0;
+	}
 }
@@ -4,12 +4,11 @@ import ray.math.Point2;
 import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 
 public abstract class DirectIlluminator {
 
-	private Vector3 _incDir = new Vector3();
-
 	/**
 	 * Computes radiance due to direct reflection and writes it to <outColor>.
 	 * 
@@ -20,14 +19,19 @@ public abstract class DirectIlluminator {
 	 *            Information about the shading point
 	 * @param seed
 	 *            Stratified random point
+	 * @param context
+	 *            Work space of the calling thread
 	 * @param outColor
 	 *            Reflected radiance is written to this color
 	 */
 	public void directIllumination(Scene scene, Vector3 outDir,
-			IntersectionRecord iRec, Point2 seed, Color outColor) {
-		directIllumination(scene, _incDir, outDir, iRec, seed, outColor);
+			IntersectionRecord iRec, Point2 seed, RenderContext context,
+			Color outColor) {
+		directIllumination(scene, context.incDir, outDir, iRec, seed, context,
+				outColor);
 	}
 
 	public abstract void directIllumination(Scene scene, Vector3 incDir,
-			Vector3 outDir, IntersectionRecord iRec, Point2 seed, Color outColor);
+			Vector3 outDir, IntersectionRecord iRec, Point2 seed,
+			RenderContext context, Color outColor);
 }
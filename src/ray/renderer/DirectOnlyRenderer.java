@@ -1,12 +1,12 @@
 package ray.renderer;
 
 import ray.material.Material;
-import ray.math.Point2;
 import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
 import ray.misc.LuminaireSamplingRecord;
 import ray.misc.Ray;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 import ray.sampling.SampleGenerator;
 
@@ -19,15 +19,6 @@ import ray.sampling.SampleGenerator;
 
 public class DirectOnlyRenderer implements Renderer {
 
-	/* making these 'global' for efficiency since all of this code is serial */
-	private Point2 seed = new Point2();
-	private Vector3 L = new Vector3();
-	private Vector3 R = new Vector3();
-	private Color emittedRadiance = new Color();
-	private Color directRadiance = new Color();
-	private IntersectionRecord iRec = new IntersectionRecord();
-	private LuminaireSamplingRecord lRec = new LuminaireSamplingRecord();
-
 	/**
 	 * This is the object that is responsible for computing direct illumination.
 	 */
@@ -53,22 +44,39 @@ public class DirectOnlyRenderer implements Renderer {
 	}
 
 	public void rayRadiance(Scene scene, Ray ray, SampleGenerator sampler,
-			int sampleIndex, Color outColor) {
+			int sampleIndex, RenderContext context, Color outColor) {
+		IntersectionRecord iRec = context.iRec;
+
 		/* --- cast ray and find first intersection --- */
-		if (scene.getFirstIntersection(iRec, ray)) {
+		hitRadiance(scene, ray, scene.getFirstIntersection(iRec, ray) ? iRec
+				: null, sampler, sampleIndex, context, outColor);
+	}
+
+	public void hitRadiance(Scene scene, Ray ray, IntersectionRecord iRec,
+			SampleGenerator sampler, int sampleIndex, RenderContext context,
+			Color outColor) {
+
+		if (iRec != null) {
 			/* if the ray intersects an object in the scene: */
 
 			/* --- compute emitted radiance --- */
-			emittedRadiance(iRec, ray.direction, emittedRadiance);
+			emittedRadiance(iRec, ray.direction, context.lRec,
+					context.emittedRadiance);
 
 			/* --- compute direct illumination --- */
+			/* the exitant direction points back along the ray */
+			context.outDir.set(ray.direction);
+			context.outDir.scale(-1);
+			context.outDir.normalize();
+
 			/* sample random seed on unit square */
-			sampler.sample(1, sampleIndex, seed);
-			direct.directIllumination(scene, L, R, iRec, seed, directRadiance);
+			sampler.sample(1, sampleIndex, context.seed);
+			direct.directIllumination(scene, context.incDir, context.outDir,
+					iRec, context.seed, context, context.directRadiance);
 
 			/* --- set outColor to sum of computed radiances --- */
-			outColor.set(emittedRadiance);
-			outColor.add(directRadiance);
+			outColor.set(context.emittedRadiance);
+			outColor.add(context.directRadiance);
 
 		} else {
 			/* otherwise, just compute background color */
@@ -83,11 +91,13 @@ public class DirectOnlyRenderer implements Renderer {
 	 *            Information about the surface point being shaded
 	 * @param dir
 	 *            The exitant direction (surface coordinates)
+	 * @param lRec
+	 *            Work space for the emitted radiance query
 	 * @param outColor
 	 *            The emitted radiance is written to this color
 	 */
 	protected void emittedRadiance(IntersectionRecord iRec, Vector3 dir,
-			Color outColor) {
+			LuminaireSamplingRecord lRec, Color outColor) {
 		/* get the material of the intersected surface */
 		Material m = iRec.surface.getMaterial();
 
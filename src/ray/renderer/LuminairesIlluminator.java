@@ -7,6 +7,7 @@ import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
 import ray.misc.LuminaireSamplingRecord;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 
 /**
@@ -19,13 +20,6 @@ import ray.misc.Scene;
  */
 public class LuminairesIlluminator extends DirectIlluminator {
 
-	private LuminaireSamplingRecord lumRec = new LuminaireSamplingRecord();
-	private Color brdfVal = new Color();
-
-	public LuminaireSamplingRecord currentLuminaireSamplingRecord() {
-		return lumRec;
-	}
-
 	/**
 	 * Computes radiance due to direct reflection and writes it to <outColor>.
 	 * 1. Get Illuminaires in the current scene 2. Randomly select a
@@ -39,37 +33,58 @@ public class LuminairesIlluminator extends DirectIlluminator {
 	 *            Information about the shading point
 	 * @param seed
 	 *            Stratified random point
+	 * @param context
+	 *            Work space of the calling thread
 	 * @param outColor
 	 *            Reflected radiance is written to this color
 	 */
 	public void directIllumination(Scene scene, Vector3 incDir, Vector3 outDir,
-			IntersectionRecord iRec, Point2 seed, Color outColor) {
+			IntersectionRecord iRec, Point2 seed, RenderContext context,
+			Color outColor) {
+		if (!unshadowedIllumination(scene, incDir, outDir, iRec, seed,
+				context, outColor)
+				|| scene.occluded(context.lumRec.shadowRay))
+			outColor.set(0, 0, 0);
+	}
+
+	/**
+	 * Computes the radiance that would be directly reflected if the chosen
+	 * point on a luminaire were visible, without testing whether it is. The
+	 * caller traces context.lumRec.shadowRay and keeps the result only if the
+	 * ray is not occluded, so that shadow rays can be traced in batches.
+	 * 
+	 * @return false if no point could be chosen, in which case outColor is
+	 *         not set
+	 */
+	public boolean unshadowedIllumination(Scene scene, Vector3 incDir,
+			Vector3 outDir, IntersectionRecord iRec, Point2 seed,
+			RenderContext context, Color outColor) {
+		LuminaireSamplingRecord lumRec = context.lumRec;
+		Color brdfVal = context.brdfValue;
 		double dist;
-		if (scene.chooseVisiblePointOnLuminaire(seed, iRec, lumRec)) {
-			Material material = iRec.surface.getMaterial();
-			BRDF brdf = material.getBRDF(iRec);
-			if (brdf != null) {
-				// compute BRDF value
-				incDir.set(lumRec.emitDir); // from lRec to iRec
-				incDir.scale(-1);
-				incDir.normalize();
-				brdf.evaluate(iRec.frame, incDir, outDir, brdfVal);
+		if (!scene.choosePointOnLuminaire(seed, iRec, lumRec))
+			return false;
+		Material material = iRec.surface.getMaterial();
+		BRDF brdf = material.getBRDF(iRec);
+		if (brdf == null)
+			return false;
 
-				// compute incident radiance
-				scene.incidentRadiance(iRec.frame.o, incDir, outColor);
-				// lumRec.surface.getMaterial().emittedRadiance(lumRec,
-				// outColor);
+		// compute BRDF value
+		incDir.set(lumRec.emitDir); // from lRec to iRec
+		incDir.scale(-1);
+		incDir.normalize();
+		brdf.evaluate(iRec.frame, incDir, outDir, brdfVal);
 
-				dist = lumRec.emitDir.squaredLength();
-				outColor.scale(brdfVal);
-				outColor.scale(-lumRec.iCosine * lumRec.lCosine
-						/ (dist * lumRec.pdf)); // one extra "dist" to normalize
-												// consine values
+		// compute incident radiance, assuming the point is visible
+		lumRec.surface.getMaterial().emittedRadiance(lumRec, outColor);
 
-				return;
-			}
-		}
-		outColor.set(0, 0, 0);
+		// the cosines are taken with the unnormalized emitDir, so one "dist"
+		// normalizes them and the other is the geometry term
+		dist = lumRec.emitDir.squaredLength();
+		outColor.scale(brdfVal);
+		outColor.scale(-lumRec.iCosine * lumRec.lCosine
+				/ (dist * dist * lumRec.pdf));
+		return true;
 	}
 
 }
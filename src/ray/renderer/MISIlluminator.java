@@ -0,0 +1,149 @@
+package ray.renderer;
+
+import ray.brdf.BRDF;
+import ray.material.Material;
+import ray.math.Point2;
+import ray.math.Vector3;
+import ray.misc.Color;
+import ray.misc.IntersectionRecord;
+import ray.misc.LuminaireSamplingRecord;
+import ray.misc.Ray;
+import ray.misc.RenderContext;
+import ray.misc.Scene;
+
+/**
+ * This class computes direct illumination by multiple importance sampling: it
+ * combines sampling the luminaires, as LuminairesIlluminator does, which is
+ * good for small lights on rough surfaces, with sampling the BRDF, which is
+ * good for large lights on glossy surfaces. Each call takes one sample from
+ * one of the two strategies, chosen by the seed, and weights it by the power
+ * heuristic (Veach's one-sample model), so it costs one ray like the other
+ * illuminators while its noise is close to that of the better strategy for
+ * each shading point.
+ *
+ * Both pdfs are compared with respect to solid angle at the shading point.
+ * Emitters seen from behind can only be found by BRDF sampling, so their
+ * samples get the full weight.
+ */
+public class MISIlluminator extends DirectIlluminator {
+
+	/** The probability of sampling a luminaire rather than the BRDF */
+	protected double lightSamplingWeight = 0.5;
+
+	public MISIlluminator() {
+	}
+
+	public void setLightSamplingWeight(double lightSamplingWeight) {
+		this.lightSamplingWeight = lightSamplingWeight;
+	}
+
+	public void directIllumination(Scene scene, Vector3 incDir, Vector3 outDir,
+			IntersectionRecord iRec, Point2 seed, RenderContext context,
+			Color outColor) {
+
+		outColor.set(0, 0, 0);
+		BRDF brdf = iRec.surface.getMaterial().getBRDF(iRec);
+		if (brdf == null)
+			return;
+
+		// Pick the strategy with the seed's x and stretch what is left of it
+		// back to [0, 1)
+		if (seed.x < lightSamplingWeight) {
+			seed.x /= lightSamplingWeight;
+			sampleLuminaire(scene, brdf, incDir, outDir, iRec, seed, context,
+					outColor);
+		} else {
+			seed.x = (seed.x - lightSamplingWeight)
+					/ (1 - lightSamplingWeight);
+			sampleBRDF(scene, brdf, incDir, outDir, iRec, seed, context,
+					outColor);
+		}
+	}
+
+	/**
+	 * Estimate direct illumination from a point chosen on a luminaire.
+	 */
+	protected void sampleLuminaire(Scene scene, BRDF brdf, Vector3 incDir,
+			Vector3 outDir, IntersectionRecord iRec, Point2 seed,
+			RenderContext context, Color outColor) {
+
+		LuminaireSamplingRecord lumRec = context.lumRec;
+		if (!scene.chooseVisiblePointOnLuminaire(seed, iRec, lumRec))
+			return;
+
+		// emitDir is the unnormalized direction from the luminaire to iRec
+		double dist2 = lumRec.emitDir.squaredLength();
+		double dist = Math.sqrt(dist2);
+		incDir.set(lumRec.emitDir);
+		incDir.scale(-1 / dist);
+		double iCosine = -lumRec.iCosine / dist;
+		double lCosine = lumRec.lCosine / dist;
+		if (lCosine <= 0)
+			return;
+
+		double lightPdf = lumRec.pdf * dist2 / lCosine;
+		double brdfPdf = brdf.pdf(iRec.frame, outDir, incDir);
+
+		Color brdfVal = context.brdfValue;
+		brdf.evaluate(iRec.frame, incDir, outDir, brdfVal);
+		lumRec.surface.getMaterial().emittedRadiance(lumRec, outColor);
+		outColor.scale(brdfVal);
+		outColor.scale(iCosine
+				* weight(lightSamplingWeight * lightPdf,
+						(1 - lightSamplingWeight) * brdfPdf)
+				/ (lightSamplingWeight * lightPdf));
+	}
+
+	/**
+	 * Estimate direct illumination from a direction chosen by the BRDF.
+	 */
+	protected void sampleBRDF(Scene scene, BRDF brdf, Vector3 incDir,
+			Vector3 outDir, IntersectionRecord iRec, Point2 seed,
+			RenderContext context, Color outColor) {
+
+		// The weight is brdf * cosine / pdf
+		Color brdfWeight = context.brdfValue;
+		brdf.generate(iRec.frame, outDir, incDir, seed, brdfWeight);
+		incDir.normalize();
+		if (incDir.dot(iRec.frame.w) <= 0)
+			return;
+
+		Ray ray = context.ray;
+		ray.set(iRec.frame.o, incDir);
+		ray.makeOffsetRay();
+		IntersectionRecord lightIRec = context.lightIRec;
+		Material material;
+		if (!scene.getFirstIntersection(lightIRec, ray)
+				|| !(material = lightIRec.surface.getMaterial()).isEmitter())
+			return;
+
+		LuminaireSamplingRecord lRec = context.lRec;
+		lRec.set(lightIRec);
+		lRec.surface = scene.getLuminaire(lightIRec);
+		lRec.emitDir.sub(iRec.frame.o, lightIRec.frame.o);
+		material.emittedRadiance(lRec, outColor);
+
+		// The density with which sampleLuminaire() would have chosen the point
+		double lightPdf = 0;
+		double lCosine = -incDir.dot(lightIRec.frame.w);
+		if (lCosine > 0)
+			lightPdf = scene.pdfVisiblePointOnLuminaire(iRec, lRec)
+					* lRec.emitDir.squaredLength() / lCosine;
+		double brdfPdf = brdf.pdf(iRec.frame, outDir, incDir);
+
+		outColor.scale(brdfWeight);
+		outColor.scale(weight((1 - lightSamplingWeight) * brdfPdf,
+				lightSamplingWeight * lightPdf)
+				/ (1 - lightSamplingWeight));
+	}
+
+	/**
+	 * The power heuristic weight of a sample taken with the first of two
+	 * strategies, given the densities of both (times the probability of
+	 * using each).
+	 */
+	protected static double weight(double pdf, double otherPdf) {
+		double p2 = pdf * pdf;
+		return p2 > 0 ? p2 / (p2 + otherPdf * otherPdf) : 0;
+	}
+}
@@ -0,0 +1,257 @@
+package ray.renderer;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ray.material.Material;
+import ray.misc.Color;
+import ray.misc.HitBatch;
+import ray.misc.RayBatch;
+import ray.misc.RenderContext;
+import ray.misc.Scene;
+import ray.sampling.SampleGenerator;
+import ray.surface.Surface;
+
+/**
+ * The state of the paths that a WavefrontPathTracer has in flight, as a
+ * structure of arrays: entry i of each array belongs to path i. The live
+ * paths always fill slots 0 to live - 1; the rays and hits of slot i are
+ * entry i % CHUNK_SIZE of chunk i / CHUNK_SIZE, so that each chunk can be
+ * traced as one batch.
+ *
+ * A pool also holds the work space of the threads that run the stages: one
+ * RenderContext and sampler per thread, and the threads themselves. It is
+ * created by the renderer on first use and kept in the RenderContext of the
+ * thread that renders, so that it lives from block to block and pass to
+ * pass.
+ */
+public class PathPool {
+
+	/** The number of paths in a chunk, the unit of work of a stage */
+	public static final int CHUNK_SIZE = 64;
+
+	/** The scene the paths are in */
+	final Scene scene;
+
+	/** The largest number of paths in flight */
+	public final int capacity;
+
+	/** The size of the image the paths start from */
+	int width, height;
+
+	/** The number of live paths */
+	int live;
+
+	/** The pixel and the sample index of each path */
+	final int[] pixelX, pixelY, sample;
+
+	/** The number of surfaces each path has visited */
+	final int[] depth;
+
+	/** Whether each path continues after the current bounce */
+	final boolean[] alive;
+
+	/** The index of the material each path hit, or -1 if it missed */
+	final int[] material;
+
+	/** The product of the BRDF weights along each path */
+	final double[] throughputR, throughputG, throughputB;
+
+	/** The radiance each path has gathered */
+	final double[] radianceR, radianceG, radianceB;
+
+	/** Direct light waiting for the result of each path's shadow ray */
+	final double[] lightR, lightG, lightB;
+
+	/** The next ray and the hit of each path, by chunk */
+	final RayBatch[] rays;
+	final HitBatch[] hits;
+
+	/** The live paths that hit something, sorted by material */
+	final int[] order;
+	int numHits;
+
+	/** The shadow rays cast while shading each chunk of order, and whose */
+	final RayBatch[] shadowRays;
+	final HitBatch[] shadowHits;
+	final int[][] shadowOwner;
+
+	/** The index of each material of the scene, for sorting by material */
+	final IdentityHashMap<Material, Integer> materials = new IdentityHashMap<Material, Integer>();
+	final int[] materialCount;
+
+	/** The pixels of the current block and how many samples each gets */
+	int numPixels;
+	int[] pixelsX, pixelsY, firstSample, numSamples;
+
+	/** The next pixel to start paths for and how many it has started */
+	int nextPixel, started;
+
+	/** The work space of each stage thread */
+	final RenderContext[] contexts;
+	final SampleGenerator[] samplers;
+
+	/** The next chunk of the current stage that no thread has claimed */
+	final AtomicInteger nextChunk = new AtomicInteger();
+
+	/** The threads that help the rendering thread, if there are any */
+	final ExecutorService executor;
+
+	/** Work space for adding finished paths to the image */
+	final Color color = new Color();
+
+	/**
+	 * Create an empty pool.
+	 *
+	 * @param scene
+	 *            the scene whose paths the pool will hold
+	 * @param sampler
+	 *            the sampler to copy for each stage thread
+	 * @param capacity
+	 *            the largest number of paths in flight, rounded up to a whole
+	 *            number of chunks
+	 * @param numThreads
+	 *            the number of threads that run each stage
+	 */
+	PathPool(Scene scene, SampleGenerator sampler, int capacity,
+			int numThreads) {
+
+		this.scene = scene;
+		int numChunks = Math.max(1, (capacity + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		this.capacity = numChunks * CHUNK_SIZE;
+		capacity = this.capacity;
+
+		pixelX = new int[capacity];
+		pixelY = new int[capacity];
+		sample = new int[capacity];
+		depth = new int[capacity];
+		alive = new boolean[capacity];
+		material = new int[capacity];
+		throughputR = new double[capacity];
+		throughputG = new double[capacity];
+		throughputB = new double[capacity];
+		radianceR = new double[capacity];
+		radianceG = new double[capacity];
+		radianceB = new double[capacity];
+		lightR = new double[capacity];
+		lightG = new double[capacity];
+		lightB = new double[capacity];
+		order = new int[capacity];
+
+		rays = new RayBatch[numChunks];
+		hits = new HitBatch[numChunks];
+		shadowRays = new RayBatch[numChunks];
+		shadowHits = new HitBatch[numChunks];
+		shadowOwner = new int[numChunks][CHUNK_SIZE];
+		for (int c = 0; c < numChunks; c++) {
+			rays[c] = new RayBatch(CHUNK_SIZE);
+			hits[c] = new HitBatch(CHUNK_SIZE);
+			shadowRays[c] = new RayBatch(CHUNK_SIZE);
+			shadowHits[c] = new HitBatch(CHUNK_SIZE);
+		}
+
+		for (Surface surface : scene.getSurfaces())
+			if (!materials.containsKey(surface.getMaterial()))
+				materials.put(surface.getMaterial(), materials.size());
+		materialCount = new int[materials.size() + 1];
+
+		numThreads = Math.max(1, numThreads);
+		contexts = new RenderContext[numThreads];
+		samplers = new SampleGenerator[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			contexts[t] = new RenderContext();
+			samplers[t] = sampler.copy();
+			samplers[t].generate();
+		}
+		executor = numThreads == 1 ? null : Executors.newFixedThreadPool(
+				numThreads - 1, new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "wavefront-worker-"
+								+ count++);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Whether this pool can be used for rendering a scene with the given
+	 * settings.
+	 */
+	boolean fits(Scene scene, int capacity, int numThreads) {
+		return this.scene == scene && this.capacity >= capacity
+				&& contexts.length == Math.max(1, numThreads);
+	}
+
+	/**
+	 * Let the stage threads finish once the pool is no longer needed.
+	 */
+	void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+
+	/**
+	 * Set the pixels to start paths for, keeping the arrays until all their
+	 * paths are done. The pool must be empty.
+	 *
+	 * @param numPixels
+	 *            the number of pixels
+	 * @param x
+	 *            the column of each pixel
+	 * @param y
+	 *            the row of each pixel
+	 * @param first
+	 *            the sample index of the first path of each pixel
+	 * @param count
+	 *            the number of paths of each pixel
+	 */
+	void setPixels(int numPixels, int[] x, int[] y, int[] first, int[] count) {
+
+		pixelsX = x;
+		pixelsY = y;
+		firstSample = first;
+		numSamples = count;
+		this.numPixels = numPixels;
+		nextPixel = 0;
+		started = 0;
+		live = 0;
+	}
+
+	/**
+	 * @return whether some pixel still needs paths started
+	 */
+	boolean hasWork() {
+		while (nextPixel < numPixels && started >= numSamples[nextPixel]) {
+			nextPixel++;
+			started = 0;
+		}
+		return nextPixel < numPixels;
+	}
+
+	/**
+	 * Move path i to slot j (j <= i), overwriting what was there. The hit is
+	 * not moved; it is only needed during the bounce that found it.
+	 */
+	void move(int i, int j) {
+
+		pixelX[j] = pixelX[i];
+		pixelY[j] = pixelY[i];
+		sample[j] = sample[i];
+		depth[j] = depth[i];
+		alive[j] = alive[i];
+		throughputR[j] = throughputR[i];
+		throughputG[j] = throughputG[i];
+		throughputB[j] = throughputB[i];
+		radianceR[j] = radianceR[i];
+		radianceG[j] = radianceG[i];
+		radianceB[j] = radianceB[i];
+		rays[j / CHUNK_SIZE].set(j % CHUNK_SIZE, rays[i / CHUNK_SIZE], i
+				% CHUNK_SIZE);
+	}
+}
@@ -1,53 +1,173 @@
 package ray.renderer;
 
+import ray.brdf.BRDF;
+import ray.math.Point2;
 import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 import ray.sampling.SampleGenerator;
 
-public abstract class PathTracer extends DirectOnlyRenderer {
+/**
+ * A renderer that computes global illumination by tracing paths from the
+ * camera. At each vertex the direct illuminator estimates light arriving
+ * straight from the luminaires (next-event estimation), then the path
+ * continues in a direction drawn from the BRDF, carrying the product of the
+ * BRDF weights so far.
+ *
+ * Because the direct illuminator already counts light from luminaires, paths
+ * only pick up emitted radiance where they leave the camera; a secondary ray
+ * that hits a luminaire just goes on from there. Light from the background
+ * is not direct illumination, so it is counted when a secondary ray escapes,
+ * if backgroundIllumination is nonzero.
+ *
+ * After rouletteDepth vertices a path survives each bounce with probability
+ * equal to its largest throughput component (at most 0.95) and is reweighted
+ * by the inverse, which ends dim paths early without biasing the estimate.
+ * depthLimit, if nonzero, caps the number of vertices as well.
+ *
+ * The loop is iterative and all its work space comes from the RenderContext,
+ * so a path costs as many bounces as it needs and allocates nothing.
+ */
+public class PathTracer extends DirectOnlyRenderer {
 
-	protected int depthLimit = 5;
+	/** Sampler rows used per path vertex: direct light, bounce, roulette */
+	protected static final int ROWS_PER_VERTEX = 3;
+
+	/** The largest probability of surviving Russian roulette */
+	protected static final double MAX_SURVIVAL = 0.95;
+
+	protected int depthLimit = 0;
+	protected int rouletteDepth = 3;
 	protected int backgroundIllumination = 1;
 
+	/**
+	 * @param depthLimit
+	 *            the most surfaces a path may visit, or 0 for no limit
+	 */
 	public void setDepthLimit(int depthLimit) {
 		this.depthLimit = depthLimit;
 	}
 
+	/**
+	 * @param rouletteDepth
+	 *            the number of surfaces a path visits before Russian roulette
+	 *            may end it
+	 */
+	public void setRouletteDepth(int rouletteDepth) {
+		this.rouletteDepth = rouletteDepth;
+	}
+
 	public void setBackgroundIllumination(int backgroundIllumination) {
 		this.backgroundIllumination = backgroundIllumination;
 	}
 
 	@Override
-	public void rayRadiance(Scene scene, Ray ray, SampleGenerator sampler,
-			int sampleIndex, Color outColor) {
+	public void hitRadiance(Scene scene, Ray ray, IntersectionRecord hit,
+			SampleGenerator sampler, int sampleIndex, RenderContext context,
+			Color outColor) {
+
+		if (hit == null) {
+			scene.getBackground().evaluate(ray.direction, outColor);
+			return;
+		}
+
+		IntersectionRecord iRec = context.iRec;
+		if (hit != iRec)
+			iRec.set(hit);
+		Ray pathRay = context.pathRay;
+		pathRay.set(ray.origin, ray.direction);
+		Vector3 outDir = context.outDir;
+		Vector3 incDir = context.incDir;
+		Point2 seed = context.seed;
+		Color throughput = context.throughput;
+		Color bounceWeight = context.bounceWeight;
+		Color directRadiance = context.directRadiance;
+
+		emittedRadiance(iRec, pathRay.direction, context.lRec, outColor);
+		throughput.set(1.0);
+
+		for (int depth = 0;; depth++) {
 
-		rayRadianceRecursive(scene, ray, sampler, sampleIndex, 0, outColor);
+			/* the exitant direction points back along the ray */
+			outDir.set(pathRay.direction);
+			outDir.scale(-1);
+			outDir.normalize();
+
+			BRDF brdf = iRec.surface.getMaterial().getBRDF(iRec);
+			if (brdf == null)
+				return;
+
+			/* --- light arriving straight from the luminaires --- */
+			int row = 1 + ROWS_PER_VERTEX * depth;
+			sampler.sample(row, sampleIndex, seed);
+			direct.directIllumination(scene, incDir, outDir, iRec, seed,
+					context, directRadiance);
+			directRadiance.scale(throughput);
+			outColor.add(directRadiance);
+
+			if (depthLimit > 0 && depth + 1 >= depthLimit)
+				return;
+
+			/* --- choose the next direction --- */
+			sampler.sample(row + 1, sampleIndex, seed);
+			if (!gatherIllumination(brdf, outDir, iRec, seed, incDir,
+					bounceWeight))
+				return;
+			throughput.scale(bounceWeight);
+
+			/* --- Russian roulette --- */
+			if (depth + 1 >= rouletteDepth) {
+				double survival = Math.min(MAX_SURVIVAL, Math.max(
+						throughput.r, Math.max(throughput.g, throughput.b)));
+				sampler.sample(row + 2, sampleIndex, seed);
+				if (seed.x >= survival)
+					return;
+				throughput.scale(1 / survival);
+			}
+
+			/* --- follow the path to its next vertex --- */
+			pathRay.set(iRec.frame.o, incDir);
+			pathRay.makeOffsetRay();
+			if (!scene.getFirstIntersection(iRec, pathRay)) {
+				if (backgroundIllumination != 0) {
+					scene.getBackground().evaluate(pathRay.direction,
+							directRadiance);
+					directRadiance.scale(throughput);
+					outColor.add(directRadiance);
+				}
+				return;
+			}
+		}
 	}
 
-	protected abstract void rayRadianceRecursive(Scene scene, Ray ray,
-			SampleGenerator sampler, int sampleIndex, int level, Color outColor);
-
-	public void gatherIllumination(Scene scene, Vector3 outDir,
-			IntersectionRecord iRec, SampleGenerator sampler, int sampleIndex,
-			int level, Color outColor) {
-		// W4160 TODO (G)
-		//
-		// This method computes a Monte Carlo estimate of reflected radiance due
-		// to direct and/or indirect
-		// illumination. It generates samples uniformly wrt. the projected solid
-		// angle measure:
-		//
-		// f = brdf * radiance
-		// p = 1 / pi
-		// g = f / p = brdf * radiance * pi
-		// You need:
-		// 1. Generate a random incident direction according to proj solid angle
-		// pdf is constant 1/pi
-		// 2. Recursively find incident radiance from that direction
-		// 3. Estimate the reflected radiance: brdf * radiance / pdf = pi * brdf
-		// * radiance
+	/**
+	 * Choose the direction in which a path continues from a vertex, by
+	 * importance sampling the BRDF.
+	 *
+	 * @param brdf
+	 *            the BRDF at the vertex
+	 * @param outDir
+	 *            the exitant direction, toward the previous vertex
+	 * @param iRec
+	 *            the vertex
+	 * @param seed
+	 *            a random point on the unit square
+	 * @param outIncDir
+	 *            the incident direction is written here, normalized
+	 * @param outWeight
+	 *            brdf * cosine / pdf of the direction is written here
+	 * @return false if the path is absorbed
+	 */
+	protected boolean gatherIllumination(BRDF brdf, Vector3 outDir,
+			IntersectionRecord iRec, Point2 seed, Vector3 outIncDir,
+			Color outWeight) {
+
+		brdf.generate(iRec.frame, outDir, outIncDir, seed, outWeight);
+		outIncDir.normalize();
+		return outIncDir.dot(iRec.frame.w) > 0
+				&& (outWeight.r > 0 || outWeight.g > 0 || outWeight.b > 0);
 	}
 }
@@ -5,6 +5,7 @@ import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 import ray.sampling.SampleGenerator;
 
@@ -21,28 +22,30 @@ public class PhongShader implements Renderer {
 
 	@Override
 	public void rayRadiance(Scene scene, Ray ray, SampleGenerator sampler,
-			int sampleIndex, Color outColor) {
-		Vector3 N, V, L, R;
-		Color diffuse, specular;
-		IntersectionRecord iRec = new IntersectionRecord();
+			int sampleIndex, RenderContext context, Color outColor) {
+		IntersectionRecord iRec = context.iRec;
+		hitRadiance(scene, ray, scene.getFirstIntersection(iRec, ray) ? iRec
+				: null, sampler, sampleIndex, context, outColor);
+	}
+
+	@Override
+	public void hitRadiance(Scene scene, Ray ray, IntersectionRecord iRec,
+			SampleGenerator sampler, int sampleIndex, RenderContext context,
+			Color outColor) {
+		Vector3 N = context.normal, V, L = context.incDir, R = context.outDir;
+		Color diffuse = context.brdfValue, specular = context.radiance;
 
-		if (scene.getFirstIntersection(iRec, ray)) {
+		if (iRec != null) {
 			outColor.set(0);
 
-			N = new Vector3(iRec.frame.w);
+			N.set(iRec.frame.w);
 			N.normalize();
 
-			Ray view = new Ray();
+			Ray view = context.ray;
 			scene.getCamera().getRay(view, iRec.texCoords.x, iRec.texCoords.y);
-			V = new Vector3(view.direction);
+			V = view.direction;
 			V.normalize();
 
-			R = new Vector3();
-			L = new Vector3();
-
-			diffuse = new Color();
-			specular = new Color();
-
 			for (PointLight pl : scene.getPointLights()) {
 
 				L.sub(pl.location, iRec.frame.o);
@@ -8,6 +8,7 @@ import ray.misc.Color;
 import ray.misc.IntersectionRecord;
 import ray.misc.LuminaireSamplingRecord;
 import ray.misc.Ray;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 
 /**
@@ -23,24 +24,16 @@ import ray.misc.Scene;
  */
 public class ProjSolidAngleIlluminator extends DirectIlluminator {
 
-	/* making these 'global' since all of this code is serial */
-	private LuminaireSamplingRecord lRec = new LuminaireSamplingRecord();
-	private IntersectionRecord lightIRec = new IntersectionRecord();
-	private Color brdf = new Color();
-	private Color irradiance = new Color();
-	private Vector3 normal = new Vector3();
-	private Ray sample = new Ray();
-
-	public LuminaireSamplingRecord currentLuminaireSamplingRecord() {
-		return lRec;
-	}
-
 	public void directIllumination(Scene scene, Vector3 incDir, Vector3 outDir,
-			IntersectionRecord iRec, Point2 seed, Color outColor) {
+			IntersectionRecord iRec, Point2 seed, RenderContext context,
+			Color outColor) {
 
-		/* normal at intersection is w of the intersection record's frame */
-		normal.set(iRec.frame.w);
-		normal.normalize();
+		/* all work space comes from the calling thread's context */
+		LuminaireSamplingRecord lRec = context.lRec;
+		IntersectionRecord lightIRec = context.lightIRec;
+		Color brdf = context.brdfValue;
+		Color irradiance = context.radiance;
+		Ray sample = context.ray;
 
 		/* unit square sample -> unit hemisphere sample */
 		Geometry.squareToPSAHemisphere(seed, incDir);
@@ -49,15 +42,6 @@ public class ProjSolidAngleIlluminator extends DirectIlluminator {
 		iRec.frame.frameToCanonical(incDir);
 		incDir.normalize();
 
-		/*
-		 * find reflection across normal at intersection point
-		 * R = 2N * (L.N) - L
-		 */
-		outDir.set(normal);
-		outDir.scale(2 * incDir.dot(normal));
-		outDir.sub(incDir);
-		outDir.normalize();
-
 		/*
 		 * cast a ray at the sample direction and see if it intersects an
 		 * emitter
@@ -75,9 +59,11 @@ public class ProjSolidAngleIlluminator extends DirectIlluminator {
 			Material m = iRec.surface.getMaterial();
 			m.getBRDF(iRec).evaluate(iRec.frame, incDir, outDir, brdf);
 
-			/* get incident illumination */
+			/*
+			 * get incident illumination; the cosine cancels with the pdf,
+			 * cos / pi, of the sample direction
+			 */
 			lightIRec.surface.getMaterial().emittedRadiance(lRec, irradiance);
-			irradiance.scale(iRec.frame.w.dot(incDir));
 
 			/* compute direct illumination */
 			outColor.set(1.0);
@@ -1,7 +1,9 @@
 package ray.renderer;
 
 import ray.misc.Color;
+import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RenderContext;
 import ray.misc.Scene;
 import ray.sampling.SampleGenerator;
 
@@ -9,6 +11,10 @@ import ray.sampling.SampleGenerator;
  * A Renderer is an object that can compute the radiance of a ray. All details
  * about how this is accomplished are hidden.
  * 
+ * Renderers keep no mutable state between calls: all work space comes from the
+ * RenderContext, so a single renderer can be used by several threads at once,
+ * each with its own context.
+ * 
  * @author srm
  * 
  */
@@ -16,5 +22,17 @@ import ray.sampling.SampleGenerator;
 public interface Renderer {
 
 	void rayRadiance(Scene scene, Ray ray, SampleGenerator sampler,
-			int sampleIndex, Color outColor);
+			int sampleIndex, RenderContext context, Color outColor);
+
+	/**
+	 * Compute the radiance of a ray whose first intersection has already been
+	 * found, as when camera rays are traced in batches. The result must be
+	 * the same as that of rayRadiance.
+	 * 
+	 * @param hit
+	 *            the first intersection of the ray, or null if it hits nothing
+	 */
+	void hitRadiance(Scene scene, Ray ray, IntersectionRecord hit,
+			SampleGenerator sampler, int sampleIndex, RenderContext context,
+			Color outColor);
 }
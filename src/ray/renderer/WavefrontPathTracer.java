@@ -0,0 +1,446 @@
+package ray.renderer;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import ray.brdf.BRDF;
+import ray.camera.Camera;
+import ray.math.Point2;
+import ray.math.Vector3;
+import ray.misc.AccumulationBuffer;
+import ray.misc.Color;
+import ray.misc.HitBatch;
+import ray.misc.IntersectionRecord;
+import ray.misc.Ray;
+import ray.misc.RayBatch;
+import ray.misc.RenderContext;
+import ray.misc.Scene;
+import ray.sampling.SampleGenerator;
+
+/**
+ * A path tracer that advances many paths together, one bounce at a time,
+ * instead of following each path to its end before starting the next. The
+ * paths in flight live in a PathPool, and each bounce runs as a sequence of
+ * stages over the whole pool:
+ *
+ * 1. camera: start paths for the next samples of the block in the free slots;
+ * 2. intersect: trace the rays of the live paths in batches, and finish the
+ * paths that escape with the background;
+ * 3. sort: order the paths that hit something by material, so that shading
+ * runs one BRDF's code over many paths at a time;
+ * 4. shade: add emitted light, choose a point on a luminaire for each path
+ * and queue the shadow ray to it, then choose the next direction or end the
+ * path by Russian roulette;
+ * 5. shadow: trace the queued shadow rays in batches and add the light of the
+ * visible ones;
+ * 6. compact: add the radiance of finished paths to the image and move the
+ * survivors to the front of the pool, leaving the free slots at the end.
+ *
+ * Stages 1, 2, 4 and 5 are parallel loops over chunks of the pool, each chunk
+ * claimed by whichever thread is free; sorting and compacting only move
+ * indices and a few numbers per path, so they run on the rendering thread.
+ * Since the stages already use all the scene's threads, RayTracer renders the
+ * blocks of a wavefront renderer one at a time.
+ *
+ * The paths are the same as those of PathTracer with a LuminairesIlluminator:
+ * each draws its random numbers from the same sampler rows, so the two
+ * renderers compute the same image up to rounding. That is also what
+ * rayRadiance() does for a single ray. Only luminaire sampling is supported
+ * for next-event estimation, because it is the strategy whose shadow rays can
+ * be put off until the shadow stage.
+ */
+public class WavefrontPathTracer extends PathTracer {
+
+	/** The stages that run as parallel loops */
+	private static final int CAMERA = 0, INTERSECT = 1, SHADE = 2,
+			SHADOW = 3;
+
+	private static final int CHUNK_SIZE = PathPool.CHUNK_SIZE;
+
+	/** The largest number of paths in flight */
+	protected int poolSize = 1 << 14;
+
+	public WavefrontPathTracer() {
+		this.direct = new LuminairesIlluminator();
+	}
+
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	@Override
+	public void setDirectIlluminator(DirectIlluminator direct) {
+		if (!(direct instanceof LuminairesIlluminator))
+			throw new Error("WavefrontPathTracer only supports the "
+					+ "LuminairesIlluminator, not "
+					+ direct.getClass().getSimpleName() + ".");
+		super.setDirectIlluminator(direct);
+	}
+
+	/**
+	 * Add samples to some pixels of an accumulation buffer.
+	 *
+	 * @param scene
+	 *            The scene data
+	 * @param sampler
+	 *            The sampler to copy for the stage threads
+	 * @param context
+	 *            The work space of the rendering thread, which keeps the pool
+	 * @param accum
+	 *            the buffer to add the samples to
+	 * @param numPixels
+	 *            the number of pixels
+	 * @param x
+	 *            the column of each pixel
+	 * @param y
+	 *            the row of each pixel
+	 * @param first
+	 *            the sample index of the first sample of each pixel
+	 * @param count
+	 *            the number of samples to add to each pixel
+	 */
+	public void renderPixels(Scene scene, SampleGenerator sampler,
+			RenderContext context, AccumulationBuffer accum, int numPixels,
+			int[] x, int[] y, int[] first, int[] count) {
+
+		PathPool pool = context.pathPool;
+		if (pool == null
+				|| !pool.fits(scene, poolSize, scene.getNumThreads())) {
+			if (pool != null)
+				pool.shutdown();
+			pool = new PathPool(scene, sampler, poolSize,
+					scene.getNumThreads());
+			context.pathPool = pool;
+		}
+		pool.width = accum.getWidth();
+		pool.height = accum.getHeight();
+		pool.setPixels(numPixels, x, y, first, count);
+
+		while (true) {
+
+			// Start new paths in the free slots
+			int firstNew = pool.live;
+			while (pool.live < pool.capacity && pool.hasWork()) {
+				int p = pool.nextPixel;
+				int i = pool.live++;
+				pool.pixelX[i] = pool.pixelsX[p];
+				pool.pixelY[i] = pool.pixelsY[p];
+				pool.sample[i] = pool.firstSample[p] + pool.started++;
+			}
+			if (pool.live == 0)
+				break;
+			runStage(scene, pool, CAMERA, firstNew, pool.live);
+
+			runStage(scene, pool, INTERSECT, 0, pool.live);
+			sortByMaterial(pool);
+			runStage(scene, pool, SHADE, 0, pool.numHits);
+			runStage(scene, pool, SHADOW, 0, pool.numHits);
+			compact(pool, accum);
+		}
+	}
+
+	/**
+	 * Run a stage over the slots (or, for shading, the positions in the sorted
+	 * order) from lo to hi, one chunk at a time, on all the pool's threads.
+	 */
+	private void runStage(Scene scene, PathPool pool, int stage, int lo,
+			int hi) {
+
+		if (hi <= lo)
+			return;
+		int firstChunk = lo / CHUNK_SIZE;
+		int numChunks = (hi - 1) / CHUNK_SIZE + 1 - firstChunk;
+		pool.nextChunk.set(firstChunk);
+
+		int numHelpers = Math.min(pool.contexts.length, numChunks) - 1;
+		Future<?>[] helpers = new Future<?>[numHelpers];
+		for (int t = 0; t < numHelpers; t++)
+			helpers[t] = pool.executor.submit(new StageTask(scene, pool,
+					stage, lo, hi, t + 1));
+		runChunks(scene, pool, stage, lo, hi, 0);
+		for (int t = 0; t < numHelpers; t++) {
+			try {
+				helpers[t].get();
+			} catch (InterruptedException e) {
+				throw new Error(
+						"Interrupted while waiting for wavefront workers.");
+			} catch (ExecutionException e) {
+				throw new Error("Wavefront worker failed.", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Claim chunks of a stage until there are none left.
+	 *
+	 * @param t
+	 *            the index of the calling thread's work space in the pool
+	 */
+	private void runChunks(Scene scene, PathPool pool, int stage, int lo,
+			int hi, int t) {
+
+		int lastChunk = (hi - 1) / CHUNK_SIZE;
+		int c;
+		while ((c = pool.nextChunk.getAndIncrement()) <= lastChunk) {
+			int from = Math.max(lo, c * CHUNK_SIZE);
+			int to = Math.min(hi, (c + 1) * CHUNK_SIZE);
+			switch (stage) {
+			case CAMERA:
+				generateRays(scene, pool, from, to, t);
+				break;
+			case INTERSECT:
+				intersect(scene, pool, c, from, to, t);
+				break;
+			case SHADE:
+				shade(scene, pool, c, from, to, t);
+				break;
+			case SHADOW:
+				traceShadows(scene, pool, c);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Start the paths in slots from to to at the camera.
+	 */
+	private void generateRays(Scene scene, PathPool pool, int from, int to,
+			int t) {
+
+		SampleGenerator sampler = pool.samplers[t];
+		Camera cam = scene.getCamera();
+		Ray ray = pool.contexts[t].pathRay;
+		Point2 seed = pool.contexts[t].seed;
+		for (int i = from; i < to; i++) {
+			sampler.setPixel(pool.pixelX[i], pool.pixelY[i]);
+			sampler.sample(0, pool.sample[i], seed);
+			cam.getRay(ray, (pool.pixelX[i] + seed.x) / pool.width,
+					(pool.pixelY[i] + seed.y) / pool.height);
+			pool.rays[i / CHUNK_SIZE].set(i % CHUNK_SIZE, ray);
+			pool.depth[i] = 0;
+			pool.alive[i] = true;
+			pool.throughputR[i] = pool.throughputG[i] = pool.throughputB[i] = 1;
+			pool.radianceR[i] = pool.radianceG[i] = pool.radianceB[i] = 0;
+		}
+	}
+
+	/**
+	 * Trace the rays of chunk c (slots from to to), note the material each
+	 * one hit and finish the paths that escape.
+	 */
+	private void intersect(Scene scene, PathPool pool, int c, int from,
+			int to, int t) {
+
+		RayBatch rays = pool.rays[c];
+		HitBatch hits = pool.hits[c];
+		rays.size = to - from;
+		scene.getFirstIntersection(rays, hits);
+
+		Ray ray = pool.contexts[t].pathRay;
+		Color background = pool.contexts[t].radiance;
+		int unknown = pool.materialCount.length - 1;
+		for (int k = 0; k < rays.size; k++) {
+			int i = from + k;
+			if (hits.hit[k]) {
+				Integer m = pool.materials.get(hits.records[k].surface
+						.getMaterial());
+				pool.material[i] = m == null ? unknown : m;
+				continue;
+			}
+			pool.material[i] = -1;
+			pool.alive[i] = false;
+			if (pool.depth[i] == 0 || backgroundIllumination != 0) {
+				rays.get(k, ray);
+				scene.getBackground().evaluate(ray.direction, background);
+				pool.radianceR[i] += pool.throughputR[i] * background.r;
+				pool.radianceG[i] += pool.throughputG[i] * background.g;
+				pool.radianceB[i] += pool.throughputB[i] * background.b;
+			}
+		}
+	}
+
+	/**
+	 * List the live paths that hit something in pool.order, grouped by
+	 * material (a counting sort).
+	 */
+	private void sortByMaterial(PathPool pool) {
+
+		int[] start = pool.materialCount;
+		Arrays.fill(start, 0);
+		for (int i = 0; i < pool.live; i++)
+			if (pool.material[i] >= 0)
+				start[pool.material[i]]++;
+		int total = 0;
+		for (int m = 0; m < start.length; m++) {
+			int n = start[m];
+			start[m] = total;
+			total += n;
+		}
+		for (int i = 0; i < pool.live; i++)
+			if (pool.material[i] >= 0)
+				pool.order[start[pool.material[i]]++] = i;
+		pool.numHits = total;
+	}
+
+	/**
+	 * Shade the paths at positions from to to of pool.order, which make up
+	 * chunk c of it, and queue their shadow rays in shadow batch c. This is
+	 * one step of the loop in PathTracer.hitRadiance().
+	 */
+	private void shade(Scene scene, PathPool pool, int c, int from, int to,
+			int t) {
+
+		RenderContext context = pool.contexts[t];
+		SampleGenerator sampler = pool.samplers[t];
+		LuminairesIlluminator luminaires = (LuminairesIlluminator) direct;
+		Ray ray = context.pathRay;
+		Point2 seed = context.seed;
+		Vector3 outDir = context.outDir;
+		Vector3 incDir = context.incDir;
+		Color color = context.directRadiance;
+		Color bounceWeight = context.bounceWeight;
+		RayBatch shadowRays = pool.shadowRays[c];
+		int[] shadowOwner = pool.shadowOwner[c];
+		shadowRays.clear();
+
+		for (int q = from; q < to; q++) {
+			int i = pool.order[q];
+			int chunk = i / CHUNK_SIZE;
+			int k = i % CHUNK_SIZE;
+			IntersectionRecord iRec = pool.hits[chunk].records[k];
+			pool.rays[chunk].get(k, ray);
+			sampler.setPixel(pool.pixelX[i], pool.pixelY[i]);
+			int depth = pool.depth[i];
+			int sampleIndex = pool.sample[i];
+			pool.alive[i] = false;
+
+			if (depth == 0) {
+				emittedRadiance(iRec, ray.direction, context.lRec, color);
+				pool.radianceR[i] += color.r;
+				pool.radianceG[i] += color.g;
+				pool.radianceB[i] += color.b;
+			}
+
+			/* the exitant direction points back along the ray */
+			outDir.set(ray.direction);
+			outDir.scale(-1);
+			outDir.normalize();
+
+			BRDF brdf = iRec.surface.getMaterial().getBRDF(iRec);
+			if (brdf == null)
+				continue;
+
+			/* --- light from a luminaire, if the shadow ray gets through --- */
+			int row = 1 + ROWS_PER_VERTEX * depth;
+			sampler.sample(row, sampleIndex, seed);
+			if (luminaires.unshadowedIllumination(scene, incDir, outDir, iRec,
+					seed, context, color)) {
+				pool.lightR[i] = color.r * pool.throughputR[i];
+				pool.lightG[i] = color.g * pool.throughputG[i];
+				pool.lightB[i] = color.b * pool.throughputB[i];
+				shadowOwner[shadowRays.add(context.lumRec.shadowRay)] = i;
+			}
+
+			if (depthLimit > 0 && depth + 1 >= depthLimit)
+				continue;
+
+			/* --- choose the next direction --- */
+			sampler.sample(row + 1, sampleIndex, seed);
+			if (!gatherIllumination(brdf, outDir, iRec, seed, incDir,
+					bounceWeight))
+				continue;
+			pool.throughputR[i] *= bounceWeight.r;
+			pool.throughputG[i] *= bounceWeight.g;
+			pool.throughputB[i] *= bounceWeight.b;
+
+			/* --- Russian roulette --- */
+			if (depth + 1 >= rouletteDepth) {
+				double survival = Math.min(MAX_SURVIVAL, Math.max(
+						pool.throughputR[i], Math.max(pool.throughputG[i],
+								pool.throughputB[i])));
+				sampler.sample(row + 2, sampleIndex, seed);
+				if (seed.x >= survival)
+					continue;
+				double scale = 1 / survival;
+				pool.throughputR[i] *= scale;
+				pool.throughputG[i] *= scale;
+				pool.throughputB[i] *= scale;
+			}
+
+			ray.set(iRec.frame.o, incDir);
+			ray.makeOffsetRay();
+			pool.rays[chunk].set(k, ray);
+			pool.depth[i] = depth + 1;
+			pool.alive[i] = true;
+		}
+	}
+
+	/**
+	 * Trace shadow batch c and add the light of the luminaire points that
+	 * are visible.
+	 */
+	private void traceShadows(Scene scene, PathPool pool, int c) {
+
+		RayBatch shadowRays = pool.shadowRays[c];
+		if (shadowRays.size == 0)
+			return;
+		HitBatch shadowHits = pool.shadowHits[c];
+		int[] shadowOwner = pool.shadowOwner[c];
+		scene.occluded(shadowRays, shadowHits);
+		for (int m = 0; m < shadowRays.size; m++) {
+			if (shadowHits.hit[m])
+				continue;
+			int i = shadowOwner[m];
+			pool.radianceR[i] += pool.lightR[i];
+			pool.radianceG[i] += pool.lightG[i];
+			pool.radianceB[i] += pool.lightB[i];
+		}
+	}
+
+	/**
+	 * Add the radiance of the finished paths to the image and move the live
+	 * ones to the front of the pool, keeping their order.
+	 */
+	private void compact(PathPool pool, AccumulationBuffer accum) {
+
+		Color color = pool.color;
+		int live = 0;
+		for (int i = 0; i < pool.live; i++) {
+			if (pool.alive[i]) {
+				if (i != live)
+					pool.move(i, live);
+				live++;
+			} else {
+				color.set(pool.radianceR[i], pool.radianceG[i],
+						pool.radianceB[i]);
+				accum.add(pool.pixelX[i], pool.pixelY[i], color);
+			}
+		}
+		pool.live = live;
+	}
+
+	/**
+	 * The part of a stage that runs on one of the pool's helper threads.
+	 */
+	private final class StageTask implements Runnable {
+
+		private final Scene scene;
+		private final PathPool pool;
+		private final int stage, lo, hi, t;
+
+		StageTask(Scene scene, PathPool pool, int stage, int lo, int hi,
+				int t) {
+			this.scene = scene;
+			this.pool = pool;
+			this.stage = stage;
+			this.lo = lo;
+			this.hi = hi;
+			this.t = t;
+		}
+
+		public void run() {
+			runChunks(scene, pool, stage, lo, hi, t);
+		}
+	}
+}
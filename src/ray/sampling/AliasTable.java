@@ -0,0 +1,124 @@
+package ray.sampling;
+
+/**
+ * A discrete distribution over the indices 0..n-1 with probabilities
+ * proportional to given weights, sampled in constant time by Walker's alias
+ * method (built with Vose's algorithm). Each index owns one bucket of width
+ * 1/n; a uniform number picks a bucket, and the rest of it picks between the
+ * bucket's own index and its alias.
+ *
+ * The table is immutable once built, so threads can share it.
+ */
+public final class AliasTable {
+
+	/** The probability of keeping each bucket's own index */
+	private final double[] keep;
+
+	/** The index each bucket gives otherwise */
+	private final int[] alias;
+
+	/** The probability of each index */
+	private final double[] pdf;
+
+	/**
+	 * Build the table. If all the weights are zero every index is equally
+	 * likely.
+	 *
+	 * @param weights
+	 *            the non-negative weights of the indices
+	 */
+	public AliasTable(double[] weights) {
+
+		int n = weights.length;
+		keep = new double[n];
+		alias = new int[n];
+		pdf = new double[n];
+
+		double total = 0;
+		for (int i = 0; i < n; i++)
+			total += weights[i];
+		for (int i = 0; i < n; i++)
+			pdf[i] = total > 0 ? weights[i] / total : 1.0 / n;
+
+		// Split the indices into buckets that are under- and overfull at
+		// n * pdf, then top up each underfull one from an overfull one
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0, numLarge = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = n * pdf[i];
+			if (scaled[i] < 1)
+				small[numSmall++] = i;
+			else
+				large[numLarge++] = i;
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+			keep[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1;
+			if (scaled[l] < 1)
+				small[numSmall++] = l;
+			else
+				large[numLarge++] = l;
+		}
+
+		// What is left is full up to rounding
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			keep[l] = 1;
+			alias[l] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			keep[s] = 1;
+			alias[s] = s;
+		}
+	}
+
+	/**
+	 * @return the number of indices
+	 */
+	public int size() {
+		return pdf.length;
+	}
+
+	/**
+	 * Choose an index.
+	 *
+	 * @param u
+	 *            a uniform random number in [0, 1)
+	 * @return the index
+	 */
+	public int sample(double u) {
+		double d = u * pdf.length;
+		int i = Math.min((int) d, pdf.length - 1);
+		return d - i < keep[i] ? i : alias[i];
+	}
+
+	/**
+	 * The uniform random number left over after sample(u), which is
+	 * independent of the index chosen, so that it can be used again.
+	 *
+	 * @param u
+	 *            the number given to sample()
+	 * @return a uniform random number in [0, 1)
+	 */
+	public double remap(double u) {
+		double d = u * pdf.length;
+		int i = Math.min((int) d, pdf.length - 1);
+		double f = d - i;
+		if (f < keep[i])
+			return f / keep[i];
+		return Math.min((f - keep[i]) / (1 - keep[i]), Math.nextDown(1.0));
+	}
+
+	/**
+	 * @return the probability of choosing an index
+	 */
+	public double pdf(int index) {
+		return pdf[index];
+	}
+}
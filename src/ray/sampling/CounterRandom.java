@@ -0,0 +1,66 @@
+package ray.sampling;
+
+import ray.math.Point2;
+
+/**
+ * A counter based random number generator: the random bits are a fixed
+ * function of a key (pixel x, pixel y, sample index, dimension) rather than
+ * the next state of a shared generator, so any sample can be drawn by any
+ * thread, in any order, and comes out the same. The function is pcg4d of
+ * Jarzynski and Olano, "Hash Functions for GPU Rendering" (JCGT 2020): a PCG
+ * style LCG step on each of the four keys, mixed with one another.
+ * 
+ * Unlike java.util.Random there is no state, so nothing to synchronize.
+ */
+public final class CounterRandom {
+
+	private CounterRandom() {
+	}
+
+	/**
+	 * Compute 64 random bits for a key.
+	 * 
+	 * @return the first two outputs of pcg4d, in the high and low halves
+	 */
+	public static long bits(int x, int y, int sample, int dimension) {
+
+		x = x * 1664525 + 1013904223;
+		y = y * 1664525 + 1013904223;
+		int z = sample * 1664525 + 1013904223;
+		int w = dimension * 1664525 + 1013904223;
+
+		x += y * w;
+		y += z * x;
+		z += x * y;
+		w += y * z;
+
+		x ^= x >>> 16;
+		y ^= y >>> 16;
+		z ^= z >>> 16;
+		w ^= w >>> 16;
+
+		x += y * w;
+		y += z * x;
+		z += x * y;
+		w += y * z;
+
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * Set a point to a uniform random point on the unit square for a key.
+	 */
+	public static void sample(int x, int y, int sample, int dimension,
+			Point2 outPt) {
+
+		long bits = bits(x, y, sample, dimension);
+		outPt.set((bits >>> 32) * 0x1p-32, (bits & 0xffffffffL) * 0x1p-32);
+	}
+
+	/**
+	 * A uniform random number in [0, 1) for a key.
+	 */
+	public static double uniform(int x, int y, int sample, int dimension) {
+		return (bits(x, y, sample, dimension) >>> 32) * 0x1p-32;
+	}
+}
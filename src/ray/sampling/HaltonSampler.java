@@ -0,0 +1,108 @@
+package ray.sampling;
+
+import ray.math.Point2;
+
+/**
+ * Samples from the Halton sequence: dimension pair d uses the radical inverses
+ * of the sample index in the 2d-th and (2d+1)-th primes. Each pixel and
+ * dimension shifts its points by its own random offset (a Cranley-Patterson
+ * rotation) hashed from the pixel, the dimension and the sampler's seed, so
+ * that neighbouring pixels don't repeat the same pattern and the samples of a
+ * pixel don't depend on the thread or order in which it is rendered.
+ * 
+ * Dimension pairs beyond the table of primes, where the Halton sequence is
+ * poorly distributed anyway, get hashed uniform random points. Samples past
+ * the end of the pattern repeat its points with new offsets (see
+ * Scrambling.dimensionSeed()).
+ * 
+ * <sampler type="HaltonSampler"> <numSamples>64</numSamples> </sampler>
+ */
+public class HaltonSampler implements SampleGenerator {
+
+	/** The bases of the dimensions */
+	private static final int[] PRIMES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29,
+			31, 37, 41, 43, 47, 53, 59, 61, 67, 71, 73, 79, 83, 89, 97, 101,
+			103, 107, 109, 113, 127, 131 };
+
+	int numSamples = 1;
+
+	/** The seed of all the offsets, see setSeed() */
+	int seed = 0;
+
+	/** The hash of the current pixel and the seed */
+	int pixelSeed;
+
+	public HaltonSampler() {
+	}
+
+	public void setNumSamples(int numSamples) {
+		this.numSamples = numSamples;
+	}
+
+	/**
+	 * Set the seed from which all the offsets are derived; renders with the
+	 * same seed are identical.
+	 */
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public void setPixel(int x, int y) {
+		pixelSeed = Scrambling.hash(x, y, seed);
+	}
+
+	public void generate() {
+	}
+
+	public void sample(int row, int col, Point2 outPt) {
+		int dimensionSeed = Scrambling.dimensionSeed(pixelSeed, row, col
+				/ numSamples);
+		int index = col % numSamples;
+		if (2 * row + 1 >= PRIMES.length) {
+			outPt.set(
+					Scrambling.toUnit(Scrambling.hash(dimensionSeed, index, 0)),
+					Scrambling.toUnit(Scrambling.hash(dimensionSeed, index, 1)));
+			return;
+		}
+		outPt.set(
+				rotate(radicalInverse(index, PRIMES[2 * row]),
+						Scrambling.hash(dimensionSeed, 0)),
+				rotate(radicalInverse(index, PRIMES[2 * row + 1]),
+						Scrambling.hash(dimensionSeed, 1)));
+	}
+
+	/**
+	 * Mirror the digits of index in base b about the radix point.
+	 */
+	static double radicalInverse(int index, int b) {
+		double inverseBase = 1.0 / b;
+		double scale = inverseBase;
+		double result = 0;
+		for (int i = index; i > 0; i /= b) {
+			result += (i % b) * scale;
+			scale *= inverseBase;
+		}
+		return result;
+	}
+
+	/**
+	 * Shift a value in [0, 1) by the offset given by a bit pattern, wrapping
+	 * around at 1.
+	 */
+	private static double rotate(double value, int offset) {
+		double result = value + Scrambling.toUnit(offset);
+		return result < 1 ? result : result - 1;
+	}
+
+	public SampleGenerator copy() {
+		HaltonSampler result = new HaltonSampler();
+		result.numSamples = numSamples;
+		result.setSeed(seed);
+		return result;
+	}
+
+}
@@ -1,19 +1,25 @@
 package ray.sampling;
 
-import java.util.Random;
-
 import ray.math.Point2;
 
 /**
  * A trivial implementation of SampleGenerator in which all the samples are
- * independent and not related in any way to one another.
+ * independent and not related in any way to one another. The samples come
+ * from a CounterRandom keyed by the pixel, the sample index and the
+ * dimension, so a pixel gets the same samples whichever thread renders it.
+ * Every sample index gets its own samples, so there is no end to the pattern.
  * 
  * @author srm
  */
 public class IndependentSampler implements SampleGenerator {
 
 	int numSamples = 1;
-	Random random = new Random(1);
+
+	/** The seed mixed into every dimension, see setSeed() */
+	int seed = 0;
+
+	/** The current pixel */
+	int pixelX, pixelY;
 
 	public IndependentSampler() {
 	}
@@ -22,15 +28,35 @@ public class IndependentSampler implements SampleGenerator {
 		this.numSamples = numSamples;
 	}
 
+	/**
+	 * Set the seed of the samples; renders with the same seed are identical.
+	 */
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
 	public int getNumSamples() {
 		return numSamples;
 	}
 
+	public void setPixel(int x, int y) {
+		pixelX = x;
+		pixelY = y;
+	}
+
 	public void generate() {
 	}
 
 	public void sample(int row, int col, Point2 outPt) {
-		outPt.set(random.nextDouble(), random.nextDouble());
+		CounterRandom.sample(pixelX, pixelY, col, Scrambling.hash(row, seed),
+				outPt);
+	}
+
+	public SampleGenerator copy() {
+		IndependentSampler result = new IndependentSampler();
+		result.numSamples = numSamples;
+		result.seed = seed;
+		return result;
 	}
 
 }
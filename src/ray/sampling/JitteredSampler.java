@@ -1,33 +1,65 @@
 package ray.sampling;
 
-import java.util.Random;
-
 import ray.math.Point2;
 
+/**
+ * Stratified samples: each of the first stratificationDepth dimension pairs
+ * places one sample in each cell of a numSamplesU x numSamplesV grid, in an
+ * order given by its own permutation, and jitters it within the cell. Deeper
+ * dimensions get independent samples. The permutations depend only on the
+ * seed and the jitter comes from a CounterRandom keyed by the pixel, the
+ * sample index and the dimension, so a pixel gets the same samples whichever
+ * thread renders it.
+ * 
+ * Samples past the end of the pattern start a new round of it: each cell gets
+ * one new jittered sample per round, and each dimension pair rotates its
+ * permutation by its own amount, so the pairing of cells between dimensions
+ * changes from round to round.
+ */
 public class JitteredSampler implements SampleGenerator {
 
 	private static final int stratificationDepth = 30;
 
 	int numSamplesU = 1, numSamplesV = 1;
 
+	/** The seed of the permutations and the jitter, see setSeed() */
+	int seed = 0;
+
+	/** The current pixel */
+	int pixelX, pixelY;
+
 	int[][] permutations;
-	Random random = new Random();
 
 	public JitteredSampler() {
 	}
 
 	public void setNumSamplesU(int numSamplesU) {
 		this.numSamplesU = numSamplesU;
+		permutations = null;
 	}
 
 	public void setNumSamplesV(int numSamplesV) {
 		this.numSamplesV = numSamplesV;
+		permutations = null;
+	}
+
+	/**
+	 * Set the seed of the samples; renders with the same seed are identical.
+	 */
+	public void setSeed(int seed) {
+		this.seed = seed;
+		permutations = null;
 	}
 
 	public int getNumSamples() {
 		return numSamplesU * numSamplesV;
 	}
 
+	public void setPixel(int x, int y) {
+		pixelX = x;
+		pixelY = y;
+	}
+
 	public void generate() {
 		if (permutations == null) {
 			permutations = new int[stratificationDepth][];
@@ -37,7 +69,7 @@ public class JitteredSampler implements SampleGenerator {
 				for (int j = 0; j < n; j++)
 					permutations[i][j] = j;
 				for (int j = n - 1; j > 0; j--) {
-					int k = random.nextInt(j + 1);
+					int k = (int) (CounterRandom.uniform(i, j, -1, seed) * (j + 1));
 					int temp = permutations[i][j];
 					permutations[i][j] = permutations[i][k];
 					permutations[i][k] = temp;
@@ -47,17 +79,29 @@ public class JitteredSampler implements SampleGenerator {
 	}
 
 	public void sample(int row, int col, Point2 outPt) {
+		CounterRandom.sample(pixelX, pixelY, col, Scrambling.hash(row, seed),
+				outPt);
 		if (row < stratificationDepth) {
-			int i = permutations[row][col];
+			int n = getNumSamples();
+			int round = col / n;
+			int index = col % n;
+			if (round > 0)
+				index = (index + (Scrambling.hash(row, round, seed) >>> 1)
+						% n) % n;
+			int i = permutations[row][index];
 			int iu = i % numSamplesU;
 			int iv = i / numSamplesU;
-			outPt.set((iu + random.nextDouble()) / numSamplesU,
-					(iv + random.nextDouble()) / numSamplesV);
-			return;
+			outPt.set((iu + outPt.x) / numSamplesU, (iv + outPt.y)
+					/ numSamplesV);
 		}
+	}
 
-		// assert false;
-		outPt.set(random.nextDouble(), random.nextDouble());
+	public SampleGenerator copy() {
+		JitteredSampler result = new JitteredSampler();
+		result.numSamplesU = numSamplesU;
+		result.numSamplesV = numSamplesV;
+		result.seed = seed;
+		return result;
 	}
 
 }
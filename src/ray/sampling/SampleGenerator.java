@@ -33,6 +33,19 @@ public interface SampleGenerator {
 	 */
 	int getNumSamples();
 
+	/**
+	 * Select the pixel whose samples are drawn next. Samplers that derive
+	 * their patterns from the pixel, so that a pixel gets the same samples
+	 * whichever thread renders it and in whatever order, use this; others
+	 * ignore it. Called before generate().
+	 * 
+	 * @param x
+	 *            the column of the pixel
+	 * @param y
+	 *            the row of the pixel
+	 */
+	void setPixel(int x, int y);
+
 	/**
 	 * Forget any state and generate a whole new set of samples.
 	 */
@@ -41,19 +54,30 @@ public interface SampleGenerator {
 	/**
 	 * Draw a sample from the sampling pattern. The caller explicitly decides
 	 * which sample is being retrieved and which dimensions of the domain are
-	 * required.
+	 * required. (All callers pass the dimensions first: the renderer uses
+	 * row 0 for the position in the pixel and row 1 for direct lighting.)
 	 * 
 	 * @param row
-	 *            Which sample of the pattern is being used; 0 <= row <
-	 *            getNumSamples(). Two samples drawn using the same index are
-	 *            not uniformly distributed (for example, they might always be
-	 *            the same point).
-	 * @param col
 	 *            Which dimensions are being used. Each distinct depth value
 	 *            corresponds to its own two dimensions.
+	 * @param col
+	 *            Which sample is being used; 0 <= col. Samples col and col +
+	 *            k * getNumSamples() are the same sample of different rounds
+	 *            of the pattern, each randomized anew, so a pixel can take
+	 *            any number of samples. Two samples drawn using the same index
+	 *            are not uniformly distributed (for example, they might always
+	 *            be the same point).
 	 * @param outPt
 	 *            The 2D point, distributed uniformly on the unit square.
 	 */
 	void sample(int row, int col, Point2 outPt);
 
+	/**
+	 * Create a sample generator with the same pattern settings as this one but
+	 * its own random state, so that it can be used concurrently with this one.
+	 * 
+	 * @return a sample generator for the use of another rendering thread
+	 */
+	SampleGenerator copy();
+
 }
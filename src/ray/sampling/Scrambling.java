@@ -0,0 +1,103 @@
+package ray.sampling;
+
+/**
+ * Integer hashing and scrambling shared by the low discrepancy samplers. All
+ * values are 32 bit patterns, treated as unsigned; a pattern x stands for the
+ * number x / 2^32 in [0, 1).
+ * 
+ * The nested uniform (Owen) scrambling is the hash based one of Burley,
+ * "Practical Hash-based Owen Scrambling" (JCGT 2020).
+ */
+final class Scrambling {
+
+	private Scrambling() {
+	}
+
+	/**
+	 * A 32 bit integer hash with good avalanche behaviour (Wellons'
+	 * "lowbias32").
+	 */
+	static int mix(int x) {
+		x ^= x >>> 16;
+		x *= 0x7feb352d;
+		x ^= x >>> 15;
+		x *= 0x846ca68b;
+		x ^= x >>> 16;
+		return x;
+	}
+
+	/**
+	 * Hash two integers into one.
+	 */
+	static int hash(int a, int b) {
+		return mix(a ^ mix(b + 0x9e3779b9));
+	}
+
+	/**
+	 * Hash three integers into one.
+	 */
+	static int hash(int a, int b, int c) {
+		return hash(hash(a, b), c);
+	}
+
+	/**
+	 * The seed of the scrambling of one dimension pair of one round of a
+	 * pixel's pattern. Sample col of a pattern of n samples is sample col % n
+	 * of round col / n; each round is scrambled anew, so a render that takes
+	 * more samples than the pattern has gets new points instead of the same
+	 * ones again, and round 0 is the pattern itself.
+	 */
+	static int dimensionSeed(int pixelSeed, int row, int round) {
+		int seed = hash(pixelSeed, row);
+		return round == 0 ? seed : hash(seed, round);
+	}
+
+	/**
+	 * Convert a bit pattern to a double in [0, 1).
+	 */
+	static double toUnit(int x) {
+		return (x & 0xffffffffL) * 0x1p-32;
+	}
+
+	/**
+	 * The first dimension of the Sobol sequence, the van der Corput sequence
+	 * in base 2.
+	 */
+	static int vanDerCorput(int index) {
+		return Integer.reverse(index);
+	}
+
+	/**
+	 * The second dimension of the Sobol sequence. Together with the first it
+	 * is a (0,2)-sequence in base 2.
+	 */
+	static int sobol2(int index) {
+		int result = 0;
+		for (int v = 1 << 31; index != 0; index >>>= 1, v ^= v >>> 1)
+			if ((index & 1) != 0)
+				result ^= v;
+		return result;
+	}
+
+	/**
+	 * Scramble the bits of x hierarchically from the lowest up, the Laine and
+	 * Karras permutation, which nestedUniform() applies to reversed bits.
+	 */
+	static int laineKarras(int x, int seed) {
+		x += seed;
+		x ^= x * 0x6c50b47c;
+		x ^= x * 0xb82f1e52;
+		x ^= x * 0xc7afe638;
+		x ^= x * 0x8d22f6e6;
+		return x;
+	}
+
+	/**
+	 * Owen scramble a bit pattern: each bit is flipped or not depending on
+	 * the seed and all the bits above it. Applied to a sample index it
+	 * shuffles every aligned block of 2^k indices within itself.
+	 */
+	static int nestedUniform(int x, int seed) {
+		return Integer.reverse(laineKarras(Integer.reverse(x), seed));
+	}
+}
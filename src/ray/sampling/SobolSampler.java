@@ -0,0 +1,73 @@
+package ray.sampling;
+
+import ray.math.Point2;
+
+/**
+ * Samples from the first two dimensions of the Sobol sequence, which form a
+ * (0,2)-sequence, with hash based Owen scrambling. Every pair of dimensions
+ * gets its own shuffle of the sample indices and its own scrambling of the
+ * points, both seeded by the pixel, the dimension and the sampler's seed, so
+ * the dimensions are decorrelated and the samples of a pixel don't depend on
+ * the thread or order in which it is rendered.
+ * 
+ * Any number of samples works, but the pattern is best stratified when it is
+ * a power of two. Samples past the end of the pattern come from new
+ * scramblings of it (see Scrambling.dimensionSeed()).
+ * 
+ * <sampler type="SobolSampler"> <numSamples>64</numSamples> </sampler>
+ */
+public class SobolSampler implements SampleGenerator {
+
+	int numSamples = 1;
+
+	/** The seed of all the scrambling, see setSeed() */
+	int seed = 0;
+
+	/** The hash of the current pixel and the seed */
+	int pixelSeed;
+
+	public SobolSampler() {
+	}
+
+	public void setNumSamples(int numSamples) {
+		this.numSamples = numSamples;
+	}
+
+	/**
+	 * Set the seed from which all the scrambling is derived; renders with the
+	 * same seed are identical.
+	 */
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public void setPixel(int x, int y) {
+		pixelSeed = Scrambling.hash(x, y, seed);
+	}
+
+	public void generate() {
+	}
+
+	public void sample(int row, int col, Point2 outPt) {
+		int dimensionSeed = Scrambling.dimensionSeed(pixelSeed, row, col
+				/ numSamples);
+		int index = Scrambling.nestedUniform(col % numSamples, dimensionSeed);
+		int x = Scrambling.nestedUniform(Scrambling.vanDerCorput(index),
+				Scrambling.hash(dimensionSeed, 0));
+		int y = Scrambling.nestedUniform(Scrambling.sobol2(index),
+				Scrambling.hash(dimensionSeed, 1));
+		outPt.set(Scrambling.toUnit(x), Scrambling.toUnit(y));
+	}
+
+	public SampleGenerator copy() {
+		SobolSampler result = new SobolSampler();
+		result.numSamples = numSamples;
+		result.setSeed(seed);
+		return result;
+	}
+
+}
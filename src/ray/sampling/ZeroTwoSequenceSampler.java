@@ -0,0 +1,86 @@
+package ray.sampling;
+
+import ray.math.Point2;
+
+/**
+ * Samples from the (0,2)-sequence in base 2 made of the van der Corput and
+ * second Sobol dimensions, randomized as by Kollig and Keller: each pair of
+ * dimensions XORs the points with its own random bits (a random digital
+ * shift, which keeps the sequence a (0,2)-sequence) and XORs the sample
+ * indices with its own random bits, so that the dimensions don't correlate.
+ * The random bits are hashed from the pixel, the dimension and the sampler's
+ * seed, so the samples of a pixel don't depend on the thread or order in
+ * which it is rendered.
+ * 
+ * The index shuffle only permutes the pattern if it has a power of two
+ * samples, so setNumSamples() rounds up to one. Samples past the end of the
+ * pattern come from new randomizations of it (see
+ * Scrambling.dimensionSeed()).
+ * 
+ * <sampler type="ZeroTwoSequenceSampler"> <numSamples>64</numSamples>
+ * </sampler>
+ */
+public class ZeroTwoSequenceSampler implements SampleGenerator {
+
+	int numSamples = 1;
+
+	/** The seed of all the scrambling, see setSeed() */
+	int seed = 0;
+
+	/** The hash of the current pixel and the seed */
+	int pixelSeed;
+
+	public ZeroTwoSequenceSampler() {
+	}
+
+	/**
+	 * Set the number of samples, rounded up to a power of two.
+	 */
+	public void setNumSamples(int numSamples) {
+		int rounded = Integer.highestOneBit(Math.max(1, numSamples));
+		if (rounded < numSamples)
+			rounded <<= 1;
+		if (rounded != numSamples)
+			System.err.println("ZeroTwoSequenceSampler: using " + rounded
+					+ " samples instead of " + numSamples);
+		this.numSamples = rounded;
+	}
+
+	/**
+	 * Set the seed from which all the scrambling is derived; renders with the
+	 * same seed are identical.
+	 */
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public void setPixel(int x, int y) {
+		pixelSeed = Scrambling.hash(x, y, seed);
+	}
+
+	public void generate() {
+	}
+
+	public void sample(int row, int col, Point2 outPt) {
+		int dimensionSeed = Scrambling.dimensionSeed(pixelSeed, row, col
+				/ numSamples);
+		int index = (col % numSamples)
+				^ (Scrambling.hash(dimensionSeed, 2) & (numSamples - 1));
+		int x = Scrambling.vanDerCorput(index)
+				^ Scrambling.hash(dimensionSeed, 0);
+		int y = Scrambling.sobol2(index) ^ Scrambling.hash(dimensionSeed, 1);
+		outPt.set(Scrambling.toUnit(x), Scrambling.toUnit(y));
+	}
+
+	public SampleGenerator copy() {
+		ZeroTwoSequenceSampler result = new ZeroTwoSequenceSampler();
+		result.numSamples = numSamples;
+		result.setSeed(seed);
+		return result;
+	}
+
+}
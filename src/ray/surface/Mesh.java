@@ -1,9 +1,16 @@
 package ray.surface;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import ray.accel.AxisAlignedBoundingBox;
+import ray.io.MshReader;
 import ray.material.Material;
 import ray.math.Frame3;
 import ray.math.Point2;
@@ -13,13 +20,34 @@ import ray.misc.LuminaireSamplingRecord;
 import ray.misc.Ray;
 
 /**
- * Basic packed triangle mesh. The triangle mesh is primarily data storage, all
- * geometric interaction is handled through MeshTriangle objects.
+ * Basic packed triangle mesh. The triangle mesh is primarily data storage.
+ * Acceleration structures may refer to its triangles by index and intersect
+ * them with intersectTriangle(), so that large meshes need no object per
+ * triangle; MeshTriangle objects are made only for code that needs a Surface
+ * for each triangle, such as luminaire sampling.
  * 
  * @author arbree Aug 19, 2005 TriangleMesh.java Copyright 2005 Program of
  *         Computer Graphics, Cornell University
  */
 public class Mesh extends Surface {
+
+	/**
+	 * The binary mesh format. A file starts with a header of five little-endian
+	 * ints: the magic number, the version, the number of vertices, the number
+	 * of triangles, and flags saying which optional blocks follow. Then come
+	 * the vertex floats, the triangle ints, and, if flagged, the texture
+	 * coordinate floats and the normal floats, all little-endian and laid out
+	 * exactly as in the arrays of a Mesh.
+	 */
+	public static final String BINARY_EXTENSION = ".mshb";
+	public static final int BINARY_MAGIC = 0x4268534d; // "MShB"
+	public static final int BINARY_VERSION = 1;
+	public static final int BINARY_HAS_TEXCOORDS = 1;
+	public static final int BINARY_HAS_NORMALS = 2;
+	private static final int BINARY_HEADER_SIZE = 20;
+
+	/** Text files bigger than this many bytes are parsed on several threads */
+	private static final long PARALLEL_LOAD_SIZE = 1 << 20;
 	/** The material for the mesh * */
 	protected Material material = Material.DEFAULT_MATERIAL;
 
@@ -41,7 +69,10 @@ public class Mesh extends Surface {
 	/** The normal coordinate array -- may be null * */
 	protected float[] normals;
 
-	/** Mesh triangle objects for each triangle. */
+	/** The triangle array, three vertex indices per triangle * */
+	protected int[] tris;
+
+	/** Mesh triangle objects for each triangle, made when first asked for. */
 	protected MeshTriangle[] triangles;
 
 	/**
@@ -86,7 +117,7 @@ public class Mesh extends Surface {
 	}
 
 	/**
-	 * Sets the mesh data and builds the triangle array.
+	 * Sets the mesh data.
 	 * 
 	 * @param verts
 	 *            the vertices
@@ -103,6 +134,7 @@ public class Mesh extends Surface {
 		this.numVertices = verts.length / 3;
 		this.numTriangles = tris.length / 3;
 		this.verts = verts;
+		this.tris = tris;
 		this.normals = normals;
 		this.texcoords = texcoords;
 
@@ -115,11 +147,8 @@ public class Mesh extends Surface {
 			for (int i = 0; i < numVertices; i++)
 				frame.frameToCanonicalVector(normals, 3 * i);
 
-		// Build the mesh triangles
-		triangles = new MeshTriangle[numTriangles];
-		for (int i = 0; i < numTriangles; i++)
-			triangles[i] = new MeshTriangle(this, tris[3 * i], tris[3 * i + 1],
-					tris[3 * i + 2]);
+		// Triangle objects are only made if needed
+		triangles = null;
 
 	}
 
@@ -145,16 +174,55 @@ public class Mesh extends Surface {
 
 	}
 
+	/**
+	 * Returns one coordinate of one corner of a triangle.
+	 * 
+	 * @param index
+	 *            the index of the triangle
+	 * @param corner
+	 *            0, 1 or 2
+	 * @param axis
+	 *            0, 1 or 2 for x, y or z
+	 * @return the coordinate
+	 */
+	public float getTriangleVertex(int index, int corner, int axis) {
+
+		return verts[3 * tris[3 * index + corner] + axis];
+
+	}
+
 	/**
 	 * Note: returns the actual list of triangles changes will affect the mesh.
+	 * The triangles are made on the first call and kept from then on.
 	 * 
 	 * @return Returns the triangles.
 	 */
 	public MeshTriangle[] getTriangles() {
 
+		if (triangles == null) {
+			MeshTriangle[] newTriangles = new MeshTriangle[numTriangles];
+			for (int i = 0; i < numTriangles; i++)
+				newTriangles[i] = new MeshTriangle(this, i);
+			triangles = newTriangles;
+		}
 		return this.triangles;
 	}
 
+	/**
+	 * Returns a triangle of the mesh. If getTriangles() has not been called a
+	 * new object is made, which is not kept by the mesh.
+	 * 
+	 * @param index
+	 *            the index of the triangle
+	 * @return the triangle
+	 */
+	public MeshTriangle getTriangle(int index) {
+
+		if (triangles != null)
+			return triangles[index];
+		return new MeshTriangle(this, index);
+	}
+
 	/**
 	 * @see ray1.surface.Surface#getMaterial()
 	 */
@@ -174,18 +242,26 @@ public class Mesh extends Surface {
 	}
 
 	/**
-	 * Set the data in this mesh to the data in fileName
+	 * Set the data in this mesh to the data in fileName. Files ending in
+	 * BINARY_EXTENSION are read as binary meshes, all others as .msh text.
 	 * 
 	 * @param fileName
-	 *            the name of a .msh file
+	 *            the name of a .msh or .mshb file
 	 */
 	public void setData(String fileName) {
 
-		// Create a buffered reader for the mesh file
+		if (fileName.endsWith(BINARY_EXTENSION)) {
+			readBinaryMesh(this, fileName);
+			return;
+		}
+
+		// Parse the text file, splitting big files across threads
 		try {
-			BufferedReader fr = new BufferedReader(new FileReader(fileName));
-			readMesh(this, fr);
-			fr.close();
+			boolean parallel = new File(fileName).length() > PARALLEL_LOAD_SIZE
+					&& Runtime.getRuntime().availableProcessors() > 1;
+			MshReader data = MshReader.read(fileName, parallel);
+			setMeshData(data.vertices, data.triangles, data.normals,
+					data.texcoords);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new Error(
@@ -208,6 +284,190 @@ public class Mesh extends Surface {
 
 	}
 
+	/**
+	 * @see ray.surface.Surface#occluded(ray.misc.Ray)
+	 */
+	public boolean occluded(Ray ray) {
+
+		throw new Error(
+				"Meshes cannot intersect rays.  Test for intersection against the individual mesh triangles.");
+
+	}
+
+	/**
+	 * Intersect a ray with one triangle of the mesh. On a hit outRecord.surface
+	 * is this mesh and outRecord.primitive the index of the triangle, and the
+	 * rest of the record is left for completeIntersection(). The test itself
+	 * is Triangle.intersect().
+	 * 
+	 * @param index
+	 *            the index of the triangle
+	 * @param outRecord
+	 *            the output IntersectionRecord, unchanged if there is no hit
+	 * @param ray
+	 *            the ray to intersect
+	 * @return true if the triangle intersects the ray
+	 */
+	public boolean intersectTriangle(int index, IntersectionRecord outRecord,
+			Ray ray) {
+
+		final float[] verts = this.verts;
+		final int v0 = 3 * tris[3 * index];
+		final int v1 = 3 * tris[3 * index + 1];
+		final int v2 = 3 * tris[3 * index + 2];
+		if (!Triangle.intersect(verts[v0], verts[v0 + 1], verts[v0 + 2],
+				verts[v1], verts[v1 + 1], verts[v1 + 2], verts[v2],
+				verts[v2 + 1], verts[v2 + 2], ray, outRecord))
+			return false;
+		outRecord.surface = this;
+		outRecord.primitive = index;
+		return true;
+	}
+
+	/**
+	 * Record a hit on a triangle, for completeIntersection() to finish later.
+	 * This is public so that code testing triangles by other means can fill
+	 * out the same record.
+	 * 
+	 * @param index
+	 *            the index of the triangle
+	 * @param beta
+	 *            the barycentric coordinate of the hit for the second vertex
+	 * @param gamma
+	 *            the barycentric coordinate of the hit for the third vertex
+	 * @param t
+	 *            the t value of the hit
+	 * @param outRecord
+	 *            the record to fill out
+	 */
+	public void setHit(int index, double beta, double gamma, double t,
+			IntersectionRecord outRecord) {
+
+		outRecord.t = t;
+		outRecord.surface = this;
+		outRecord.primitive = index;
+		outRecord.u = beta;
+		outRecord.v = gamma;
+	}
+
+	/**
+	 * Finish a hit on the triangle record.primitive: compute the position,
+	 * the normal (interpolated from the normal array if present) and the
+	 * texture coordinates from the barycentric coordinates record.u and
+	 * record.v.
+	 * 
+	 * @see ray.surface.Surface#completeIntersection(ray.misc.IntersectionRecord,
+	 *      ray.misc.Ray)
+	 */
+	public void completeIntersection(IntersectionRecord outRecord, Ray ray) {
+
+		final int index = outRecord.primitive;
+		final double beta = outRecord.u;
+		final double gamma = outRecord.v;
+		final int v0 = tris[3 * index];
+		final int v1 = tris[3 * index + 1];
+		final int v2 = tris[3 * index + 2];
+		final float[] verts = this.verts;
+		final double v0x = verts[3 * v0];
+		final double v0y = verts[3 * v0 + 1];
+		final double v0z = verts[3 * v0 + 2];
+		final double v1x = verts[3 * v1];
+		final double v1y = verts[3 * v1 + 1];
+		final double v1z = verts[3 * v1 + 2];
+		final double v2x = verts[3 * v2];
+		final double v2y = verts[3 * v2 + 1];
+		final double v2z = verts[3 * v2 + 2];
+
+		// Faster to compute location using barycentric coordinates than
+		// computations using Vector3
+		double weight0 = 1 - beta - gamma; // Barycentric coordinates total 1
+		outRecord.frame.o.set(weight0 * v0x + beta * v1x + gamma * v2x, weight0
+				* v0y + beta * v1y + gamma * v2y, weight0 * v0z + beta * v1z
+				+ gamma * v2z);
+
+		// If the normals array is empty use the old calculation
+		if (normals == null) {
+
+			// Calculate the normal of the triangle. Again this could be
+			// precomputed, but space usually ends up being more important.
+			// Plus this is done only for the closest hit.
+			double A = v0x - v1x;
+			double B = v0y - v1y;
+			double C = v0z - v1z;
+			double D = v0x - v2x;
+			double E = v0y - v2y;
+			double F = v0z - v2z;
+			double normx = B * F - C * E;
+			double normy = C * D - A * F;
+			double normz = A * E - B * D;
+			outRecord.frame.w.set(normx, normy, normz);
+			outRecord.frame.initFromW();
+
+		}
+
+		// Else compute the normals using the normal list and the barycentric
+		// coordinates
+		else {
+
+			// Read the normal coordinates
+			double n0x = normals[3 * v0];
+			double n0y = normals[3 * v0 + 1];
+			double n0z = normals[3 * v0 + 2];
+			double n1x = normals[3 * v1];
+			double n1y = normals[3 * v1 + 1];
+			double n1z = normals[3 * v1 + 2];
+			double n2x = normals[3 * v2];
+			double n2y = normals[3 * v2 + 1];
+			double n2z = normals[3 * v2 + 2];
+
+			// Compute normal
+			outRecord.frame.w.set(weight0 * n0x + beta * n1x + gamma * n2x,
+					weight0 * n0y + beta * n1y + gamma * n2y, weight0 * n0z
+							+ beta * n1z + gamma * n2z);
+			outRecord.frame.initFromW();
+
+		}
+
+		// If the texture coordinates array is not empty
+		if (texcoords != null) {
+
+			// Read the normal coordinates
+			double t0x = texcoords[2 * v0];
+			double t0y = texcoords[2 * v0 + 1];
+			double t1x = texcoords[2 * v1];
+			double t1y = texcoords[2 * v1 + 1];
+			double t2x = texcoords[2 * v2];
+			double t2y = texcoords[2 * v2 + 1];
+
+			// Compute normal
+			outRecord.texCoords.set(weight0 * t0x + beta * t1x + gamma * t2x,
+					weight0 * t0y + beta * t1y + gamma * t2y);
+
+		}
+
+	}
+
+	/**
+	 * Test whether one triangle of the mesh blocks a ray.
+	 * 
+	 * @param index
+	 *            the index of the triangle
+	 * @param ray
+	 *            the ray to test
+	 * @return true if the triangle intersects the ray
+	 * @see ray.surface.Surface#occluded(ray.misc.Ray)
+	 */
+	public boolean occludedTriangle(int index, Ray ray) {
+
+		final float[] verts = this.verts;
+		final int v0 = 3 * tris[3 * index];
+		final int v1 = 3 * tris[3 * index + 1];
+		final int v2 = 3 * tris[3 * index + 2];
+		return Triangle.intersect(verts[v0], verts[v0 + 1], verts[v0 + 2],
+				verts[v1], verts[v1 + 1], verts[v1 + 2], verts[v2],
+				verts[v2 + 1], verts[v2 + 2], ray, null);
+	}
+
 	/**
 	 * @see ray1.surface.Surface#getCenter(ray1.math.Point3)
 	 */
@@ -225,7 +485,8 @@ public class Mesh extends Surface {
 	}
 
 	/**
-	 * Reads a .msh file into outputMesh.
+	 * Reads a .msh file into outputMesh, one line at a time. setData uses the
+	 * faster MshReader instead.
 	 * 
 	 * @param outputMesh
 	 *            the mesh to store the read data
@@ -298,6 +559,126 @@ public class Mesh extends Surface {
 
 	}
 
+	/**
+	 * Reads a binary mesh file into outputMesh. The file is mapped into memory
+	 * and its blocks are copied straight into the mesh arrays.
+	 * 
+	 * @param outputMesh
+	 *            the mesh to store the read data
+	 * @param fileName
+	 *            the name of the binary mesh file to read
+	 */
+	public static final void readBinaryMesh(Mesh outputMesh, String fileName) {
+
+		float[] vertices;
+		int[] triangles;
+		float[] normals = null;
+		float[] texcoords = null;
+
+		try {
+			RandomAccessFile file = new RandomAccessFile(fileName, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+				// Read the header
+				if (buffer.remaining() < BINARY_HEADER_SIZE
+						|| buffer.getInt() != BINARY_MAGIC)
+					throw new IOException("Not a binary mesh file");
+				int version = buffer.getInt();
+				if (version != BINARY_VERSION)
+					throw new IOException("Unsupported binary mesh version "
+							+ version);
+				int nPoints = buffer.getInt();
+				int nPolys = buffer.getInt();
+				int flags = buffer.getInt();
+				long blocks = 3L * nPoints + 3L * nPolys;
+				if ((flags & BINARY_HAS_TEXCOORDS) != 0)
+					blocks += 2L * nPoints;
+				if ((flags & BINARY_HAS_NORMALS) != 0)
+					blocks += 3L * nPoints;
+				long expected = BINARY_HEADER_SIZE + 4 * blocks;
+				if (nPoints < 0 || nPolys < 0 || channel.size() != expected)
+					throw new IOException("Broken file - expected " + expected
+							+ " bytes, found " + channel.size());
+
+				// Read the blocks
+				vertices = new float[nPoints * 3];
+				buffer.asFloatBuffer().get(vertices);
+				buffer.position(buffer.position() + 4 * vertices.length);
+				triangles = new int[nPolys * 3];
+				buffer.asIntBuffer().get(triangles);
+				buffer.position(buffer.position() + 4 * triangles.length);
+				if ((flags & BINARY_HAS_TEXCOORDS) != 0) {
+					texcoords = new float[nPoints * 2];
+					buffer.asFloatBuffer().get(texcoords);
+					buffer.position(buffer.position() + 4 * texcoords.length);
+				}
+				if ((flags & BINARY_HAS_NORMALS) != 0) {
+					normals = new float[nPoints * 3];
+					buffer.asFloatBuffer().get(normals);
+				}
+			} finally {
+				file.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new Error("Error reading binary mesh " + fileName + ".");
+		}
+
+		// Set the data in the output Mesh
+		outputMesh.setMeshData(vertices, triangles, normals, texcoords);
+	}
+
+	/**
+	 * Writes the data of a mesh to a binary mesh file. The vertices are
+	 * written as stored, that is after the mesh's frame has been applied.
+	 * 
+	 * @param mesh
+	 *            the mesh to write
+	 * @param fileName
+	 *            the name of the binary mesh file to write
+	 */
+	public static final void writeBinaryMesh(Mesh mesh, String fileName) {
+
+		int flags = (mesh.texcoords != null ? BINARY_HAS_TEXCOORDS : 0)
+				| (mesh.normals != null ? BINARY_HAS_NORMALS : 0);
+		int size = BINARY_HEADER_SIZE + 4
+				* (mesh.verts.length + mesh.tris.length);
+		if (mesh.texcoords != null)
+			size += 4 * mesh.texcoords.length;
+		if (mesh.normals != null)
+			size += 4 * mesh.normals.length;
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(
+				ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(BINARY_MAGIC).putInt(BINARY_VERSION)
+				.putInt(mesh.numVertices).putInt(mesh.numTriangles)
+				.putInt(flags);
+		buffer.asFloatBuffer().put(mesh.verts);
+		buffer.position(buffer.position() + 4 * mesh.verts.length);
+		buffer.asIntBuffer().put(mesh.tris);
+		buffer.position(buffer.position() + 4 * mesh.tris.length);
+		if (mesh.texcoords != null) {
+			buffer.asFloatBuffer().put(mesh.texcoords);
+			buffer.position(buffer.position() + 4 * mesh.texcoords.length);
+		}
+		if (mesh.normals != null)
+			buffer.asFloatBuffer().put(mesh.normals);
+
+		try {
+			FileOutputStream out = new FileOutputStream(fileName);
+			try {
+				out.write(buffer.array());
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new Error("Error writing binary mesh " + fileName + ".");
+		}
+	}
+
 	public boolean chooseSamplePoint(Point3 iRec, Point2 seed,
 			LuminaireSamplingRecord lRec) {
 		// Auto-generated method stub
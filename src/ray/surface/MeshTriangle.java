@@ -24,6 +24,9 @@ public class MeshTriangle extends Surface {
 	/** Pointer to the mesh containing this triangle * */
 	protected Mesh mesh;
 
+	/** The index of this triangle in the mesh * */
+	public final int index;
+
 	/** The first triangle vertex * */
 	public int v0;
 
@@ -35,22 +38,29 @@ public class MeshTriangle extends Surface {
 
 	/**
 	 * Protected constructor, only TriangleMesh objects should create
-	 * MeshTriangles. Just sets the input parameters.
+	 * MeshTriangles. Just reads the vertices of the triangle.
 	 * 
 	 * @param parentMesh
-	 * @param inV0
-	 * @param inV1
-	 * @param inV2
+	 * @param inIndex
+	 *            the index of the triangle in the mesh
 	 */
-	protected MeshTriangle(Mesh parentMesh, int inV0, int inV1, int inV2) {
+	protected MeshTriangle(Mesh parentMesh, int inIndex) {
 		mesh = parentMesh;
-		v0 = inV0;
-		v1 = inV1;
-		v2 = inV2;
+		index = inIndex;
+		v0 = mesh.tris[3 * index];
+		v1 = mesh.tris[3 * index + 1];
+		v2 = mesh.tris[3 * index + 2];
 
 		updateArea();
 	}
 
+	/**
+	 * @return the mesh containing this triangle
+	 */
+	public Mesh getMesh() {
+		return mesh;
+	}
+
 	/**
 	 * @see ray1.surface.Surface#getMaterial()
 	 */
@@ -80,153 +90,35 @@ public class MeshTriangle extends Surface {
 	}
 
 	/**
-	 * This simply copies the triangle intersection method from Triangle, but
-	 * reads the vertex data from the mesh array and computes the normals from
-	 * the normal array (if present)
-	 * 
-	 * The implemented method closely follows the Cramer's rule method described
-	 * on page 208 of Shirley.
+	 * Intersects the triangle through the mesh, then records this triangle as
+	 * the surface hit.
 	 * 
 	 * @see ray1.surface.Surface#intersect(ray1.misc.IntersectionRecord,
 	 *      ray1.misc.Ray)
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
 
-		// Rename the components of each vertex for convienience (and save many
-		// field access computations)
-		final double v0x = mesh.verts[3 * v0];
-		final double v0y = mesh.verts[3 * v0 + 1];
-		final double v0z = mesh.verts[3 * v0 + 2];
-		final double v1x = mesh.verts[3 * v1];
-		final double v1y = mesh.verts[3 * v1 + 1];
-		final double v1z = mesh.verts[3 * v1 + 2];
-		final double v2x = mesh.verts[3 * v2];
-		final double v2y = mesh.verts[3 * v2 + 1];
-		final double v2z = mesh.verts[3 * v2 + 2];
-
-		// Compute elements of the triangle ray matrix
-		double A = v0x - v1x;
-		double B = v0y - v1y;
-		double C = v0z - v1z;
-		double D = v0x - v2x;
-		double E = v0y - v2y;
-		double F = v0z - v2z;
-
-		// Rename ray directions for clarity and convenience
-		double G = ray.direction.x;
-		double H = ray.direction.y;
-		double I = ray.direction.z;
-
-		// Compute the factors in the numerator of the beta coordinate
-		double EIHF = E * I - H * F;
-		double GFDI = G * F - D * I;
-		double DHEG = D * H - E * G;
-
-		// Try and minimize divides (they are expensive). Compute inverse of the
-		// denominator factor
-		double inv_denom = 1.0 / (A * EIHF + B * GFDI + C * DHEG);
-
-		// Compute the direction from the ray origin to the first vertex
-		double J = v0x - ray.origin.x;
-		double K = v0y - ray.origin.y;
-		double L = v0z - ray.origin.z;
-
-		// Compute the beta coordinate
-		double beta = inv_denom * (J * EIHF + K * GFDI + L * DHEG);
-
-		// If the intersection is out of this range it doesn't fall on the
-		// triangle
-		if (beta < 0 || beta > 1 || Double.isNaN(beta))
-			return false;
-
-		// Compute the factors of the numerator of the gamma coordinate
-		double AKJB = A * K - J * B;
-		double JCAL = J * C - A * L;
-		double BLKC = B * L - K * C;
-
-		// Calculate the other barycentric coordinate
-		double gamma = inv_denom * (I * AKJB + H * JCAL + G * BLKC);
-
-		// If the intersection is out of this range it doesn't fall on the
-		// triangle
-		if (gamma < 0 || beta + gamma > 1 || Double.isNaN(gamma))
+		if (!mesh.intersectTriangle(index, outRecord, ray))
 			return false;
-
-		// Calculate the ray t value
-		double t = -inv_denom * (F * AKJB + E * JCAL + D * BLKC);
-
-		// Check that we are on the corrent half line of the ray
-		if (t < ray.start || t > ray.end || Double.isNaN(t))
-			return false;
-
-		// Fill out the record
-		outRecord.t = t;
 		outRecord.surface = this;
+		return true;
+	}
 
-		// Faster to compute location using barycentric coordinates than
-		// computations using Vector3
-		double weight0 = 1 - beta - gamma; // Barycentric coordinates total 1
-		outRecord.frame.o.set(weight0 * v0x + beta * v1x + gamma * v2x, weight0
-				* v0y + beta * v1y + gamma * v2y, weight0 * v0z + beta * v1z
-				+ gamma * v2z);
-
-		// If the normals array is empty use the old calculation
-		if (mesh.normals == null) {
-
-			// Calculate the normal of the triangle. Again this could be
-			// precomputed,
-			// but space usually ends up being more important. Plus this is done
-			// only when the ray intersects, usually much less than the test is
-			// performed.
-			double normx = B * F - C * E;
-			double normy = C * D - A * F;
-			double normz = A * E - B * D;
-			outRecord.frame.w.set(normx, normy, normz);
-			outRecord.frame.initFromW();
-
-		}
-
-		// Else compute the normals using the normal list and the barycentric
-		// coordinates
-		else {
-
-			// Read the normal coordinates
-			double n0x = mesh.normals[3 * v0];
-			double n0y = mesh.normals[3 * v0 + 1];
-			double n0z = mesh.normals[3 * v0 + 2];
-			double n1x = mesh.normals[3 * v1];
-			double n1y = mesh.normals[3 * v1 + 1];
-			double n1z = mesh.normals[3 * v1 + 2];
-			double n2x = mesh.normals[3 * v2];
-			double n2y = mesh.normals[3 * v2 + 1];
-			double n2z = mesh.normals[3 * v2 + 2];
-
-			// Compute normal
-			outRecord.frame.w.set(weight0 * n0x + beta * n1x + gamma * n2x,
-					weight0 * n0y + beta * n1y + gamma * n2y, weight0 * n0z
-							+ beta * n1z + gamma * n2z);
-			outRecord.frame.initFromW();
-
-		}
-
-		// If the texture coordinates array is not empty
-		if (mesh.texcoords != null) {
-
-			// Read the normal coordinates
-			double t0x = mesh.texcoords[2 * v0];
-			double t0y = mesh.texcoords[2 * v0 + 1];
-			double t1x = mesh.texcoords[2 * v1];
-			double t1y = mesh.texcoords[2 * v1 + 1];
-			double t2x = mesh.texcoords[2 * v2];
-			double t2y = mesh.texcoords[2 * v2 + 1];
+	/**
+	 * @see ray.surface.Surface#completeIntersection(ray.misc.IntersectionRecord,
+	 *      ray.misc.Ray)
+	 */
+	public void completeIntersection(IntersectionRecord record, Ray ray) {
 
-			// Compute normal
-			outRecord.texCoords.set(weight0 * t0x + beta * t1x + gamma * t2x,
-					weight0 * t0y + beta * t1y + gamma * t2y);
+		mesh.completeIntersection(record, ray);
+	}
 
-		}
+	/**
+	 * @see ray.surface.Surface#occluded(ray.misc.Ray)
+	 */
+	public boolean occluded(Ray ray) {
 
-		return true;
+		return mesh.occludedTriangle(index, ray);
 	}
 
 	/**
@@ -235,10 +127,10 @@ public class MeshTriangle extends Surface {
 	public void getCenter(Point3 outCenter) {
 
 		outCenter.set(mesh.verts[3 * v0] + mesh.verts[3 * v1]
-				+ mesh.verts[3 * v1], mesh.verts[3 * v0 + 1]
-				+ mesh.verts[3 * v1 + 1] + mesh.verts[3 * v1 + 1],
+				+ mesh.verts[3 * v2], mesh.verts[3 * v0 + 1]
+				+ mesh.verts[3 * v1 + 1] + mesh.verts[3 * v2 + 1],
 				mesh.verts[3 * v0 + 2] + mesh.verts[3 * v1 + 2]
-						+ mesh.verts[3 * v1 + 2]);
+						+ mesh.verts[3 * v2 + 2]);
 		outCenter.scale(1 / 3.);
 
 	}
@@ -277,6 +169,21 @@ public class MeshTriangle extends Surface {
 		return (lRec.emitDir.dot(lRec.frame.w) > 0);
 	}
 
+	/**
+	 * A flat triangle has just one normal, the one chooseSamplePoint() gives.
+	 */
+	public double getNormalBounds(Vector3 outAxis) {
+		Vector3 u = new Vector3(mesh.verts[3 * v1] - mesh.verts[3 * v0],
+				mesh.verts[3 * v1 + 1] - mesh.verts[3 * v0 + 1],
+				mesh.verts[3 * v1 + 2] - mesh.verts[3 * v0 + 2]);
+		Vector3 v = new Vector3(mesh.verts[3 * v2] - mesh.verts[3 * v0],
+				mesh.verts[3 * v2 + 1] - mesh.verts[3 * v0 + 1],
+				mesh.verts[3 * v2 + 2] - mesh.verts[3 * v0 + 2]);
+		outAxis.cross(u, v);
+		outAxis.normalize();
+		return 0;
+	}
+
 	public double pdfSamplePoint(IntersectionRecord iRec,
 			LuminaireSamplingRecord lRec) {
 		return oneOverArea;
@@ -159,14 +159,44 @@ public class Sphere extends Surface {
 
 		outRecord.t = t;
 		outRecord.surface = this;
-		ray.evaluate(outRecord.frame.o, t);
-		outRecord.frame.w.sub(outRecord.frame.o, this.center);
-		outRecord.frame.w.normalize();
-		outRecord.frame.initFromW();
+		outRecord.primitive = -1;
 
 		return true;
 	}
 
+	/**
+	 * @see ray.surface.Surface#completeIntersection(ray.misc.IntersectionRecord,
+	 *      ray.misc.Ray)
+	 */
+	public void completeIntersection(IntersectionRecord record, Ray ray) {
+		ray.evaluate(record.frame.o, record.t);
+		record.frame.w.sub(record.frame.o, this.center);
+		record.frame.w.normalize();
+		record.frame.initFromW();
+	}
+
+	/**
+	 * @see ray.surface.Surface#occluded(ray.misc.Ray)
+	 */
+	public boolean occluded(Ray ray) {
+		double cx = ray.origin.x - center.x;
+		double cy = ray.origin.y - center.y;
+		double cz = ray.origin.z - center.z;
+		double a = ray.direction.dot(ray.direction);
+		double b = 2 * (cx * ray.direction.x + cy * ray.direction.y + cz
+				* ray.direction.z);
+		double c = cx * cx + cy * cy + cz * cz - radius * radius;
+
+		double discriminant = b * b - 4.0 * a * c;
+		if (discriminant < 0)
+			return false;
+		double root = Math.sqrt(discriminant);
+		double t0 = (-b - root) / (2.0 * a);
+		double t1 = (-b + root) / (2.0 * a);
+		return (t0 >= ray.start && t0 <= ray.end)
+				|| (t1 >= ray.start && t1 <= ray.end);
+	}
+
 	/**
 	 * @see Object#toString()
 	 */
@@ -6,6 +6,7 @@ import ray.accel.AxisAlignedBoundingBox;
 import ray.material.Material;
 import ray.math.Point2;
 import ray.math.Point3;
+import ray.math.Vector3;
 import ray.misc.IntersectionRecord;
 import ray.misc.LuminaireSamplingRecord;
 import ray.misc.Ray;
@@ -22,14 +23,6 @@ import ray.misc.Ray;
  */
 public abstract class Surface {
 
-	/** Comparators for each direction */
-	public static final SurfaceComparator X_COMPARE = new SurfaceComparator(
-			SurfaceComparator.X_AXIS);
-	public static final SurfaceComparator Y_COMPARE = new SurfaceComparator(
-			SurfaceComparator.Y_AXIS);
-	public static final SurfaceComparator Z_COMPARE = new SurfaceComparator(
-			SurfaceComparator.Z_AXIS);
-
 	/** total surface area */
 	protected double area = 0;
 	protected double oneOverArea = 0;
@@ -58,9 +51,10 @@ public abstract class Surface {
 
 	/**
 	 * Tests this surface for intersection with ray. If an intersection is found
-	 * record is filled out with the information about the intersection and the
-	 * method returns true. It returns false otherwise and the information in
-	 * outRecord is not modified.
+	 * outRecord.t, surface, primitive, u and v are set and the method returns
+	 * true; the rest of the record is left for completeIntersection. It
+	 * returns false otherwise and the information in outRecord is not
+	 * modified.
 	 * 
 	 * @param outRecord
 	 *            the output IntersectionRecord
@@ -71,6 +65,32 @@ public abstract class Surface {
 
 	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
 
+	/**
+	 * Finish a record filled out by intersect: compute the frame at the
+	 * intersection point and the texture coordinates. This is deferred so
+	 * that it is done only for the closest hit, not for every hit found
+	 * while searching for it.
+	 * 
+	 * @param record
+	 *            a record of a hit on this surface found by intersect
+	 * @param ray
+	 *            the ray that was intersected
+	 */
+	public abstract void completeIntersection(IntersectionRecord record,
+			Ray ray);
+
+	/**
+	 * Tests whether this surface blocks ray anywhere between ray.start and
+	 * ray.end. This is the test needed for shadow rays, so implementations
+	 * should stop as soon as the answer is known and compute nothing about the
+	 * hit point.
+	 * 
+	 * @param ray
+	 *            the ray to test
+	 * @return true if the surface intersects the ray
+	 */
+	public abstract boolean occluded(Ray ray);
+
 	/**
 	 * Grow the bounding box to include this surface
 	 * 
@@ -90,6 +110,19 @@ public abstract class Surface {
 	public abstract boolean chooseSamplePoint(Point3 p, Point2 seed,
 			LuminaireSamplingRecord lRec);
 
+	/**
+	 * Bound the normals of the points chosen by chooseSamplePoint(), for
+	 * deciding which shading points a luminaire can light.
+	 * 
+	 * @param outAxis
+	 *            set to the (unit) axis of a cone containing the normals
+	 * @return the half angle of the cone; PI if there is no bound
+	 */
+	public double getNormalBounds(Vector3 outAxis) {
+		outAxis.set(0, 0, 1);
+		return Math.PI;
+	}
+
 	/**
 	 * The pdf corresponding to chooseSamplePoint. LRec must describe a visible
 	 * point on a luminaire.
@@ -98,6 +131,20 @@ public abstract class Surface {
 		return oneOverArea;
 	}
 
+	/**
+	 * Create a comparator that orders surfaces by the coordinate of their
+	 * centers along one axis. Comparators keep work space, so each sort should
+	 * use its own.
+	 * 
+	 * @param axis
+	 *            the axis (0, 1 or 2 for x, y or z)
+	 * @return a new comparator
+	 */
+	public static Comparator<Surface> newComparator(int axis) {
+
+		return new SurfaceComparator(axis);
+	}
+
 	/**
 	 * Comparator for surfaces
 	 * 
@@ -133,24 +133,37 @@ public class Triangle extends Surface {
 	}
 
 	/**
-	 * Triangle intersections should be FAST! Generally, most of the time in a
-	 * ray tracer is spent in this method (as much as 50%). In practice that
-	 * means that a triangle intersection method should not create any new
-	 * objects, amd should attempt to perform as little branching as necessary.
-	 * Also note that you can create as many primitive types in a method as you
-	 * want. Allociation of primitives is not from the heap and literally takes
-	 * no time over the cost of calling the method. This is why I can freely
-	 * allocate so many doubles.
-	 * 
-	 * The implemented method closely follows the Cramer's rule method described
-	 * on page 208 of Shirley.
-	 * 
+	 * A flat triangle has just one normal, the one chooseSamplePoint() gives.
+	 */
+	public double getNormalBounds(Vector3 outAxis) {
+		Vector3 u = new Vector3();
+		Vector3 v = new Vector3();
+		u.sub(v1, v0);
+		v.sub(v2, v0);
+		outAxis.cross(u, v);
+		outAxis.normalize();
+		return 0;
+	}
+
+	/**
 	 * @see Surface#intersect(IntersectionRecord, Ray)
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
 
-		// Rename the components of each vertex for convienience (and save many
-		// field access computations)
+		if (!intersect(v0.x, v0.y, v0.z, v1.x, v1.y, v1.z, v2.x, v2.y, v2.z,
+				ray, outRecord))
+			return false;
+		outRecord.surface = this;
+		outRecord.primitive = -1;
+		return true;
+	}
+
+	/**
+	 * @see ray.surface.Surface#completeIntersection(ray.misc.IntersectionRecord,
+	 *      ray.misc.Ray)
+	 */
+	public void completeIntersection(IntersectionRecord record, Ray ray) {
+
 		final double v0x = v0.x;
 		final double v0y = v0.y;
 		final double v0z = v0.z;
@@ -160,6 +173,67 @@ public class Triangle extends Surface {
 		final double v2x = v2.x;
 		final double v2y = v2.y;
 		final double v2z = v2.z;
+		final double beta = record.u;
+		final double gamma = record.v;
+
+		// Faster to compute location using barycentric coordinates than
+		// computations using Vector3
+		double weight0 = 1 - beta - gamma; // Barycentric coordinates total 1
+		record.frame.o.set(weight0 * v0x + beta * v1x + gamma * v2x, weight0
+				* v0y + beta * v1y + gamma * v2y, weight0 * v0z + beta * v1z
+				+ gamma * v2z);
+
+		// Calculate the normal of the triangle. Again this could be
+		// precomputed, but space usually ends up being more important.
+		double A = v0x - v1x;
+		double B = v0y - v1y;
+		double C = v0z - v1z;
+		double D = v0x - v2x;
+		double E = v0y - v2y;
+		double F = v0z - v2z;
+		double normx = B * F - C * E;
+		double normy = C * D - A * F;
+		double normz = A * E - B * D;
+		record.frame.w.set(normx, normy, normz);
+		record.frame.initFromW();
+	}
+
+	/**
+	 * @see Surface#occluded(Ray)
+	 */
+	public boolean occluded(Ray ray) {
+
+		return intersect(v0.x, v0.y, v0.z, v1.x, v1.y, v1.z, v2.x, v2.y, v2.z,
+				ray, null);
+	}
+
+	/**
+	 * Intersect a ray with the triangle with the given vertices. This is the
+	 * one triangle test of both Triangle and Mesh, so that the two can't
+	 * disagree.
+	 * 
+	 * Triangle intersections should be FAST! Generally, most of the time in a
+	 * ray tracer is spent in this method (as much as 50%). In practice that
+	 * means that a triangle intersection method should not create any new
+	 * objects, amd should attempt to perform as little branching as necessary.
+	 * Also note that you can create as many primitive types in a method as you
+	 * want. Allociation of primitives is not from the heap and literally takes
+	 * no time over the cost of calling the method. This is why I can freely
+	 * allocate so many doubles.
+	 * 
+	 * The implemented method closely follows the Cramer's rule method described
+	 * on page 208 of Shirley.
+	 * 
+	 * @param outRecord
+	 *            if not null, on a hit its t is set to the t value of the hit
+	 *            and its u and v to the barycentric coordinates of the second
+	 *            and third vertices; unchanged if there is no hit
+	 * @return true if the ray crosses the triangle between ray.start and
+	 *         ray.end
+	 */
+	static boolean intersect(double v0x, double v0y, double v0z, double v1x,
+			double v1y, double v1z, double v2x, double v2y, double v2z,
+			Ray ray, IntersectionRecord outRecord) {
 
 		// Compute elements of the triangle ray matrix
 		double A = v0x - v1x;
@@ -188,12 +262,11 @@ public class Triangle extends Surface {
 		double K = v0y - ray.origin.y;
 		double L = v0z - ray.origin.z;
 
-		// Compute the beta coordinate
-		double beta = inv_denom * (J * EIHF + K * GFDI + L * DHEG);
-
-		// If the intersection is out of this range it doesn't fall on the
+		// Compute the beta coordinate. If the intersection is out of this
+		// range (or NaN, for a degenerate triangle) it doesn't fall on the
 		// triangle
-		if (beta < 0 || beta > 1)
+		double beta = inv_denom * (J * EIHF + K * GFDI + L * DHEG);
+		if (!(beta >= 0 && beta <= 1))
 			return false;
 
 		// Compute the factors of the numerator of the gamma coordinate
@@ -203,41 +276,20 @@ public class Triangle extends Surface {
 
 		// Calculate the other barycentric coordinate
 		double gamma = inv_denom * (I * AKJB + H * JCAL + G * BLKC);
-
-		// If the intersection is out of this range it doesn't fall on the
-		// triangle
-		if (gamma < 0 || beta + gamma > 1)
+		if (!(gamma >= 0 && beta + gamma <= 1))
 			return false;
 
-		// Calculate the ray t value
+		// Calculate the ray t value and check that we are on the correct half
+		// line of the ray
 		double t = -inv_denom * (F * AKJB + E * JCAL + D * BLKC);
-
-		// Check that we are on the corrent half line of the ray
-		if (t < ray.start || t > ray.end)
+		if (!(t >= ray.start && t <= ray.end))
 			return false;
 
-		// Fill out the record
-		outRecord.t = t;
-		outRecord.surface = this;
-
-		// Faster to compute location using barycentric coordinates than
-		// computations using Vector3
-		double weight0 = 1 - beta - gamma; // Barycentric coordinates total 1
-		outRecord.frame.o.set(weight0 * v0x + beta * v1x + gamma * v2x, weight0
-				* v0y + beta * v1y + gamma * v2y, weight0 * v0z + beta * v1z
-				+ gamma * v2z);
-
-		// Calculate the normal of the triangle. Again this could be
-		// precomputed,
-		// but space usually ends up being more important. Plus this is done
-		// only when the ray intersects, usually much less than the test is
-		// performed.
-		double normx = B * F - C * E;
-		double normy = C * D - A * F;
-		double normz = A * E - B * D;
-		outRecord.frame.w.set(normx, normy, normz);
-		outRecord.frame.initFromW();
-
+		if (outRecord != null) {
+			outRecord.t = t;
+			outRecord.u = beta;
+			outRecord.v = gamma;
+		}
 		return true;
 	}
 